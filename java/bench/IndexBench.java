@@ -0,0 +1,353 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the plans of the statements Retail runs for each menu operation
+ * with and without an index set.  Every statement is run under
+ * EXPLAIN (ANALYZE, BUFFERS) twice: once with only the primary keys, and
+ * once with the indexes of the given file (sql/src/create_indexes.sql by
+ * default).  Each side runs inside a transaction that drops or creates the
+ * indexes and is rolled back afterwards, so the database keeps whatever
+ * indexes it had and the write statements leave no rows behind.
+ *
+ * DROP INDEX holds an exclusive lock on its table until the rollback, so
+ * run this against a benchmark database, not a live one.
+ *
+ * Usage: IndexBench --db <dbname> <port> <user> [--indexes <file>]
+ *                   [--runs <n>] [--only <name,name,...>] [--out <file>]
+ *
+ */
+public class IndexBench {
+
+   private static final Pattern EXECUTION_TIME = Pattern.compile("(?:Execution Time|Total runtime): ([0-9.]+) ms");
+   private static final Pattern PLANNING_TIME = Pattern.compile("Planning Time: ([0-9.]+) ms");
+   private static final Pattern BUFFERS = Pattern.compile("Buffers: shared(?: hit=([0-9]+))?(?: read=([0-9]+))?");
+   private static final Pattern SCAN = Pattern.compile("((?:Bitmap Index|Index Only|Index|Seq) Scan)(?: Backward)? (?:using|on) (\\w+)");
+   private static final Pattern CREATE_INDEX = Pattern.compile(
+      "^\\s*CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+   private static final Pattern DROP_INDEX = Pattern.compile("^\\s*DROP\\s+INDEX", Pattern.CASE_INSENSITIVE);
+
+   /**
+    * One statement of a menu operation and the parameters it is run with.
+    */
+   static class Operation {
+      final String name;
+      final String sql;
+      final Object[] params;
+
+      Operation(String name, String sql, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.params = params;
+      }
+   }//end Operation
+
+   /**
+    * What one EXPLAIN (ANALYZE, BUFFERS) run reported.
+    */
+   static class Plan {
+      double executionMs;
+      double planningMs;
+      long sharedHit;
+      long sharedRead;
+      String scans = "";
+      String error;
+   }//end Plan
+
+   /**
+    * The DDL that gives a database exactly the file's index set, and the
+    * DDL that takes it back to its primary keys.
+    */
+   static class IndexSet {
+      final List<String> apply = new ArrayList<String>();
+      final List<String> remove = new ArrayList<String>();
+
+      static IndexSet read(String file) throws IOException {
+         StringBuilder text = new StringBuilder(4096);
+         BufferedReader in = new BufferedReader(new FileReader(file));
+         try {
+            String line;
+            while ((line = in.readLine()) != null) {
+               int comment = line.indexOf("--");
+               text.append(comment < 0 ? line : line.substring(0, comment)).append('\n');
+            }
+         } finally {
+            in.close();
+         }
+         IndexSet set = new IndexSet();
+         String[] statements = text.toString().split(";");
+         for (int i = 0; i < statements.length; i++) {
+            String sql = statements[i].trim();
+            Matcher create = CREATE_INDEX.matcher(sql);
+            if (create.find()) {
+               set.apply.add(sql);
+               set.remove.add("DROP INDEX IF EXISTS " + create.group(1));
+            } else if (DROP_INDEX.matcher(sql).find()) {
+               set.apply.add(sql);
+               set.remove.add(sql);
+            }
+         }
+         return set;
+      }
+   }//end IndexSet
+
+   private final Retail esql;
+   private int runs = 3;
+
+   IndexBench(Retail esql) {
+      this.esql = esql;
+   }
+
+   public static void main(String[] args) {
+      String[] db = null;
+      String indexFile = "sql/src/create_indexes.sql";
+      String outFile = null;
+      List<String> only = null;
+      int runs = 3;
+      try{
+         for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--db")) {
+               db = new String[] { args[++i], args[++i], args[++i] };
+            } else if (args[i].equals("--indexes")) {
+               indexFile = args[++i];
+            } else if (args[i].equals("--runs")) {
+               runs = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--only")) {
+               only = Arrays.asList(args[++i].split(","));
+            } else if (args[i].equals("--out")) {
+               outFile = args[++i];
+            } else {
+               throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+         }
+         if (db == null) {
+            throw new IllegalArgumentException("--db is required");
+         }
+      }catch(RuntimeException e){
+         System.err.println(e.getMessage() == null ? "Missing option value" : e.getMessage());
+         System.err.println("Usage: IndexBench --db <dbname> <port> <user> [--indexes <file>] [--runs <n>]" +
+                            " [--only <name,...>] [--out <file>]");
+         System.exit(2);
+      }
+
+      // everything except the results goes to stderr
+      PrintStream stdout = System.out;
+      System.setOut(System.err);
+      Retail esql = null;
+      try{
+         IndexSet indexes = IndexSet.read(indexFile);
+         Retail.loadDriver();
+         esql = new Retail(db[0], db[1], db[2], "");
+         IndexBench bench = new IndexBench(esql);
+         bench.runs = runs;
+
+         List<Operation> operations = new ArrayList<Operation>();
+         List<Operation> all = bench.operations();
+         for (int i = 0; i < all.size(); i++) {
+            if (only == null || only.contains(all.get(i).name)) {
+               operations.add(all.get(i));
+            }
+         }
+         List<Plan> without = bench.explainAll(operations, indexes.remove);
+         List<Plan> with = bench.explainAll(operations, indexes.apply);
+
+         Writer out = outFile == null ? new OutputStreamWriter(stdout) : new FileWriter(outFile);
+         try{
+            writeJson(out, indexFile, operations, without, with);
+         }finally{
+            out.close();
+         }
+         printSummary(operations, without, with);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }finally{
+         if (esql != null) {
+            esql.cleanup();
+         }
+      }
+   }
+
+   /**
+    * The statements behind each menu operation, with parameters taken from
+    * the data: the first store and its manager, the store's first product,
+    * the customer with the most orders and the first warehouse.
+    */
+   List<Operation> operations() throws SQLException {
+      List<Integer> stores = esql.executeQueryAndMap("SELECT storeID FROM Store ORDER BY storeID LIMIT 1", Rows.INT);
+      if (stores.isEmpty()) {
+         throw new IllegalStateException("The Store table is empty; seed the database first");
+      }
+      int storeID = stores.get(0);
+      int managerID = esql.executeQueryAndMap("SELECT managerID FROM Store WHERE storeID = ?", Rows.INT, storeID).get(0);
+      List<List<String>> manager = esql.executeQueryAndReturnResult("SELECT name, password FROM Users WHERE userID = ?", managerID);
+      List<Rows.Product> products = esql.executeQueryAndMap(
+         Retail.STORE_PRODUCTS + " ORDER BY productName LIMIT 1", Rows.PRODUCT, storeID);
+      List<Integer> customers = esql.executeQueryAndMap(
+         "SELECT customerID FROM Orders GROUP BY customerID ORDER BY COUNT(*) DESC LIMIT 1", Rows.INT);
+      List<Integer> warehouses = esql.executeQueryAndMap("SELECT warehouseID FROM Warehouse ORDER BY warehouseID LIMIT 1", Rows.INT);
+      if (products.isEmpty() || customers.isEmpty() || warehouses.isEmpty()) {
+         throw new IllegalStateException("The Product, Orders or Warehouse table is empty; seed the database first");
+      }
+      Rows.Product product = products.get(0);
+      int customerID = customers.get(0);
+      int page = Retail.RECENT_PAGE;
+
+      List<Operation> all = new ArrayList<Operation>();
+      all.add(new Operation("logIn", Session.LOG_IN, Rows.trim(manager.get(0).get(0)), Rows.trim(manager.get(0).get(1))));
+      all.add(new Operation("managedStores", Session.MANAGED_STORES, managerID));
+      all.add(new Operation("viewProducts", Retail.STORE_PRODUCTS, storeID));
+      all.add(new Operation("placeOrder", OrderEngine.PLACE_ORDER, 1, storeID, product.productName, 1, customerID, 1));
+      all.add(new Operation("viewRecentOrders", RecentActivity.FIRST_ORDERS, customerID, page));
+      all.add(new Operation("updateProduct", Retail.PRODUCT_UPDATE, product.numberOfUnits, product.pricePerUnit, storeID, product.productName));
+      all.add(new Operation("logProductUpdate", AuditLog.insertSql(1), managerID, storeID, product.productName,
+         new Timestamp(System.currentTimeMillis())));
+      all.add(new Operation("viewRecentUpdates", RecentActivity.FIRST_STORE_UPDATES, page, managerID, page));
+      all.add(new Operation("viewRecentUpdatesAdmin", RecentActivity.FIRST_UPDATES, page));
+      all.add(new Operation("viewPopularProducts", Retail.MANAGER_POPULAR_PRODUCTS, managerID));
+      all.add(new Operation("viewPopularCustomers", Retail.MANAGER_POPULAR_CUSTOMERS, managerID));
+      all.add(new Operation("requestSupply", Retail.SUPPLY_REQUEST, managerID, warehouses.get(0), storeID, product.productName, 1));
+      all.add(new Operation("undeliveredSupply", SupplyPipeline.UNDELIVERED));
+      all.add(new Operation("markSupplyDelivered", SupplyPipeline.markSql(1), 1));
+      all.add(new Operation("deliverSupply", SupplyPipeline.incrementSql(1), 1, storeID, product.productName));
+      return all;
+   }
+
+   /**
+    * Explains every operation inside one transaction that first runs the
+    * given index DDL, and rolls it all back.  An operation that fails is
+    * reported with its error and the rest carry on in a fresh transaction.
+    */
+   List<Plan> explainAll(List<Operation> operations, List<String> ddl) throws SQLException {
+      List<Plan> plans = new ArrayList<Plan>();
+      ConnectionPool pool = esql.getPool();
+      boolean open = false;
+      try{
+         for (int i = 0; i < operations.size(); i++) {
+            if (!open) {
+               pool.begin();
+               open = true;
+               for (int j = 0; j < ddl.size(); j++) {
+                  esql.executeUpdate(ddl.get(j));
+               }
+            }
+            Operation op = operations.get(i);
+            Plan best = null;
+            try{
+               // the first run warms the cache; the fastest of the rest is kept
+               explain(op);
+               for (int r = 0; r < runs; r++) {
+                  Plan plan = explain(op);
+                  if (best == null || plan.executionMs < best.executionMs) {
+                     best = plan;
+                  }
+               }
+            }catch(SQLException e){
+               best = new Plan();
+               best.error = e.getMessage();
+               pool.rollback();
+               open = false;
+            }
+            plans.add(best);
+         }
+      }finally{
+         if (open) {
+            pool.rollback();
+         }
+      }
+      return plans;
+   }
+
+   private Plan explain(Operation op) throws SQLException {
+      List<List<String>> lines = esql.executeQueryAndReturnResult("EXPLAIN (ANALYZE, BUFFERS) " + op.sql, op.params);
+      Plan plan = new Plan();
+      boolean buffersSeen = false;
+      Set<String> scans = new LinkedHashSet<String>();
+      for (int i = 0; i < lines.size(); i++) {
+         String line = lines.get(i).get(0);
+         Matcher m = EXECUTION_TIME.matcher(line);
+         if (m.find()) {
+            plan.executionMs = Double.parseDouble(m.group(1));
+         }
+         m = PLANNING_TIME.matcher(line);
+         if (m.find()) {
+            plan.planningMs = Double.parseDouble(m.group(1));
+         }
+         // the first Buffers line is the top node's, which includes its children
+         m = BUFFERS.matcher(line);
+         if (!buffersSeen && m.find()) {
+            buffersSeen = true;
+            plan.sharedHit = m.group(1) == null ? 0 : Long.parseLong(m.group(1));
+            plan.sharedRead = m.group(2) == null ? 0 : Long.parseLong(m.group(2));
+         }
+         m = SCAN.matcher(line);
+         while (m.find()) {
+            scans.add(m.group(1) + " " + m.group(2));
+         }
+      }//end for
+      StringBuilder text = new StringBuilder();
+      for (String scan : scans) {
+         text.append(text.length() == 0 ? "" : ", ").append(scan);
+      }
+      plan.scans = text.toString();
+      return plan;
+   }
+
+   static void writeJson(Writer out, String indexFile, List<Operation> operations, List<Plan> without, List<Plan> with) throws IOException {
+      StringBuilder text = new StringBuilder(4096);
+      Json json = new Json(text);
+      json.beginObject()
+         .field("timestamp", new Timestamp(System.currentTimeMillis()).toString())
+         .field("indexes", indexFile)
+         .beginArray("operations");
+      for (int i = 0; i < operations.size(); i++) {
+         Plan a = without.get(i);
+         Plan b = with.get(i);
+         json.beginObject()
+            .field("operation", operations.get(i).name)
+            .field("withoutMs", a.executionMs).field("withMs", b.executionMs)
+            .field("deltaMs", b.executionMs - a.executionMs)
+            .field("withoutPlanningMs", a.planningMs).field("withPlanningMs", b.planningMs)
+            .field("withoutSharedHit", a.sharedHit).field("withSharedHit", b.sharedHit)
+            .field("withoutSharedRead", a.sharedRead).field("withSharedRead", b.sharedRead)
+            .field("deltaBuffers", (b.sharedHit + b.sharedRead) - (a.sharedHit + a.sharedRead))
+            .field("withoutScans", a.scans).field("withScans", b.scans);
+         if (a.error != null || b.error != null) {
+            json.field("error", a.error != null ? a.error : b.error);
+         }
+         json.endObject();
+      }
+      json.endArray().endObject();
+      out.write(text.append('\n').toString());
+   }
+
+   static void printSummary(List<Operation> operations, List<Plan> without, List<Plan> with) {
+      System.err.printf("%-24s %12s %12s %10s %10s%n", "operation", "without ms", "with ms", "buffers", "buffers");
+      for (int i = 0; i < operations.size(); i++) {
+         Plan a = without.get(i);
+         Plan b = with.get(i);
+         if (a.error != null || b.error != null) {
+            System.err.printf("%-24s failed: %s%n", operations.get(i).name, a.error != null ? a.error : b.error);
+            continue;
+         }
+         System.err.printf("%-24s %12.3f %12.3f %10d %10d%n", operations.get(i).name,
+            a.executionMs, b.executionMs, a.sharedHit + a.sharedRead, b.sharedHit + b.sharedRead);
+         System.err.printf("%-24s   without: %s%n%-24s   with:    %s%n", "", a.scans, "", b.scans);
+      }
+   }
+
+}//end IndexBench
@@ -0,0 +1,477 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro and end-to-end benchmarks for the Retail hot paths, in the spirit of
+ * JMH: each benchmark is warmed up, then measured over several fixed-length
+ * iterations, and reported as average time per operation with its spread.
+ * Results are written as JSON (or CSV) so runs can be compared between
+ * releases.
+ *
+ * The in-memory benchmarks always run.  The database ones run when --db is
+ * given and expect a seeded database; placeOrder runs inside a transaction
+ * that is rolled back after every batch, so the data is left as it was.
+ *
+ * Usage: RetailBench [--db <dbname> <port> <user>] [--format json|csv]
+ *                    [--out <file>] [--warmup <n>] [--iterations <n>]
+ *                    [--time <ms>] [--only <name,name,...>]
+ *
+ */
+public class RetailBench {
+
+   /**
+    * One benchmark.  run() performs the operation ops times and returns a
+    * value derived from the results so the work cannot be optimized away.
+    */
+   static abstract class Benchmark {
+      final String name;
+      final boolean needsDatabase;
+
+      Benchmark(String name, boolean needsDatabase) {
+         this.name = name;
+         this.needsDatabase = needsDatabase;
+      }
+
+      void setUp() throws Exception {}
+      // untimed work around each timed batch
+      void beforeBatch() throws Exception {}
+      void afterBatch() throws Exception {}
+      abstract long run(int ops) throws Exception;
+      void tearDown() throws Exception {}
+   }//end Benchmark
+
+   /**
+    * The measured scores of one benchmark, in nanoseconds per operation.
+    */
+   static class Result {
+      final String name;
+      final double[] scores;
+      final long ops;
+
+      Result(String name, double[] scores, long ops) {
+         this.name = name;
+         this.scores = scores;
+         this.ops = ops;
+      }
+
+      double mean() {
+         double sum = 0;
+         for (int i = 0; i < scores.length; i++) {
+            sum += scores[i];
+         }
+         return sum / scores.length;
+      }
+
+      double stdev() {
+         if (scores.length < 2) {
+            return 0;
+         }
+         double mean = mean();
+         double sum = 0;
+         for (int i = 0; i < scores.length; i++) {
+            sum += (scores[i] - mean) * (scores[i] - mean);
+         }
+         return Math.sqrt(sum / (scores.length - 1));
+      }
+
+      // half-width of a ~99.9% confidence interval, as JMH reports it
+      double error() {
+         return scores.length < 2 ? 0 : 3.291 * stdev() / Math.sqrt(scores.length);
+      }
+
+      double min() {
+         double[] sorted = scores.clone();
+         Arrays.sort(sorted);
+         return sorted[0];
+      }
+
+      double max() {
+         double[] sorted = scores.clone();
+         Arrays.sort(sorted);
+         return sorted[sorted.length - 1];
+      }
+   }//end Result
+
+   // results are folded into this so the JIT cannot drop the measured work
+   static volatile long sink;
+
+   private int warmupIterations = 3;
+   private int iterations = 5;
+   private long iterationMillis = 1000;
+   private Retail esql = null;
+
+   public static void main(String[] args) {
+      RetailBench bench = new RetailBench();
+      String format = "json";
+      String outFile = null;
+      String[] db = null;
+      List<String> only = null;
+      try{
+         for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--db")) {
+               db = new String[] { args[++i], args[++i], args[++i] };
+            } else if (args[i].equals("--format")) {
+               format = args[++i];
+            } else if (args[i].equals("--out")) {
+               outFile = args[++i];
+            } else if (args[i].equals("--warmup")) {
+               bench.warmupIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--iterations")) {
+               bench.iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--time")) {
+               bench.iterationMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--only")) {
+               only = Arrays.asList(args[++i].split(","));
+            } else {
+               throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+         }
+         if (!format.equals("json") && !format.equals("csv")) {
+            throw new IllegalArgumentException("--format must be json or csv");
+         }
+      }catch(RuntimeException e){
+         System.err.println(e.getMessage() == null ? "Missing option value" : e.getMessage());
+         System.err.println("Usage: RetailBench [--db <dbname> <port> <user>] [--format json|csv] [--out <file>]" +
+                            " [--warmup <n>] [--iterations <n>] [--time <ms>] [--only <name,...>]");
+         System.exit(2);
+      }
+
+      // everything except the results goes to stderr
+      PrintStream stdout = System.out;
+      System.setOut(System.err);
+      try{
+         if (db != null) {
+            Retail.loadDriver();
+            bench.esql = new Retail(db[0], db[1], db[2], "");
+         }
+         List<Result> results = bench.runAll(only);
+         Writer out = outFile == null ? new OutputStreamWriter(stdout) : new FileWriter(outFile);
+         try{
+            if (format.equals("csv")) {
+               writeCsv(out, results);
+            } else {
+               writeJson(out, results);
+            }
+         }finally{
+            out.close();
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }finally{
+         if (bench.esql != null) {
+            bench.esql.cleanup();
+         }
+      }
+   }
+
+   List<Benchmark> benchmarks() {
+      List<Benchmark> all = new ArrayList<Benchmark>();
+      all.add(new DistanceBench());
+      all.add(new StoreRadiusBench());
+      all.add(new MaterializeBench("materializeStrings", false));
+      all.add(new MaterializeBench("materializeTyped", true));
+      all.add(new PlaceOrderBench());
+      all.add(new PopularProductsBench());
+      return all;
+   }
+
+   List<Result> runAll(List<String> only) throws Exception {
+      List<Result> results = new ArrayList<Result>();
+      List<Benchmark> all = benchmarks();
+      for (int i = 0; i < all.size(); i++) {
+         Benchmark b = all.get(i);
+         if (only != null && !only.contains(b.name)) {
+            continue;
+         }
+         if (b.needsDatabase && esql == null) {
+            System.err.println("Skipping " + b.name + " (needs --db)");
+            continue;
+         }
+         results.add(measure(b));
+      }
+      return results;
+   }
+
+   /**
+    * Warms up and measures one benchmark.  Operations are timed in batches
+    * sized so one batch takes about a millisecond, which keeps the clock
+    * overhead out of the per-operation time.
+    */
+   Result measure(Benchmark b) throws Exception {
+      System.err.print("Running " + b.name + "...");
+      b.setUp();
+      try{
+         int batch = calibrate(b);
+         for (int i = 0; i < warmupIterations; i++) {
+            iteration(b, batch);
+         }
+         double[] scores = new double[iterations];
+         long totalOps = 0;
+         for (int i = 0; i < iterations; i++) {
+            long[] timed = iteration(b, batch);
+            scores[i] = (double) timed[0] / timed[1];
+            totalOps += timed[1];
+         }
+         Result result = new Result(b.name, scores, totalOps);
+         System.err.printf(" %.1f +- %.1f ns/op%n", result.mean(), result.error());
+         return result;
+      }finally{
+         b.tearDown();
+      }
+   }
+
+   private int calibrate(Benchmark b) throws Exception {
+      int batch = 1;
+      while (batch < (1 << 20)) {
+         b.beforeBatch();
+         long start = System.nanoTime();
+         sink += b.run(batch);
+         long elapsed = System.nanoTime() - start;
+         b.afterBatch();
+         if (elapsed >= 1000000L) {
+            break;
+         }
+         batch *= 2;
+      }
+      return batch;
+   }
+
+   // returns { elapsed nanoseconds, operations }
+   private long[] iteration(Benchmark b, int batch) throws Exception {
+      long deadline = System.nanoTime() + iterationMillis * 1000000L;
+      long elapsed = 0;
+      long ops = 0;
+      do {
+         b.beforeBatch();
+         long start = System.nanoTime();
+         sink += b.run(batch);
+         elapsed += System.nanoTime() - start;
+         b.afterBatch();
+         ops += batch;
+      } while (System.nanoTime() < deadline);
+      return new long[] { elapsed, ops };
+   }
+
+   static void writeJson(Writer out, List<Result> results) throws IOException {
+      StringBuilder text = new StringBuilder(1024);
+      Json json = new Json(text);
+      json.beginObject()
+         .field("timestamp", new Timestamp(System.currentTimeMillis()).toString())
+         .field("jvm", System.getProperty("java.vm.name") + " " + System.getProperty("java.version"))
+         .beginArray("results");
+      for (int i = 0; i < results.size(); i++) {
+         Result r = results.get(i);
+         json.beginObject()
+            .field("benchmark", r.name).field("mode", "avgt").field("unit", "ns/op")
+            .field("iterations", r.scores.length).field("ops", r.ops)
+            .field("score", r.mean()).field("error", r.error()).field("stdev", r.stdev())
+            .field("min", r.min()).field("max", r.max())
+            .endObject();
+      }
+      json.endArray().endObject();
+      out.write(text.append('\n').toString());
+   }
+
+   static void writeCsv(Writer out, List<Result> results) throws IOException {
+      StringBuilder text = new StringBuilder(1024);
+      text.append("benchmark,mode,unit,iterations,ops,score,error,stdev,min,max\n");
+      for (int i = 0; i < results.size(); i++) {
+         Result r = results.get(i);
+         text.append(r.name).append(",avgt,ns/op,").append(r.scores.length).append(',').append(r.ops)
+            .append(',').append(r.mean()).append(',').append(r.error()).append(',').append(r.stdev())
+            .append(',').append(r.min()).append(',').append(r.max()).append('\n');
+      }
+      out.write(text.toString());
+   }
+
+   // ----------benchmarks----------
+
+   /**
+    * Retail.calculateDistance over a fixed set of random coordinate pairs.
+    */
+   static class DistanceBench extends Benchmark {
+      final double[] coords = new double[4 * 1024];
+
+      DistanceBench() {
+         super("calculateDistance", false);
+      }
+
+      void setUp() {
+         Random random = new Random(42);
+         for (int i = 0; i < coords.length; i++) {
+            coords[i] = random.nextDouble() * 100.0;
+         }
+      }
+
+      long run(int ops) {
+         double sum = 0;
+         int mask = coords.length / 4 - 1;
+         for (int i = 0; i < ops; i++) {
+            int j = (i & mask) * 4;
+            sum += Retail.calculateDistance(coords[j], coords[j + 1], coords[j + 2], coords[j + 3]);
+         }
+         return (long) sum;
+      }
+   }//end DistanceBench
+
+   /**
+    * The "stores within 30 miles" lookup returnStores does, against the
+    * real stores when a database is given and 10,000 random ones otherwise.
+    */
+   class StoreRadiusBench extends Benchmark {
+      StoreIndex index;
+      final double[] points = new double[2 * 1024];
+
+      StoreRadiusBench() {
+         super("storeRadius", false);
+      }
+
+      void setUp() throws Exception {
+         Random random = new Random(42);
+         if (esql != null) {
+            index = esql.getStoreIndex();
+         } else {
+            index = new StoreIndex(Retail.STORE_RADIUS);
+            for (int i = 1; i <= 10000; i++) {
+               index.put(new StoreIndex.Entry(i, "Store " + i, random.nextDouble() * 100.0, random.nextDouble() * 100.0, 0));
+            }
+         }
+         for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextDouble() * 100.0;
+         }
+      }
+
+      long run(int ops) {
+         long found = 0;
+         int mask = points.length / 2 - 1;
+         for (int i = 0; i < ops; i++) {
+            int j = (i & mask) * 2;
+            found += index.within(points[j], points[j + 1], Retail.STORE_RADIUS).size();
+         }
+         return found;
+      }
+   }//end StoreRadiusBench
+
+   /**
+    * Reads a store's product listing into memory, either as strings through
+    * executeQueryAndReturnResult or as typed rows through executeQueryAndMap.
+    */
+   class MaterializeBench extends Benchmark {
+      final boolean typed;
+      List<Integer> storeIDs;
+
+      MaterializeBench(String name, boolean typed) {
+         super(name, true);
+         this.typed = typed;
+      }
+
+      void setUp() throws Exception {
+         storeIDs = esql.executeQueryAndMap("SELECT storeID FROM Store ORDER BY storeID", Rows.INT);
+         if (storeIDs.isEmpty()) {
+            throw new IllegalStateException("The Store table is empty; seed the database first");
+         }
+      }
+
+      long run(int ops) throws Exception {
+         String query = "SELECT " + Rows.PRODUCT_COLUMNS + " FROM Product WHERE storeID = ?";
+         long rows = 0;
+         for (int i = 0; i < ops; i++) {
+            int storeID = storeIDs.get(i % storeIDs.size());
+            rows += typed ? esql.executeQueryAndMap(query, Rows.PRODUCT, storeID).size()
+                          : esql.executeQueryAndReturnResult(query, storeID).size();
+         }
+         return rows;
+      }
+   }//end MaterializeBench
+
+   /**
+    * OrderEngine.placeOrder end to end: stock check, decrement, order insert
+    * and popularity upserts.  Each batch runs in a transaction that is
+    * rolled back, after the product's stock is raised so no order fails.
+    */
+   class PlaceOrderBench extends Benchmark {
+      int customerID;
+      int storeID;
+      String productName;
+
+      PlaceOrderBench() {
+         super("placeOrder", true);
+      }
+
+      void setUp() throws Exception {
+         List<Integer> customers = esql.executeQueryAndMap("SELECT userID FROM Users ORDER BY userID LIMIT 1", Rows.INT);
+         List<Rows.Product> products = esql.executeQueryAndMap(
+            "SELECT " + Rows.PRODUCT_COLUMNS + " FROM Product ORDER BY storeID, productName LIMIT 1", Rows.PRODUCT);
+         if (customers.isEmpty() || products.isEmpty()) {
+            throw new IllegalStateException("The Users or Product table is empty; seed the database first");
+         }
+         customerID = customers.get(0);
+         storeID = products.get(0).storeID;
+         productName = products.get(0).productName;
+      }
+
+      void beforeBatch() throws Exception {
+         esql.getPool().begin();
+         esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+            Integer.MAX_VALUE, storeID, productName);
+      }
+
+      void afterBatch() throws Exception {
+         esql.getPool().rollback();
+      }
+
+      long run(int ops) throws Exception {
+         long placed = 0;
+         for (int i = 0; i < ops; i++) {
+            OrderEngine.Receipt receipt = esql.getOrderEngine().placeOrder(customerID, storeID, productName, 1);
+            placed += receipt == null ? 0 : receipt.orderNumber;
+         }
+         return placed;
+      }
+
+      void tearDown() throws Exception {
+         if (esql.getPool().inTransaction()) {
+            esql.getPool().rollback();
+         }
+      }
+   }//end PlaceOrderBench
+
+   /**
+    * The popular products report as a manager sees it.
+    */
+   class PopularProductsBench extends Benchmark {
+      Session manager;
+
+      PopularProductsBench() {
+         super("viewPopularProducts", true);
+      }
+
+      void setUp() throws Exception {
+         List<Integer> managers = esql.executeQueryAndMap(
+            "SELECT managerID FROM Store GROUP BY managerID ORDER BY COUNT(*) DESC, managerID LIMIT 1", Rows.INT);
+         if (managers.isEmpty()) {
+            throw new IllegalStateException("The Store table is empty; seed the database first");
+         }
+         manager = Session.reload(esql, managers.get(0));
+      }
+
+      long run(int ops) throws Exception {
+         long total = 0;
+         for (int i = 0; i < ops; i++) {
+            List<Rows.Total> top = esql.popularProducts(manager);
+            total += top.isEmpty() ? 0 : top.get(0).total;
+         }
+         return total;
+      }
+   }//end PopularProductsBench
+
+}//end RetailBench
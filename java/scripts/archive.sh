@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+# moves the monthly Orders partitions older than the given number of months
+# (12 without one) to gzipped CSV files, one per month, and drops them
+# usage: archive.sh [months to keep]
+java -Dretail.archive.dir=${ARCHIVE_DIR:-$DIR/../archive} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER --archive ${1:-12}
@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program together with the benchmarks
+mkdir -p $DIR/../bench/classes
+javac -d $DIR/../bench/classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java $DIR/../bench/*.java
+
+# run every benchmark against the seeded database and keep the results as
+# JSON, one file per run; extra arguments are passed through (e.g. --only placeOrder)
+OUT=$DIR/../bench/results-$(date +%Y%m%d-%H%M%S).json
+java -cp $DIR/../bench/classes:$DIR/../lib/pg73jdbc3.jar RetailBench --db $USER"_DB" $PGPORT $USER --out $OUT "$@" && echo "Results written to $OUT"
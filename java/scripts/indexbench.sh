@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program together with the benchmarks
+mkdir -p $DIR/../bench/classes
+javac -d $DIR/../bench/classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java $DIR/../bench/*.java
+
+# explain every menu operation's statements with only the primary keys and
+# with the tuned index set, and keep the comparison as JSON; both sides are
+# rolled back, so run it against a benchmark database (e.g. one loaded by
+# sql/scripts/loadGeneratedDB.sh); extra arguments are passed through
+# (e.g. --runs 5 --only logIn,viewRecentOrders)
+OUT=$DIR/../bench/indexes-$(date +%Y%m%d-%H%M%S).json
+java -cp $DIR/../bench/classes:$DIR/../lib/pg73jdbc3.jar IndexBench --db $USER"_DB" $PGPORT $USER \
+   --indexes $DIR/../../sql/src/create_indexes.sql --out $OUT "$@" && echo "Results written to $OUT"
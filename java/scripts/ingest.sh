@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+# bulk load offline orders (customerID,storeID,productName,unitsOrdered[,orderTime]);
+# rejected orders are printed as JSON lines, the totals go to stderr
+# usage: ingest.sh [orders.csv]   (reads the orders from stdin without one)
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER --ingest ${1:--}
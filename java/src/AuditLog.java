@@ -0,0 +1,395 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind for the ProductUpdates audit trail.  A manager's update only
+ * waits for its Product row; the audit entry goes onto a bounded queue that
+ * one writer thread drains into multi-row inserts of up to BATCH entries.
+ *
+ * No entry is lost: one that does not fit in the queue, and whatever is
+ * still queued or failing to insert when the log is closed, is appended to
+ * a local spill file instead.  The spill file is replayed into
+ * ProductUpdates, and removed, the next time the log starts.
+ *
+ * Only failures of the connection or the server are retried.  When a batch
+ * fails otherwise, its entries are inserted one by one, and an entry that
+ * fails on its own, such as one naming a product deleted since, goes to a
+ * reject file with the error instead of holding up the entries behind it.
+ * The bundled driver reports no SQLSTATE, so a failure without one counts
+ * as the connection's if a trivial query fails too.
+ *
+ * An entry is stamped with the time it was recorded, not the time it was
+ * inserted, so the trail keeps the order the updates were made in.
+ *
+ */
+public class AuditLog {
+
+   static final int BATCH = 500;
+
+   // how long a failed insert waits before it is retried
+   static final long RETRY_MILLIS = 1000;
+
+   /**
+    * One ProductUpdates row.
+    */
+   static class Entry {
+      final int managerID;
+      final int storeID;
+      final String productName;
+      final Timestamp updatedOn;
+
+      Entry(int managerID, int storeID, String productName, Timestamp updatedOn) {
+         this.managerID = managerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.updatedOn = updatedOn;
+      }
+   }//end Entry
+
+   private final Retail esql;
+   private final BlockingQueue<Entry> queue;
+   private final File spillFile;
+   private final File rejectFile;
+   private final long closeMillis;
+   private final Object drained = new Object();
+   // entries recorded but not yet inserted or spilled
+   private int pending = 0;
+   private volatile boolean closing = false;
+   private Thread writer = null;
+
+   /**
+    * @param esql the database the entries are written to
+    * @param capacity how many entries may wait in memory
+    * @param spillFile where entries go when they cannot be written in time
+    * @param rejectFile where entries go that can never be written
+    * @param closeMillis how long close waits for the queue to drain
+    */
+   public AuditLog(Retail esql, int capacity, File spillFile, File rejectFile, long closeMillis) {
+      this.esql = esql;
+      this.queue = new ArrayBlockingQueue<Entry>(Math.max(capacity, BATCH));
+      this.spillFile = spillFile;
+      this.rejectFile = rejectFile;
+      this.closeMillis = closeMillis;
+   }
+
+   /**
+    * Replays the spill file left by an earlier run, then starts the writer
+    * thread.  If the replay fails the entries it did not write are kept in
+    * the spill file for the next start.  Later calls do nothing.
+    */
+   public synchronized void start() {
+      if (writer != null) {
+         return;
+      }
+      try {
+         replaySpill();
+      } catch (Exception e) {
+         System.err.println("Warning - Unable to replay the audit entries in " + spillFile + ": " + e.getMessage());
+      }
+      writer = new Thread(new Runnable() {
+         public void run() {
+            drain();
+         }
+      }, "retail-audit");
+      writer.setDaemon(true);
+      writer.start();
+      // a process that ends without cleanup, or is stopped with ^C, still
+      // drains or spills the queue
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            close();
+         }
+      });
+   }
+
+   /**
+    * Records that a manager changed a product, now.  Returns at once.
+    */
+   public void record(int managerID, int storeID, String productName) {
+      long now = System.currentTimeMillis();
+      Entry entry = new Entry(managerID, storeID, productName, new Timestamp(now - now % 1000));
+      synchronized (drained) {
+         pending++;
+      }
+      if (closing || !queue.offer(entry)) {
+         List<Entry> one = new ArrayList<Entry>(1);
+         one.add(entry);
+         spill(one);
+      }
+   }
+
+   /**
+    * Waits until every entry recorded so far has been inserted or spilled,
+    * so a reader of ProductUpdates sees them.
+    *
+    * @return false if that did not happen within timeoutMillis
+    */
+   public boolean flush(long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized (drained) {
+         while (pending > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+               return false;
+            }
+            drained.wait(left);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Stops the writer after it has drained the queue, or after closeMillis,
+    * and spills whatever is left.  Call it before the connection pool is
+    * closed.
+    */
+   public void close() {
+      Thread thread;
+      synchronized (this) {
+         if (closing) {
+            return;
+         }
+         closing = true;
+         thread = writer;
+      }
+      if (thread != null) {
+         try {
+            thread.join(closeMillis);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         thread.interrupt();
+      }
+      List<Entry> rest = new ArrayList<Entry>();
+      queue.drainTo(rest);
+      spill(rest);
+   }
+
+   // the writer thread: one batch at a time until closed and empty
+   private void drain() {
+      Retail.METRICS.setOperation("auditLog");
+      List<Entry> batch = new ArrayList<Entry>(BATCH);
+      while (true) {
+         try {
+            if (batch.isEmpty()) {
+               Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+               if (first == null) {
+                  if (closing) {
+                     return;
+                  }
+                  continue;
+               }
+               batch.add(first);
+               queue.drainTo(batch, BATCH - 1);
+            }
+            int size = batch.size();
+            try {
+               write(batch);
+            } finally {
+               done(size - batch.size());
+            }
+         } catch (SQLException e) {
+            if (closing) {
+               spill(batch);
+               return;
+            }
+            System.err.println("Unable to write the audit log, retrying: " + e.getMessage());
+            if (!pause(RETRY_MILLIS)) {
+               spill(batch);
+               return;
+            }
+         } catch (InterruptedException e) {
+            // close gave up waiting; it spills the queue, the batch is ours
+            spill(batch);
+            return;
+         }
+      }//end while
+   }
+
+   private boolean pause(long millis) {
+      try {
+         Thread.sleep(millis);
+         return true;
+      } catch (InterruptedException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Inserts a batch, falling back to one entry at a time if the batch
+    * fails for a reason other than the connection.  Entries are removed
+    * from the batch as they are inserted or rejected, so when a retryable
+    * failure is thrown the batch holds the ones still to write.
+    */
+   private void write(List<Entry> batch) throws SQLException {
+      try {
+         insert(batch);
+         batch.clear();
+         return;
+      } catch (SQLException e) {
+         if (retryable(e)) {
+            throw e;
+         }
+      }
+      while (!batch.isEmpty()) {
+         try {
+            insert(batch.subList(0, 1));
+         } catch (SQLException e) {
+            if (retryable(e)) {
+               throw e;
+            }
+            reject(batch.get(0), e);
+         }
+         batch.remove(0);
+      }//end while
+   }
+
+   // whether a failed insert may succeed later: the connection or the
+   // server failed, not the entries
+   private boolean retryable(SQLException e) {
+      String state = e.getSQLState();
+      if (state != null) {
+         // connection exception, transaction rollback, insufficient
+         // resources, operator intervention
+         return state.startsWith("08") || state.startsWith("40") || state.startsWith("53") || state.startsWith("57");
+      }
+      try {
+         esql.executeQuery("SELECT 1");
+         return false;
+      } catch (SQLException probe) {
+         return true;
+      }
+   }
+
+   private void insert(List<Entry> batch) throws SQLException {
+      Object[] params = new Object[batch.size() * 4];
+      for (int i = 0; i < batch.size(); i++) {
+         Entry entry = batch.get(i);
+         params[i * 4] = entry.managerID;
+         params[i * 4 + 1] = entry.storeID;
+         params[i * 4 + 2] = entry.productName;
+         params[i * 4 + 3] = entry.updatedOn;
+      }
+      esql.executeUpdate(insertSql(batch.size()), params);
+   }
+
+   static String insertSql(int rows) {
+      StringBuilder sql = new StringBuilder(80 + rows * 40);
+      sql.append("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES ");
+      for (int i = 0; i < rows; i++) {
+         sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, CAST(? AS timestamp))");
+      }
+      return sql.toString();
+   }
+
+   private void done(int entries) {
+      synchronized (drained) {
+         pending -= entries;
+         drained.notifyAll();
+      }
+   }
+
+   // appends entries to the spill file, one JSON object per line
+   private void spill(List<Entry> entries) {
+      if (entries.isEmpty()) {
+         return;
+      }
+      StringBuilder text = new StringBuilder(entries.size() * 100);
+      for (int i = 0; i < entries.size(); i++) {
+         json(text, entries.get(i)).endObject();
+         text.append('\n');
+      }
+      append(spillFile, text, false);
+      done(entries.size());
+   }
+
+   // appends an entry that can never be inserted to the reject file, with
+   // the error it failed with
+   private void reject(Entry entry, SQLException e) {
+      StringBuilder text = new StringBuilder(160);
+      json(text, entry).field("error", e.getMessage()).endObject();
+      text.append('\n');
+      System.err.println("Rejected an audit entry for " + entry.storeID + "/" + entry.productName + ": " + e.getMessage());
+      append(rejectFile, text, false);
+   }
+
+   private static Json json(StringBuilder text, Entry entry) {
+      return new Json(text).beginObject().field("managerID", entry.managerID).field("storeID", entry.storeID)
+         .field("productName", entry.productName).field("updatedOn", Rows.format(entry.updatedOn));
+   }
+
+   private static void append(File file, StringBuilder text, boolean replace) {
+      synchronized (AuditLog.class) {
+         try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file, !replace), "UTF-8");
+            try {
+               out.write(text.toString());
+            } finally {
+               out.close();
+            }
+         } catch (IOException e) {
+            // nowhere left to put them; at least say what was lost
+            System.err.print("Unable to write audit entries to " + file + ": " + e.getMessage() + "\n" + text);
+         }
+      }
+   }
+
+   // inserts the entries a previous run spilled, a batch at a time; on a
+   // retryable failure the spill file is cut down to the entries not
+   // written yet
+   private void replaySpill() throws SQLException, IOException {
+      if (!spillFile.exists()) {
+         return;
+      }
+      List<Entry> entries = new ArrayList<Entry>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(spillFile), "UTF-8"));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            if (line.trim().length() == 0) {
+               continue;
+            }
+            Map<String, String> fields = Json.parseObject(line);
+            entries.add(new Entry(Integer.parseInt(fields.get("managerID")), Integer.parseInt(fields.get("storeID")),
+                                  fields.get("productName"), Timestamp.valueOf(fields.get("updatedOn"))));
+         }//end while
+      } finally {
+         in.close();
+      }
+      for (int from = 0; from < entries.size(); from += BATCH) {
+         int to = Math.min(entries.size(), from + BATCH);
+         List<Entry> batch = new ArrayList<Entry>(entries.subList(from, to));
+         try {
+            write(batch);
+         } catch (SQLException e) {
+            batch.addAll(entries.subList(to, entries.size()));
+            StringBuilder text = new StringBuilder(batch.size() * 100);
+            for (int i = 0; i < batch.size(); i++) {
+               json(text, batch.get(i)).endObject();
+               text.append('\n');
+            }
+            append(spillFile, text, true);
+            throw e;
+         }
+      }//end for
+      if (!spillFile.delete()) {
+         throw new IOException("Replayed " + spillFile + " but could not remove it");
+      }
+      System.err.println("Replayed " + entries.size() + " audit entries from " + spillFile);
+   }
+
+}//end AuditLog
@@ -0,0 +1,501 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs Retail operations from a script instead of the interactive menus, and
+ * writes one JSON object per command.
+ *
+ * A script line is either a JSON object such as
+ * {"cmd":"order","store":2,"product":"Pepsi","qty":5}, or one or more
+ * commands separated by ';', each a command name followed by key=value or
+ * positional arguments:
+ *
+ *    login Amy xyz; order store=2 product=Pepsi qty=5
+ *    checkout store=2 items="Pepsi:5,7up:2"
+ *    update-product store=2 product="Diet Coke" units=40
+ *
+ * Blank lines and lines starting with '#' are skipped.  The runner keeps its
+ * own session, so several runners can share one Retail instance.
+ *
+ */
+public class BatchRunner {
+
+   // argument names per command, in positional order
+   private static final Map<String, String[]> COMMANDS = new LinkedHashMap<String, String[]>();
+   static {
+      COMMANDS.put("login", new String[] { "name", "password" });
+      COMMANDS.put("logout", new String[0]);
+      COMMANDS.put("create-user", new String[] { "name", "password", "latitude", "longitude" });
+      COMMANDS.put("stores", new String[0]);
+      COMMANDS.put("products", new String[] { "store" });
+      COMMANDS.put("find", new String[] { "term", "limit" });
+      COMMANDS.put("order", new String[] { "store", "product", "qty" });
+      COMMANDS.put("checkout", new String[] { "store", "items" });
+      COMMANDS.put("recent-orders", new String[] { "limit" });
+      COMMANDS.put("update-product", new String[] { "store", "product", "units", "price" });
+      COMMANDS.put("recent-updates", new String[] { "limit" });
+      COMMANDS.put("popular-products", new String[0]);
+      COMMANDS.put("popular-customers", new String[0]);
+      COMMANDS.put("warehouses", new String[] { "store" });
+      COMMANDS.put("supply", new String[] { "store", "product", "qty", "warehouse" });
+      COMMANDS.put("await-supply", new String[] { "timeout" });
+      COMMANDS.put("hot", new String[] { "store", "product", "on" });
+   }
+
+   // largest page the recent-* commands return
+   static final int MAX_LIMIT = 1000;
+
+   /**
+    * One parsed command: its name and its arguments by name.
+    */
+   public static class Command {
+      public final String name;
+      public final Map<String, String> args;
+
+      public Command(String name, Map<String, String> args) {
+         this.name = name;
+         this.args = args;
+      }
+   }//end Command
+
+   private final Retail esql;
+   private final Appendable out;
+   private Session session = null;
+   private int executed = 0;
+   private int failures = 0;
+
+   /**
+    * @param esql the shared database and caches
+    * @param out where the JSON results go, one line per command
+    */
+   public BatchRunner(Retail esql, Appendable out) {
+      this.esql = esql;
+      this.out = out;
+   }
+
+   /**
+    * Runs every command in a script.  A failed command is reported and the
+    * script carries on.
+    *
+    * @return the number of commands that failed
+    * @throws java.io.IOException when the script could not be read or the
+    *         results could not be written
+    */
+   public int run(BufferedReader script) throws IOException {
+      String line;
+      while ((line = script.readLine()) != null) {
+         runLine(line);
+      }
+      return failures;
+   }
+
+   /**
+    * Runs the commands on one script line.
+    *
+    * @throws java.io.IOException when the results could not be written
+    */
+   public void runLine(String line) throws IOException {
+      String text = line.trim();
+      if (text.length() == 0 || text.startsWith("#")) {
+         return;
+      }
+      List<Command> commands;
+      try {
+         commands = parse(text);
+      } catch (IllegalArgumentException e) {
+         report(null, 0, e);
+         return;
+      }
+      for (int i = 0; i < commands.size(); i++) {
+         execute(commands.get(i));
+      }
+   }
+
+   /**
+    * @return the session the script logged in with, or null
+    */
+   public Session getSession() {
+      return session;
+   }
+
+   /**
+    * @return how many commands have failed so far
+    */
+   public int getFailures() {
+      return failures;
+   }
+
+   /**
+    * Parses one script line into commands.
+    *
+    * @throws IllegalArgumentException when the line is not a valid command
+    */
+   public static List<Command> parse(String line) {
+      List<Command> commands = new ArrayList<Command>();
+      String text = line.trim();
+      if (text.startsWith("{")) {
+         Map<String, String> args = Json.parseObject(text);
+         String name = args.remove("cmd");
+         if (name == null) {
+            throw new IllegalArgumentException("Missing \"cmd\": " + text);
+         }
+         commands.add(command(name, args, new ArrayList<String>()));
+         return commands;
+      }
+      List<String> tokens = new ArrayList<String>();
+      List<List<String>> statements = new ArrayList<List<String>>();
+      statements.add(tokens);
+      StringBuilder token = null;
+      char quote = 0;
+      for (int i = 0; i <= text.length(); i++) {
+         char c = i < text.length() ? text.charAt(i) : ';';
+         if (quote != 0 && i < text.length()) {
+            if (c == quote) {
+               quote = 0;
+            } else {
+               token.append(c);
+            }
+         } else if (c == '"' || c == '\'') {
+            quote = c;
+            if (token == null) {
+               token = new StringBuilder();
+            }
+         } else if (Character.isWhitespace(c) || c == ';') {
+            if (token != null) {
+               tokens.add(token.toString());
+               token = null;
+            }
+            if (c == ';') {
+               tokens = new ArrayList<String>();
+               statements.add(tokens);
+            }
+         } else {
+            if (token == null) {
+               token = new StringBuilder();
+            }
+            token.append(c);
+         }
+      }
+      if (quote != 0) {
+         throw new IllegalArgumentException("Unterminated quote: " + text);
+      }
+      for (int s = 0; s < statements.size(); s++) {
+         List<String> words = statements.get(s);
+         if (words.isEmpty()) {
+            continue;
+         }
+         Map<String, String> args = new HashMap<String, String>();
+         List<String> positional = new ArrayList<String>();
+         for (int i = 1; i < words.size(); i++) {
+            String word = words.get(i);
+            int eq = word.indexOf('=');
+            if (eq > 0) {
+               args.put(word.substring(0, eq), word.substring(eq + 1));
+            } else {
+               positional.add(word);
+            }
+         }
+         commands.add(command(words.get(0), args, positional));
+      }
+      return commands;
+   }
+
+   private static Command command(String name, Map<String, String> args, List<String> positional) {
+      String[] params = COMMANDS.get(name.toLowerCase());
+      if (params == null) {
+         throw new IllegalArgumentException("Unknown command: " + name + " (expected one of " + COMMANDS.keySet() + ")");
+      }
+      if (positional.size() > params.length) {
+         throw new IllegalArgumentException(name + " takes at most " + params.length + " arguments");
+      }
+      for (String key : args.keySet()) {
+         if (!contains(params, key)) {
+            throw new IllegalArgumentException(name + " has no argument " + key);
+         }
+      }
+      for (int i = 0; i < positional.size(); i++) {
+         args.put(params[i], positional.get(i));
+      }
+      return new Command(name.toLowerCase(), args);
+   }
+
+   private static boolean contains(String[] values, String value) {
+      for (int i = 0; i < values.length; i++) {
+         if (values[i].equals(value)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Runs one command and writes its result line.
+    *
+    * @return true if the command succeeded
+    * @throws java.io.IOException when the result could not be written
+    */
+   public boolean execute(Command command) throws IOException {
+      long start = System.nanoTime();
+      // the result fields are collected apart so a failure halfway through
+      // does not leave half a result in the line
+      StringBuilder result = new StringBuilder(256);
+      // the statements it runs are counted under the command's name
+      String previous = Retail.METRICS.setOperation(command.name);
+      try {
+         perform(command, new Json(result));
+      } catch (Exception e) {
+         report(command, start, e);
+         return false;
+      } finally {
+         Retail.METRICS.setOperation(previous);
+      }
+      StringBuilder line = new StringBuilder(result.length() + 64);
+      new Json(line).beginObject().field("n", ++executed).field("cmd", command.name)
+         .field("ok", true).field("ms", elapsedMillis(start));
+      if (result.length() > 0) {
+         line.append(',').append(result);
+      }
+      out.append(line).append('}').append('\n');
+      return true;
+   }
+
+   private void report(Command command, long start, Exception e) throws IOException {
+      failures++;
+      StringBuilder line = new StringBuilder(256);
+      Json json = new Json(line).beginObject().field("n", ++executed)
+         .field("cmd", command == null ? null : command.name).field("ok", false);
+      if (start != 0) {
+         json.field("ms", elapsedMillis(start));
+      }
+      String message = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+      json.field("error", message.trim()).endObject();
+      out.append(line).append('\n');
+   }
+
+   private static double elapsedMillis(long start) {
+      return Math.round((System.nanoTime() - start) / 1000.0) / 1000.0;
+   }
+
+   // writes the command's result fields, without enclosing braces
+   private void perform(Command c, Json result) throws Exception {
+      if (c.name.equals("login")) {
+         Session user = Session.logIn(esql, text(c, "name"), text(c, "password"));
+         if (user == null) {
+            throw new IllegalArgumentException("Wrong user name or password");
+         }
+         session = user;
+         result.field("userID", user.userID).field("type", user.type);
+         return;
+      }
+      if (c.name.equals("create-user")) {
+         esql.createUser(text(c, "name"), text(c, "password"), number(c, "latitude"), number(c, "longitude"));
+         return;
+      }
+      Session user = loggedIn();
+      if (c.name.equals("logout")) {
+         session = null;
+      } else if (c.name.equals("stores")) {
+         List<StoreIndex.Hit> hits = esql.nearbyStores(user);
+         result.beginArray("stores");
+         for (int i = 0; i < hits.size(); i++) {
+            StoreIndex.Hit hit = hits.get(i);
+            result.beginObject().field("storeID", hit.store.storeID).field("name", hit.store.name)
+               .field("distance", hit.distance).endObject();
+         }
+         result.endArray();
+      } else if (c.name.equals("products")) {
+         List<Rows.Product> products = esql.getCatalog(integer(c, "store"));
+         result.beginArray("products");
+         for (int i = 0; i < products.size(); i++) {
+            product(result.beginObject(), products.get(i)).endObject();
+         }
+         result.endArray();
+      } else if (c.name.equals("find")) {
+         List<ProductSearch.Hit> hits = esql.searchProducts(user, text(c, "term"));
+         int shown = Math.min(hits.size(), c.args.containsKey("limit") ? limit(c) : Retail.SEARCH_RESULTS_SHOWN);
+         result.field("matches", hits.size()).beginArray("stores");
+         for (int i = 0; i < shown; i++) {
+            ProductSearch.Hit hit = hits.get(i);
+            product(result.beginObject(), hit.product).field("storeName", hit.store.name)
+               .field("distance", hit.distance).endObject();
+         }
+         result.endArray();
+      } else if (c.name.equals("order")) {
+         int storeID = integer(c, "store");
+         Rows.Product product = esql.findProduct(storeID, text(c, "product"));
+         OrderEngine.Receipt receipt = esql.getOrderEngine().placeOrder(user.userID, storeID, product.productName, integer(c, "qty"));
+         if (receipt == null) {
+            esql.getCatalogCache().invalidate(storeID);
+            throw new IllegalStateException("Store " + storeID + " does not have " + integer(c, "qty") + " units of " + product.productName + " left");
+         }
+         esql.getCatalogCache().invalidate(receipt.storeID);
+         result.field("orderNumber", receipt.orderNumber).field("storeID", receipt.storeID)
+            .field("product", receipt.productName).field("units", receipt.unitsOrdered)
+            .field("orderTime", Rows.format(receipt.orderTime));
+      } else if (c.name.equals("checkout")) {
+         int storeID = integer(c, "store");
+         List<OrderEngine.Item> cart = new ArrayList<OrderEngine.Item>();
+         String[] lines = text(c, "items").split(",");
+         for (int i = 0; i < lines.length; i++) {
+            int colon = lines[i].lastIndexOf(':');
+            if (colon < 0) {
+               throw new IllegalArgumentException("items must look like product:qty,product:qty");
+            }
+            Rows.Product product = esql.findProduct(storeID, lines[i].substring(0, colon));
+            try {
+               cart.add(new OrderEngine.Item(product.productName, Integer.parseInt(lines[i].substring(colon + 1).trim())));
+            } catch (NumberFormatException e) {
+               throw new IllegalArgumentException("qty must be a whole number: " + lines[i]);
+            }
+         }
+         OrderEngine.Checkout checkout = esql.getOrderEngine().checkout(user.userID, storeID, cart);
+         if (!checkout.placed()) {
+            esql.getCatalogCache().invalidate(storeID);
+            throw new IllegalStateException("Store " + storeID + " does not have enough of " + checkout.unavailable + " left; nothing was ordered");
+         }
+         esql.getCatalogCache().invalidate(storeID);
+         result.beginArray("orders");
+         for (int i = 0; i < checkout.receipts.size(); i++) {
+            OrderEngine.Receipt receipt = checkout.receipts.get(i);
+            result.beginObject().field("orderNumber", receipt.orderNumber).field("product", receipt.productName)
+               .field("units", receipt.unitsOrdered).field("orderTime", Rows.format(receipt.orderTime)).endObject();
+         }
+         result.endArray();
+      } else if (c.name.equals("recent-orders")) {
+         List<Rows.RecentOrder> orders = esql.getRecentActivity().orders(user.userID, null, limit(c));
+         result.beginArray("orders");
+         for (int i = 0; i < orders.size(); i++) {
+            Rows.RecentOrder o = orders.get(i);
+            result.beginObject().field("orderNumber", o.orderNumber).field("storeID", o.storeID)
+               .field("storeName", o.storeName).field("product", o.productName)
+               .field("units", o.unitsOrdered).field("orderTime", Rows.format(o.orderTime)).endObject();
+         }
+         result.endArray();
+      } else if (c.name.equals("update-product")) {
+         Rows.Product product = esql.findProduct(integer(c, "store"), text(c, "product"));
+         int units = c.args.containsKey("units") ? integer(c, "units") : product.numberOfUnits;
+         double price = c.args.containsKey("price") ? number(c, "price") : product.pricePerUnit;
+         product(result, esql.applyProductUpdate(user, product, units, price));
+      } else if (c.name.equals("recent-updates")) {
+         requireManager(user);
+         List<Rows.ProductUpdate> updates = esql.getRecentActivity().updates(user, null, limit(c));
+         result.beginArray("updates");
+         for (int i = 0; i < updates.size(); i++) {
+            Rows.ProductUpdate u = updates.get(i);
+            result.beginObject().field("updateNumber", u.updateNumber).field("managerID", u.managerID)
+               .field("storeID", u.storeID).field("product", u.productName)
+               .field("updatedOn", Rows.format(u.updatedOn)).endObject();
+         }
+         result.endArray();
+      } else if (c.name.equals("popular-products")) {
+         requireManager(user);
+         totals(result, "products", esql.popularProducts(user));
+      } else if (c.name.equals("popular-customers")) {
+         requireManager(user);
+         totals(result, "customers", esql.popularCustomers(user));
+      } else if (c.name.equals("warehouses")) {
+         requireManager(user);
+         List<WarehouseRouter.Route> routes = esql.getWarehouseRouter().rank(integer(c, "store"));
+         result.beginArray("warehouses");
+         for (int i = 0; i < routes.size(); i++) {
+            WarehouseRouter.Route route = routes.get(i);
+            result.beginObject().field("warehouseID", route.warehouse.warehouseID)
+               .field("distance", route.distance).field("area", route.warehouse.area).endObject();
+         }
+         result.endArray();
+      } else if (c.name.equals("supply")) {
+         int storeID = integer(c, "store");
+         Rows.Product product = esql.findProduct(storeID, text(c, "product"));
+         // without a warehouse the store's nearest one is used
+         int warehouseID = c.args.containsKey("warehouse") ? integer(c, "warehouse")
+            : esql.nearestWarehouse(storeID).warehouse.warehouseID;
+         int requestNumber = esql.requestSupply(user, storeID, product.productName, integer(c, "qty"), warehouseID);
+         result.field("requestNumber", requestNumber).field("warehouseID", warehouseID).field("status", "queued");
+      } else if (c.name.equals("hot")) {
+         // moves a product's stock onto the stripes for a promotion (on=false moves it back)
+         int storeID = integer(c, "store");
+         if (!user.canManage(storeID)) {
+            throw new IllegalStateException("Not allowed to manage store " + storeID);
+         }
+         Rows.Product product = esql.findProduct(storeID, text(c, "product"));
+         if (!c.args.containsKey("on") || Boolean.parseBoolean(text(c, "on"))) {
+            esql.getInventory().makeHot(storeID, product.productName);
+         } else {
+            esql.getInventory().makeCold(storeID, product.productName);
+         }
+         result.field("storeID", storeID).field("product", product.productName)
+            .field("hot", esql.getInventory().isHot(storeID, product.productName));
+      } else if (c.name.equals("await-supply")) {
+         // waits, up to timeout milliseconds, for every queued request to be delivered
+         requireManager(user);
+         long timeout = c.args.containsKey("timeout") ? integer(c, "timeout") : 30000;
+         boolean delivered = esql.getSupplyPipeline().flush(timeout);
+         result.field("delivered", delivered).field("pending", esql.getSupplyPipeline().pending());
+      }
+   }
+
+   private static Json product(Json result, Rows.Product p) {
+      return result.field("storeID", p.storeID).field("product", p.productName)
+         .field("units", p.numberOfUnits).field("price", p.pricePerUnit);
+   }
+
+   private static void totals(Json result, String name, List<Rows.Total> totals) {
+      result.beginArray(name);
+      for (int i = 0; i < totals.size(); i++) {
+         result.beginObject().field("storeID", totals.get(i).storeID).field("key", totals.get(i).key)
+            .field("total", totals.get(i).total).endObject();
+      }
+      result.endArray();
+   }
+
+   // the session, re-read if a write since login may have changed it
+   private Session loggedIn() throws SQLException {
+      session = esql.current(session);
+      if (session == null) {
+         throw new IllegalStateException("Not logged in");
+      }
+      return session;
+   }
+
+   private static void requireManager(Session user) {
+      if (!user.isManager()) {
+         throw new IllegalStateException("Must be logged in as a manager or administrator");
+      }
+   }
+
+   private static String text(Command c, String name) {
+      String value = c.args.get(name);
+      if (value == null) {
+         throw new IllegalArgumentException(c.name + " needs " + name);
+      }
+      return value;
+   }
+
+   private static int integer(Command c, String name) {
+      try {
+         return Integer.parseInt(text(c, name).trim());
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException(name + " must be a whole number: " + c.args.get(name));
+      }
+   }
+
+   private static double number(Command c, String name) {
+      try {
+         return Double.parseDouble(text(c, name).trim());
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException(name + " must be a number: " + c.args.get(name));
+      }
+   }
+
+   private static int limit(Command c) {
+      int limit = c.args.containsKey("limit") ? integer(c, "limit") : Retail.RECENT_PAGE;
+      return Math.max(1, Math.min(limit, MAX_LIMIT));
+   }
+
+}//end BatchRunner
@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of each store's product listing, keyed by storeID.
+ * Writes made by this process drop the store's listing once they have
+ * committed, so the next read reloads it.  A listing is never patched in
+ * place: a write reported after a later write, or after a reload that
+ * already saw it, would be applied twice or undo the later one.  Entries
+ * also expire after a time-to-live, which bounds how stale a listing can
+ * get when another process changes the Product table.
+ *
+ */
+public class CatalogCache {
+
+   private static class Listing {
+      final List<Rows.Product> products;
+      final long loadedAt;
+
+      Listing(List<Rows.Product> products, long loadedAt) {
+         this.products = products;
+         this.loadedAt = loadedAt;
+      }
+   }//end Listing
+
+   private final int capacity;
+   private final long ttlMillis;
+   private final LinkedHashMap<Integer, Listing> entries;
+
+   // counts writes; a store's last write and the last clear() are stamped
+   // with it, so a load that raced with a write to its store is not cached
+   private long writes = 0;
+   private final Map<Integer, Long> lastWrite = new HashMap<Integer, Long>();
+   private long lastClear = 0;
+
+   /**
+    * @param capacity the number of store listings kept
+    * @param ttlMillis how long a listing is served before it is reloaded
+    */
+   public CatalogCache(final int capacity, long ttlMillis) {
+      this.capacity = capacity;
+      this.ttlMillis = ttlMillis;
+      // access-ordered, evicting the least recently used listing when full
+      this.entries = new LinkedHashMap<Integer, Listing>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Listing> eldest) {
+            return size() > CatalogCache.this.capacity;
+         }
+      };
+   }
+
+   /**
+    * @return the cached listing for a store, or null if it is not cached or
+    *         has expired
+    */
+   public synchronized List<Rows.Product> get(int storeID) {
+      Listing listing = entries.get(storeID);
+      if (listing == null) {
+         return null;
+      }
+      if (System.currentTimeMillis() - listing.loadedAt > ttlMillis) {
+         entries.remove(storeID);
+         return null;
+      }
+      return listing.products;
+   }
+
+   /**
+    * @return a token to pass to put() for a listing loaded after this call
+    */
+   public synchronized long version() {
+      return writes;
+   }
+
+   /**
+    * Caches a freshly loaded listing, unless its store was written, or the
+    * cache cleared, since the load started (as told by the version token).
+    * Writes to other stores do not matter.
+    */
+   public synchronized void put(int storeID, List<Rows.Product> products, long loadedAtVersion) {
+      Long written = lastWrite.get(storeID);
+      if ((written != null && written > loadedAtVersion) || lastClear > loadedAtVersion) {
+         return;
+      }
+      entries.put(storeID, new Listing(Collections.unmodifiableList(new ArrayList<Rows.Product>(products)),
+                                     System.currentTimeMillis()));
+   }
+
+   /**
+    * Drops a store's cached listing.  Call it after every committed write
+    * to the store's Product rows.
+    */
+   public synchronized void invalidate(int storeID) {
+      lastWrite.put(storeID, ++writes);
+      entries.remove(storeID);
+   }
+
+   /**
+    * Drops every cached listing.
+    */
+   public synchronized void clear() {
+      lastClear = ++writes;
+      entries.clear();
+   }
+
+}//end CatalogCache
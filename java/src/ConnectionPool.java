@@ -0,0 +1,223 @@
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of PostgreSQL connections.  Connections are opened lazily up
+ * to the configured maximum; once every connection is out, borrowers wait up
+ * to the acquire timeout for one to come back.
+ *
+ * A thread may also pin a connection with begin() so that every statement it
+ * issues until commit() or rollback() runs in the same transaction.
+ *
+ */
+public class ConnectionPool {
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final int maxSize;
+   private final int statementCacheSize;
+   private final long acquireTimeoutMillis;
+
+   private final LinkedBlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+   private final List<PooledConnection> all = new ArrayList<PooledConnection>();
+   private final ThreadLocal<PooledConnection> pinned = new ThreadLocal<PooledConnection>();
+   // counts connections that are open or being opened
+   private int reserved = 0;
+   private boolean closed = false;
+
+   /**
+    * Creates a pool.  No connection is opened until the first acquire().
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the maximum number of physical connections
+    * @param statementCacheSize the number of PreparedStatements cached per connection
+    * @param acquireTimeoutMillis how long acquire() waits for a free connection
+    */
+   public ConnectionPool(String url, String user, String passwd, int maxSize,
+                         int statementCacheSize, long acquireTimeoutMillis) {
+      if (maxSize < 1) {
+         throw new IllegalArgumentException("pool size must be at least 1: " + maxSize);
+      }
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.maxSize = maxSize;
+      this.statementCacheSize = statementCacheSize;
+      this.acquireTimeoutMillis = acquireTimeoutMillis;
+   }
+
+   /**
+    * Borrows a connection.  If the calling thread has pinned a connection
+    * with begin(), that connection is returned instead.
+    *
+    * @return a connection that must be handed back with release()
+    * @throws java.sql.SQLException when no connection became free in time or
+    *         a new connection could not be opened
+    */
+   public PooledConnection acquire() throws SQLException {
+      PooledConnection conn = pinned.get();
+      if (conn != null) {
+         return conn;
+      }
+      conn = idle.poll();
+      if (conn != null) {
+         return conn;
+      }
+      if (reserveSlot()) {
+         try {
+            conn = new PooledConnection(DriverManager.getConnection(url, user, passwd), statementCacheSize);
+         } catch (SQLException e) {
+            releaseSlot(null);
+            throw e;
+         }
+         synchronized (this) {
+            all.add(conn);
+         }
+         return conn;
+      }
+      try {
+         conn = idle.poll(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }
+      if (conn == null) {
+         throw new SQLException("Timed out after " + acquireTimeoutMillis + "ms waiting for one of " + maxSize + " database connections");
+      }
+      return conn;
+   }
+
+   private synchronized boolean reserveSlot() throws SQLException {
+      if (closed) {
+         throw new SQLException("Connection pool is closed");
+      }
+      if (reserved < maxSize) {
+         reserved++;
+         return true;
+      }
+      return false;
+   }
+
+   private synchronized void releaseSlot(PooledConnection conn) {
+      reserved--;
+      if (conn != null) {
+         all.remove(conn);
+      }
+   }
+
+   /**
+    * Hands a connection back to the pool.  Releasing the connection the
+    * thread has pinned is a no-op; it is returned by commit() or rollback().
+    */
+   public void release(PooledConnection conn) {
+      if (conn == null || conn == pinned.get()) {
+         return;
+      }
+      try {
+         conn.reset();
+      } catch (SQLException e) {
+         // the connection is broken, drop it and free its slot
+         conn.close();
+         releaseSlot(conn);
+         return;
+      }
+      synchronized (this) {
+         if (closed) {
+            conn.close();
+            return;
+         }
+      }
+      idle.offer(conn);
+   }
+
+   /**
+    * Pins a connection to the calling thread and starts a transaction on it.
+    *
+    * @throws java.sql.SQLException when a transaction is already open on this
+    *         thread or no connection is available
+    */
+   public void begin() throws SQLException {
+      if (pinned.get() != null) {
+         throw new SQLException("A transaction is already open on this thread");
+      }
+      PooledConnection conn = acquire();
+      try {
+         conn.getConnection().setAutoCommit(false);
+      } catch (SQLException e) {
+         release(conn);
+         throw e;
+      }
+      pinned.set(conn);
+   }
+
+   /**
+    * @return true if the calling thread has an open transaction
+    */
+   public boolean inTransaction() {
+      return pinned.get() != null;
+   }
+
+   /**
+    * Commits the calling thread's transaction and returns its connection.
+    */
+   public void commit() throws SQLException {
+      PooledConnection conn = unpin();
+      try {
+         conn.getConnection().commit();
+      } finally {
+         release(conn);
+      }
+   }
+
+   /**
+    * Rolls back the calling thread's transaction and returns its connection.
+    */
+   public void rollback() throws SQLException {
+      PooledConnection conn = unpin();
+      try {
+         conn.getConnection().rollback();
+      } finally {
+         release(conn);
+      }
+   }
+
+   private PooledConnection unpin() throws SQLException {
+      PooledConnection conn = pinned.get();
+      if (conn == null) {
+         throw new SQLException("No transaction is open on this thread");
+      }
+      pinned.remove();
+      return conn;
+   }
+
+   /**
+    * @return the maximum number of physical connections
+    */
+   public int getMaxSize() {
+      return maxSize;
+   }
+
+   /**
+    * Closes every connection, including ones that are still borrowed.
+    */
+   public void close() {
+      List<PooledConnection> open;
+      synchronized (this) {
+         closed = true;
+         open = new ArrayList<PooledConnection>(all);
+         all.clear();
+      }
+      idle.clear();
+      for (PooledConnection conn : open) {
+         conn.close();
+      }
+   }
+
+}//end ConnectionPool
@@ -0,0 +1,402 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ * Generates a synthetic Retail dataset of any size as CSV files in the
+ * layout of data/*.csv, ready for COPY.  At scale factor 1 the row counts
+ * match the sample data: 100 users, 20 stores, 10 products per store,
+ * 5 warehouses, 500 orders, 50 product updates and 10 supply requests.
+ * Users, orders, updates and supply requests grow linearly with the scale
+ * factor; stores and warehouses grow with its square root, and the catalog
+ * and the number of products each store carries grow slowly with it.
+ *
+ * Every table is a pure function of the scale factor and the seed, so each
+ * table can be generated on its own and streamed straight into COPY without
+ * holding anything in memory.  Foreign keys hold by construction: every
+ * store is managed by one of the manager users, and an order or update only
+ * names a product its store carries.
+ *
+ * Orders are skewed the way real traffic is: customers and the products a
+ * store sells are picked with a Zipf-like distribution, so a few heavy
+ * customers and hot products account for most of the orders.
+ *
+ * Usage: DataGenerator --scale <sf> [--seed <n>] [--end <yyyy-mm-dd>]
+ *                      [--days <n>] (--out <dir> | --table <name>)
+ *
+ */
+public class DataGenerator {
+
+   static final String[] TABLES = { "users", "stores", "warehouse", "products", "orders", "productUpdates", "productSupplyRequests" };
+
+   // the sample data's products, used as the head of every catalog
+   static final String[] STAPLES = { "7up", "Brisk", "Donuts", "Egg", "Hot and Sour Soup",
+                                     "Ice Cream", "Lemonade", "Orange Juice", "Pepsi", "Pudding" };
+
+   static final String[] NAMES = { "Amy", "Bob", "Carol", "Dan", "Eve", "Frank", "Grace", "Heidi", "Ivan", "Judy",
+                                   "Ken", "Laura", "Mallory", "Nina", "Oscar", "Peggy", "Quinn", "Rupert", "Sybil", "Trent",
+                                   "Uma", "Victor", "Wendy", "Xavier", "Yvonne", "Zach" };
+
+   // Zipf-like exponents for picking customers and a store's products
+   static final double CUSTOMER_SKEW = 1.05;
+   static final double PRODUCT_SKEW = 1.2;
+
+   final long seed;
+   final long users;
+   final int stores;
+   final int warehouses;
+   final int managers;
+   final int catalog;
+   final int productsPerStore;
+   final long orders;
+   final long updates;
+   final long supplyRequests;
+   final long endMillis;
+   final long spanMillis;
+   // multiplier that spreads customer ranks over the customer IDs
+   private final long customerStep;
+
+   /**
+    * @param scale the scale factor; 1 reproduces the sample data's sizes
+    * @param seed the random seed, so runs are reproducible
+    * @param end the time of the newest generated order
+    * @param days how far back in time the orders go
+    */
+   public DataGenerator(double scale, long seed, Timestamp end, int days) {
+      if (scale <= 0) {
+         throw new IllegalArgumentException("scale must be positive: " + scale);
+      }
+      this.seed = seed;
+      double root = Math.sqrt(scale);
+      this.users = Math.max(10, Math.round(100 * scale));
+      this.stores = (int) Math.max(2, Math.round(20 * root));
+      this.warehouses = (int) Math.max(1, Math.round(5 * root));
+      // one manager per ~3 stores, never more than a third of the users
+      this.managers = (int) Math.max(1, Math.min(stores / 3, (users - 1) / 3));
+      this.catalog = (int) Math.max(STAPLES.length, Math.round(STAPLES.length * Math.max(1, root)));
+      this.productsPerStore = (int) Math.min(catalog, STAPLES.length + 5 * Math.round(Math.log(Math.max(1, scale)) / Math.log(2)));
+      this.orders = Math.max(1, Math.round(500 * scale));
+      this.updates = Math.max(1, Math.round(50 * scale));
+      this.supplyRequests = Math.max(1, Math.round(10 * scale));
+      this.endMillis = end.getTime();
+      this.spanMillis = Math.max(1, days) * 86400000L;
+      this.customerStep = coprimeStep(users - managers - 1);
+   }
+
+   public static void main(String[] args) {
+      double scale = 1;
+      long seed = 166;
+      Timestamp end = Timestamp.valueOf("2016-09-10 13:01:00");
+      int days = 365;
+      String out = null;
+      String table = null;
+      try{
+         for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--scale")) {
+               scale = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--seed")) {
+               seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--end")) {
+               end = Timestamp.valueOf(args[++i] + " 00:00:00");
+            } else if (args[i].equals("--days")) {
+               days = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--out")) {
+               out = args[++i];
+            } else if (args[i].equals("--table")) {
+               table = args[++i];
+            } else {
+               throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+         }
+         if ((out == null) == (table == null)) {
+            throw new IllegalArgumentException("Give exactly one of --out <dir> or --table <name>");
+         }
+      }catch(RuntimeException e){
+         System.err.println(e.getMessage() == null ? "Missing option value" : e.getMessage());
+         System.err.println("Usage: DataGenerator --scale <sf> [--seed <n>] [--end <yyyy-mm-dd>] [--days <n>] (--out <dir> | --table <name>)");
+         System.exit(2);
+      }
+
+      DataGenerator generator = new DataGenerator(scale, seed, end, days);
+      try{
+         if (table != null) {
+            generator.write(table, System.out);
+         } else {
+            File dir = new File(out);
+            dir.mkdirs();
+            for (int i = 0; i < TABLES.length; i++) {
+               OutputStream file = new FileOutputStream(new File(dir, TABLES[i] + ".csv"));
+               try{
+                  generator.write(TABLES[i], file);
+               }finally{
+                  file.close();
+               }
+            }
+            System.err.printf("Wrote %d users, %d stores, %d warehouses, %d products, %d orders, %d updates and %d supply requests to %s%n",
+               generator.users, generator.stores, generator.warehouses, (long) generator.stores * generator.productsPerStore,
+               generator.orders, generator.updates, generator.supplyRequests, dir);
+         }
+      }catch(IOException e){
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Writes one table as CSV with a header row.
+    *
+    * @param table one of TABLES
+    * @throws java.io.IOException when the output could not be written
+    */
+   public void write(String table, OutputStream stream) throws IOException {
+      Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 1 << 16);
+      if (table.equals("users")) {
+         writeUsers(out);
+      } else if (table.equals("stores")) {
+         writeStores(out);
+      } else if (table.equals("warehouse")) {
+         writeWarehouses(out);
+      } else if (table.equals("products")) {
+         writeProducts(out);
+      } else if (table.equals("orders")) {
+         writeOrders(out);
+      } else if (table.equals("productUpdates")) {
+         writeProductUpdates(out);
+      } else if (table.equals("productSupplyRequests")) {
+         writeSupplyRequests(out);
+      } else {
+         throw new IllegalArgumentException("Unknown table: " + table);
+      }
+      out.flush();
+   }
+
+   // each table draws from its own stream so tables can be generated apart
+   private Random random(String table) {
+      return new Random(seed * 31 + table.hashCode());
+   }
+
+   // ----------the relationships every table agrees on----------
+
+   /**
+    * @return the manager of a store: users 2 .. managers+1 are the managers
+    */
+   int managerOf(int storeID) {
+      return 2 + (storeID - 1) % managers;
+   }
+
+   /**
+    * @return the catalog index of the k-th product a store carries.  The
+    *         first half of every store's range is the same staples, which
+    *         are the hot products; the rest rotates through the catalog.
+    */
+   int productOf(int storeID, int k) {
+      int shared = Math.min(STAPLES.length, productsPerStore / 2);
+      if (k < shared || catalog == shared) {
+         return k;
+      }
+      int rest = catalog - shared;
+      long offset = (long) (storeID - 1) * (productsPerStore - shared);
+      return shared + (int) ((offset + (k - shared)) % rest);
+   }
+
+   /**
+    * @return the name of a catalog product
+    */
+   static String productName(int index) {
+      return index < STAPLES.length ? STAPLES[index] : "Product " + (index - STAPLES.length + 1);
+   }
+
+   /**
+    * @return a customer's userID.  Customers are ranked by how much they
+    *         buy, and the ranks are spread over the IDs so the heavy buyers
+    *         are not all at the start of the table.
+    */
+   long customerAt(long rank) {
+      long first = managers + 2;
+      long count = users - first + 1;
+      return first + multiplyMod(rank, customerStep, count);
+   }
+
+   // a multiplier coprime to n, so i -> i * step mod n is a bijection on 0 .. n-1
+   private static long coprimeStep(long n) {
+      if (n <= 1) {
+         return 1;
+      }
+      long step = (long) (n * 0.6180339887) | 1;
+      while (gcd(step, n) != 1) {
+         step += 2;
+      }
+      return step % n == 0 ? 1 : step % n;
+   }
+
+   private static long multiplyMod(long a, long b, long n) {
+      if (n < (1L << 31)) {
+         return (a % n) * b % n;
+      }
+      // double-and-add so a * b cannot overflow
+      long result = 0;
+      a %= n;
+      while (b > 0) {
+         if ((b & 1) != 0) {
+            result = (result + a) % n;
+         }
+         a = (a * 2) % n;
+         b >>= 1;
+      }
+      return result;
+   }
+
+   private static long gcd(long a, long b) {
+      while (b != 0) {
+         long t = a % b;
+         a = b;
+         b = t;
+      }
+      return a;
+   }
+
+   /**
+    * Draws a rank in 0 .. n-1 where rank r has probability roughly
+    * proportional to 1 / (r+1)^skew, by inverting the continuous power law.
+    */
+   static long zipf(Random random, long n, double skew) {
+      double u = random.nextDouble();
+      double rank;
+      if (Math.abs(skew - 1.0) < 1e-9) {
+         rank = Math.exp(u * Math.log(n + 1.0));
+      } else {
+         double a = 1.0 - skew;
+         rank = Math.pow(u * (Math.pow(n + 1.0, a) - 1.0) + 1.0, 1.0 / a);
+      }
+      return Math.min(n - 1, Math.max(0, (long) rank - 1));
+   }
+
+   // appends a coordinate in [0, 100) with the schema's six decimals
+   private static StringBuilder coordinate(StringBuilder row, Random random) {
+      int micros = random.nextInt(100000000);
+      String fraction = Integer.toString(1000000 + micros % 1000000).substring(1);
+      return row.append(micros / 1000000).append('.').append(fraction);
+   }
+
+   private String time(long millis) {
+      return Rows.format(new Timestamp(millis));
+   }
+
+   // ----------tables----------
+
+   private void writeUsers(Writer out) throws IOException {
+      Random random = random("users");
+      StringBuilder row = new StringBuilder(128);
+      out.write("userID,name,password,latitude,longitude,type\n");
+      for (long id = 1; id <= users; id++) {
+         String type = id == 1 ? "admin" : id <= managers + 1 ? "manager" : "customer";
+         String name = id == 1 ? "Admin" : NAMES[(int) (id % NAMES.length)] + id;
+         row.setLength(0);
+         row.append(id).append(',').append(name).append(",xyz,");
+         coordinate(coordinate(row, random).append(','), random).append(',').append(type).append('\n');
+         out.append(row);
+      }
+   }
+
+   private void writeStores(Writer out) throws IOException {
+      Random random = random("stores");
+      StringBuilder row = new StringBuilder(128);
+      out.write("storeID,name,latitude,longitude,managerID,dateEstablished\n");
+      for (int id = 1; id <= stores; id++) {
+         row.setLength(0);
+         row.append(id).append(",Store ").append(id).append(',');
+         coordinate(coordinate(row, random).append(','), random).append(',').append(managerOf(id))
+            .append(',').append(1950 + random.nextInt(66)).append('-').append(1 + random.nextInt(12))
+            .append('-').append(1 + random.nextInt(28)).append('\n');
+         out.append(row);
+      }
+   }
+
+   private void writeWarehouses(Writer out) throws IOException {
+      Random random = random("warehouse");
+      StringBuilder row = new StringBuilder(64);
+      out.write("wareHouseID,area,latitude,longitude\n");
+      for (int id = 1; id <= warehouses; id++) {
+         row.setLength(0);
+         row.append(id).append(',').append(10000 + random.nextInt(90000)).append(',');
+         coordinate(coordinate(row, random).append(','), random).append('\n');
+         out.append(row);
+      }
+   }
+
+   private void writeProducts(Writer out) throws IOException {
+      Random random = random("products");
+      StringBuilder row = new StringBuilder(96);
+      out.write("storeID,productName,numberOfUnits,pricePerUnit\n");
+      for (int id = 1; id <= stores; id++) {
+         for (int k = 0; k < productsPerStore; k++) {
+            int product = productOf(id, k);
+            // each product has a list price that stores vary by up to a dollar either way
+            int price = Math.max(1, 3 + (int) ((product * 2654435761L) % 18) + random.nextInt(3) - 1);
+            row.setLength(0);
+            row.append(id).append(',').append(productName(product)).append(',')
+               .append(random.nextInt(101)).append(',').append(price).append('\n');
+            out.append(row);
+         }
+      }
+   }
+
+   private void writeOrders(Writer out) throws IOException {
+      Random random = random("orders");
+      StringBuilder row = new StringBuilder(96);
+      long customers = users - managers - 1;
+      long start = endMillis - spanMillis;
+      out.write("orderNumber,customerID,storeID,productName,unitsOrdered,orderTime\n");
+      for (long n = 1; n <= orders; n++) {
+         int store = 1 + random.nextInt(stores);
+         int product = productOf(store, (int) zipf(random, productsPerStore, PRODUCT_SKEW));
+         // order numbers follow time; times are to the second like the schema's
+         long millis = start + (long) ((double) spanMillis * n / orders);
+         row.setLength(0);
+         row.append(n).append(',').append(customerAt(zipf(random, customers, CUSTOMER_SKEW))).append(',')
+            .append(store).append(',').append(productName(product)).append(',')
+            .append(1 + Math.min(49, (int) (-Math.log(1.0 - random.nextDouble()) * 5))).append(',')
+            .append(time(millis - millis % 1000)).append('\n');
+         out.append(row);
+      }
+   }
+
+   private void writeProductUpdates(Writer out) throws IOException {
+      Random random = random("productUpdates");
+      StringBuilder row = new StringBuilder(96);
+      long start = endMillis - spanMillis;
+      out.write("updateNumber,managerID,storeID,productName,updatedOn\n");
+      for (long n = 1; n <= updates; n++) {
+         int store = 1 + random.nextInt(stores);
+         long millis = start + (long) ((double) spanMillis * n / updates);
+         row.setLength(0);
+         row.append(n).append(',').append(managerOf(store)).append(',').append(store).append(',')
+            .append(productName(productOf(store, random.nextInt(productsPerStore)))).append(',')
+            .append(time(millis - millis % 1000)).append('\n');
+         out.append(row);
+      }
+   }
+
+   private void writeSupplyRequests(Writer out) throws IOException {
+      Random random = random("productSupplyRequests");
+      StringBuilder row = new StringBuilder(96);
+      out.write("requestNumber,managerID,warehouseID,storeID,productName,unitsRequested\n");
+      for (long n = 1; n <= supplyRequests; n++) {
+         int store = 1 + random.nextInt(stores);
+         // restocking follows demand, so hot products are requested more often
+         int product = productOf(store, (int) zipf(random, productsPerStore, PRODUCT_SKEW));
+         row.setLength(0);
+         row.append(n).append(',').append(managerOf(store)).append(',').append(1 + random.nextInt(warehouses))
+            .append(',').append(store).append(',').append(productName(product)).append(',')
+            .append(1 + random.nextInt(100)).append('\n');
+         out.append(row);
+      }
+   }
+
+}//end DataGenerator
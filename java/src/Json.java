@@ -0,0 +1,219 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the machine-readable modes: writing objects field by
+ * field, and reading the flat one-line objects batch scripts are made of.
+ *
+ */
+public final class Json {
+
+   private final StringBuilder out;
+   // true when the next value is the first in its object or array
+   private boolean first = true;
+
+   public Json(StringBuilder out) {
+      this.out = out;
+   }
+
+   public Json beginObject() {
+      separate();
+      out.append('{');
+      first = true;
+      return this;
+   }
+
+   public Json endObject() {
+      out.append('}');
+      first = false;
+      return this;
+   }
+
+   public Json beginArray(String name) {
+      key(name);
+      out.append('[');
+      first = true;
+      return this;
+   }
+
+   public Json endArray() {
+      out.append(']');
+      first = false;
+      return this;
+   }
+
+   public Json field(String name, String value) {
+      key(name);
+      if (value == null) {
+         out.append("null");
+      } else {
+         quote(out, value);
+      }
+      return this;
+   }
+
+   public Json field(String name, long value) {
+      key(name);
+      out.append(value);
+      return this;
+   }
+
+   public Json field(String name, double value) {
+      key(name);
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+         out.append("null");
+      } else {
+         out.append(value);
+      }
+      return this;
+   }
+
+   public Json field(String name, boolean value) {
+      key(name);
+      out.append(value);
+      return this;
+   }
+
+   private void key(String name) {
+      separate();
+      if (name != null) {
+         quote(out, name);
+         out.append(':');
+      }
+   }
+
+   private void separate() {
+      if (!first) {
+         out.append(',');
+      }
+      first = false;
+   }
+
+   /**
+    * Appends a string as a quoted JSON string.
+    */
+   public static void quote(StringBuilder out, String value) {
+      out.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20) {
+                  out.append(String.format("\\u%04x", (int) c));
+               } else {
+                  out.append(c);
+               }
+         }
+      }
+      out.append('"');
+   }
+
+   /**
+    * Parses a flat object such as {"cmd":"order","store":2}.  Nested
+    * objects and arrays are not supported; every value comes back as its
+    * text, with null for a JSON null.
+    *
+    * @throws IllegalArgumentException when the text is not a flat object
+    */
+   public static Map<String, String> parseObject(String text) {
+      Map<String, String> fields = new LinkedHashMap<String, String>();
+      int[] pos = { skip(text, 0) };
+      expect(text, pos, '{');
+      if (peek(text, pos) == '}') {
+         pos[0]++;
+      } else {
+         while (true) {
+            String name = readString(text, pos);
+            expect(text, pos, ':');
+            fields.put(name, readValue(text, pos));
+            char c = peek(text, pos);
+            pos[0]++;
+            if (c == '}') {
+               break;
+            }
+            if (c != ',') {
+               throw new IllegalArgumentException("Expected ',' or '}' at " + (pos[0] - 1) + ": " + text);
+            }
+         }
+      }
+      if (skip(text, pos[0]) != text.length()) {
+         throw new IllegalArgumentException("Unexpected text after object: " + text);
+      }
+      return fields;
+   }
+
+   private static int skip(String text, int i) {
+      while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+         i++;
+      }
+      return i;
+   }
+
+   private static char peek(String text, int[] pos) {
+      pos[0] = skip(text, pos[0]);
+      if (pos[0] >= text.length()) {
+         throw new IllegalArgumentException("Unexpected end of object: " + text);
+      }
+      return text.charAt(pos[0]);
+   }
+
+   private static void expect(String text, int[] pos, char c) {
+      if (peek(text, pos) != c) {
+         throw new IllegalArgumentException("Expected '" + c + "' at " + pos[0] + ": " + text);
+      }
+      pos[0]++;
+   }
+
+   private static String readValue(String text, int[] pos) {
+      char c = peek(text, pos);
+      if (c == '"') {
+         return readString(text, pos);
+      }
+      if (c == '{' || c == '[') {
+         throw new IllegalArgumentException("Nested values are not supported: " + text);
+      }
+      int start = pos[0];
+      while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+         pos[0]++;
+      }
+      String literal = text.substring(start, pos[0]);
+      return "null".equals(literal) ? null : literal;
+   }
+
+   private static String readString(String text, int[] pos) {
+      expect(text, pos, '"');
+      StringBuilder value = new StringBuilder();
+      while (true) {
+         if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unterminated string: " + text);
+         }
+         char c = text.charAt(pos[0]++);
+         if (c == '"') {
+            return value.toString();
+         }
+         if (c != '\\') {
+            value.append(c);
+            continue;
+         }
+         char e = text.charAt(pos[0]++);
+         switch (e) {
+            case 'n': value.append('\n'); break;
+            case 'r': value.append('\r'); break;
+            case 't': value.append('\t'); break;
+            case 'b': value.append('\b'); break;
+            case 'f': value.append('\f'); break;
+            case 'u':
+               value.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+               pos[0] += 4;
+               break;
+            default: value.append(e); break;
+         }
+      }
+   }
+
+}//end Json
@@ -0,0 +1,327 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places customer orders.  The stock decrement and the Orders insert are a
+ * single statement: the UPDATE only matches while the product still has
+ * enough units, and the INSERT only sees the row the UPDATE returned.  Two
+ * buyers racing for the last units therefore cannot both succeed, and the
+ * new order comes back without a follow-up SELECT.  The same statement
+ * maintains the ProductPopularity and CustomerPopularity totals.  A cart of
+ * several products is checked out the same way, with one statement for the
+ * whole cart.
+ *
+ * Hot products (see StripedInventory) skip the Product row: their units are
+ * taken from the in-memory stripes first, and only the Orders insert and the
+ * CustomerPopularity total are written, by PLACE_HOT_ORDER.
+ *
+ */
+public class OrderEngine {
+
+   // bumps the popularity totals for the rows of a "placed" CTE holding new
+   // Orders rows (one per product, as carts merge repeated products), then
+   // returns those rows
+   static final String RECORD_PLACED =
+      " byProduct AS (" +
+      " INSERT INTO ProductPopularity (storeID, productName, totalOrders)" +
+      " SELECT storeID, productName, 1 FROM placed" +
+      " ON CONFLICT (storeID, productName) DO UPDATE SET totalOrders = ProductPopularity.totalOrders + 1)," +
+      " byCustomer AS (" +
+      " INSERT INTO CustomerPopularity (storeID, customerID, totalUnits)" +
+      " SELECT storeID, customerID, SUM(unitsOrdered) FROM placed GROUP BY storeID, customerID" +
+      " ON CONFLICT (storeID, customerID) DO UPDATE SET totalUnits = CustomerPopularity.totalUnits + EXCLUDED.totalUnits)" +
+      " SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM placed ORDER BY orderNumber";
+
+   // decrement stock only if enough is left, record the order with the
+   // server's clock and bump the popularity totals; all of it happens in the
+   // statement's implicit transaction
+   static final String PLACE_ORDER =
+      "WITH stock AS (" +
+      " UPDATE Product SET numberOfUnits = numberOfUnits - ?" +
+      " WHERE storeID = ? AND productName = ? AND numberOfUnits >= ?" +
+      " RETURNING storeID, productName)," +
+      " placed AS (" +
+      " INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)" +
+      " SELECT ?, storeID, productName, ?, LOCALTIMESTAMP(0) FROM stock" +
+      " RETURNING orderNumber, customerID, storeID, productName, unitsOrdered, orderTime)," +
+      RECORD_PLACED;
+
+   // records an order whose units were already taken from the stripes
+   static final String PLACE_HOT_ORDER =
+      "WITH placed AS (" +
+      " INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)" +
+      " VALUES (?, ?, ?, ?, LOCALTIMESTAMP(0))" +
+      " RETURNING orderNumber, customerID, storeID, productName, unitsOrdered, orderTime)," +
+      " byCustomer AS (" +
+      " INSERT INTO CustomerPopularity (storeID, customerID, totalUnits)" +
+      " SELECT storeID, customerID, unitsOrdered FROM placed" +
+      " ON CONFLICT (storeID, customerID) DO UPDATE SET totalUnits = CustomerPopularity.totalUnits + EXCLUDED.totalUnits)" +
+      " SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM placed";
+
+   /**
+    * Builds the checkout statement for a cart of the given number of
+    * products: the same conditional decrement and insert as PLACE_ORDER, for
+    * every product of the cart at once.  Parameters are productName and
+    * units for each product, then storeID, then customerID.
+    */
+   static String checkoutSql(int items) {
+      StringBuilder sql = new StringBuilder(1024 + items * 48);
+      sql.append("WITH cart (productName, units) AS (VALUES ");
+      for (int i = 0; i < items; i++) {
+         sql.append(i == 0 ? "" : ", ").append("(CAST(? AS char(30)), CAST(? AS integer))");
+      }
+      sql.append("),")
+         .append(" stock AS (")
+         .append(" UPDATE Product P SET numberOfUnits = P.numberOfUnits - C.units FROM cart C")
+         .append(" WHERE P.storeID = ? AND P.productName = C.productName AND P.numberOfUnits >= C.units")
+         .append(" RETURNING P.storeID, P.productName, C.units),")
+         .append(" placed AS (")
+         .append(" INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)")
+         .append(" SELECT ?, storeID, productName, units, LOCALTIMESTAMP(0) FROM stock ORDER BY productName")
+         .append(" RETURNING orderNumber, customerID, storeID, productName, unitsOrdered, orderTime),")
+         .append(RECORD_PLACED);
+      return sql.toString();
+   }
+
+   /**
+    * One product line of a cart.
+    */
+   public static class Item {
+      public final String productName;
+      public final int units;
+
+      public Item(String productName, int units) {
+         this.productName = productName;
+         this.units = units;
+      }
+   }//end Item
+
+   /**
+    * The outcome of a checkout: either every product of the cart was
+    * ordered, or none was and unavailable names the products that ran short.
+    */
+   public static class Checkout {
+      public final List<Receipt> receipts;
+      public final List<String> unavailable;
+
+      Checkout(List<Receipt> receipts, List<String> unavailable) {
+         this.receipts = receipts;
+         this.unavailable = unavailable;
+      }
+
+      /**
+       * @return true if the cart was ordered
+       */
+      public boolean placed() {
+         return unavailable.isEmpty();
+      }
+   }//end Checkout
+
+   /**
+    * A committed order as returned by the database.
+    */
+   public static class Receipt {
+      public final int orderNumber;
+      public final int customerID;
+      public final int storeID;
+      public final String productName;
+      public final int unitsOrdered;
+      public final Timestamp orderTime;
+
+      public Receipt(int orderNumber, int customerID, int storeID, String productName, int unitsOrdered, Timestamp orderTime) {
+         this.orderNumber = orderNumber;
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.unitsOrdered = unitsOrdered;
+         this.orderTime = orderTime;
+      }
+   }//end Receipt
+
+   static final RowMapper<Receipt> RECEIPT = new RowMapper<Receipt>() {
+      public Receipt map(ResultSet rs) throws SQLException {
+         return new Receipt(rs.getInt(1), rs.getInt(2), rs.getInt(3), Rows.trim(rs.getString(4)), rs.getInt(5), rs.getTimestamp(6));
+      }
+   };
+
+   private final Retail esql;
+
+   public OrderEngine(Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Places an order, taking the units out of the store's stock.
+    *
+    * @param customerID the ordering user
+    * @param storeID the store the product is bought from
+    * @param productName the product being bought
+    * @param units how many units to buy, at least 1
+    * @return the committed order, or null if the store does not have that
+    *         many units left
+    * @throws java.sql.SQLException when the order could not be written
+    */
+   public Receipt placeOrder(int customerID, int storeID, String productName, int units) throws SQLException {
+      if (units < 1) {
+         throw new IllegalArgumentException("Must order at least 1 unit (requested " + units + ")");
+      }
+      StripedInventory inventory = esql.getInventory();
+      if (inventory.isHot(storeID, productName)) {
+         if (!inventory.take(storeID, productName, units)) {
+            return null;
+         }
+         Receipt receipt;
+         try {
+            receipt = esql.executeQueryAndMap(PLACE_HOT_ORDER, RECEIPT, customerID, storeID, productName, units).get(0);
+         } catch (SQLException e) {
+            inventory.giveBack(storeID, productName, units);
+            throw e;
+         } catch (RuntimeException e) {
+            inventory.giveBack(storeID, productName, units);
+            throw e;
+         }
+         inventory.ordered(storeID, productName);
+         esql.getReplenishment().stockChanged(storeID, productName);
+         return receipt;
+      }
+      List<Receipt> rows = esql.executeQueryAndMap(PLACE_ORDER, RECEIPT,
+         units, storeID, productName, units, customerID, units);
+      if (rows.isEmpty()) {
+         return null;
+      }
+      esql.getReplenishment().stockChanged(storeID, productName);
+      return rows.get(0);
+   }
+
+   /**
+    * Orders every product in a cart from one store, all or nothing.  The
+    * stock of every product is checked and decremented, and every Orders row
+    * written, by one statement in one transaction; if any product is short
+    * the transaction is rolled back and nothing is ordered.  Repeated
+    * products are merged into one order.  Hot products are taken from the
+    * stripes before the transaction, and given back if it does not commit.
+    *
+    * @param customerID the ordering user
+    * @param storeID the store the products are bought from
+    * @param items the cart, not empty; every line must be for at least 1 unit
+    * @return the orders placed, or the products that did not have enough stock
+    * @throws java.sql.SQLException when the orders could not be written
+    */
+   public Checkout checkout(int customerID, int storeID, List<Item> items) throws SQLException {
+      if (items.isEmpty()) {
+         throw new IllegalArgumentException("The cart is empty");
+      }
+      // merge repeated products, keeping the cart's order
+      Map<String, Integer> units = new LinkedHashMap<String, Integer>();
+      for (int i = 0; i < items.size(); i++) {
+         Item item = items.get(i);
+         if (item.units < 1) {
+            throw new IllegalArgumentException("Must order at least 1 unit of " + item.productName + " (requested " + item.units + ")");
+         }
+         String name = Rows.trim(item.productName);
+         Integer before = units.get(name);
+         units.put(name, before == null ? item.units : before + item.units);
+      }
+      // hot products are taken from the stripes up front; the rest go
+      // through the cart statement
+      StripedInventory inventory = esql.getInventory();
+      Map<String, Integer> cold = new LinkedHashMap<String, Integer>();
+      Map<String, Integer> taken = new LinkedHashMap<String, Integer>();
+      List<String> shortOf = new ArrayList<String>();
+      try {
+         for (Map.Entry<String, Integer> line : units.entrySet()) {
+            if (!inventory.isHot(storeID, line.getKey())) {
+               cold.put(line.getKey(), line.getValue());
+            } else if (inventory.take(storeID, line.getKey(), line.getValue())) {
+               taken.put(line.getKey(), line.getValue());
+            } else {
+               shortOf.add(line.getKey());
+            }
+         }
+      } catch (SQLException e) {
+         giveBack(inventory, storeID, taken);
+         throw e;
+      }
+      Object[] params = new Object[cold.size() * 2 + 2];
+      int p = 0;
+      for (Map.Entry<String, Integer> line : cold.entrySet()) {
+         params[p++] = line.getKey();
+         params[p++] = line.getValue();
+      }
+      params[p++] = storeID;
+      params[p] = customerID;
+
+      ConnectionPool pool = esql.getPool();
+      List<Receipt> receipts = new ArrayList<Receipt>();
+      try {
+         pool.begin();
+         if (!cold.isEmpty()) {
+            receipts.addAll(esql.executeQueryAndMap(checkoutSql(cold.size()), RECEIPT, params));
+            if (receipts.size() < cold.size()) {
+               List<String> placed = new ArrayList<String>();
+               for (int i = 0; i < receipts.size(); i++) {
+                  placed.add(receipts.get(i).productName);
+               }
+               for (String name : cold.keySet()) {
+                  if (!placed.contains(name)) {
+                     shortOf.add(name);
+                  }
+               }
+            }
+         }
+         if (!shortOf.isEmpty()) {
+            pool.rollback();
+            giveBack(inventory, storeID, taken);
+            // in the cart's order
+            List<String> unavailable = new ArrayList<String>();
+            for (String name : units.keySet()) {
+               if (shortOf.contains(name)) {
+                  unavailable.add(name);
+               }
+            }
+            return new Checkout(new ArrayList<Receipt>(), unavailable);
+         }
+         for (Map.Entry<String, Integer> line : taken.entrySet()) {
+            receipts.addAll(esql.executeQueryAndMap(PLACE_HOT_ORDER, RECEIPT, customerID, storeID, line.getKey(), line.getValue()));
+         }
+         pool.commit();
+      } catch (SQLException e) {
+         rollbackQuietly(pool);
+         giveBack(inventory, storeID, taken);
+         throw e;
+      } catch (RuntimeException e) {
+         rollbackQuietly(pool);
+         giveBack(inventory, storeID, taken);
+         throw e;
+      }
+      for (String name : taken.keySet()) {
+         inventory.ordered(storeID, name);
+      }
+      for (int i = 0; i < receipts.size(); i++) {
+         esql.getReplenishment().stockChanged(storeID, receipts.get(i).productName);
+      }
+      return new Checkout(receipts, new ArrayList<String>());
+   }
+
+   private static void giveBack(StripedInventory inventory, int storeID, Map<String, Integer> taken) {
+      for (Map.Entry<String, Integer> line : taken.entrySet()) {
+         inventory.giveBack(storeID, line.getKey(), line.getValue());
+      }
+   }
+
+   private static void rollbackQuietly(ConnectionPool pool) {
+      if (pool.inTransaction()) {
+         try {
+            pool.rollback();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+
+}//end OrderEngine
@@ -0,0 +1,393 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk path for orders that were taken offline, such as a POS terminal
+ * catching up after an outage.  Orders are read as CSV lines
+ *
+ *    customerID,storeID,productName,unitsOrdered[,orderTime]
+ *
+ * and applied in large batches, one transaction per batch: the batch is
+ * staged into a temporary table with multi-row inserts and checked against
+ * the locked stock in one pass, then a handful of set-based statements
+ * insert the accepted orders, take the units out of stock with one
+ * decrement per product and bump the popularity totals.
+ *
+ * Orders for the same product are filled in the order they were read.  An
+ * order the remaining stock cannot cover is rejected without taking any of
+ * it, so a smaller order after it may still be filled.  Orders naming an
+ * unknown customer or product are rejected too.  Rejected orders are
+ * reported one JSON object per line.
+ *
+ * Units of hot products that a running process holds in memory (see
+ * StripedInventory) are not in Product, so before a batch is applied its
+ * hot products are recalled through HotStock and the batch waits, up to
+ * retail.ingest.recallMs, for the holders to hand the units back.  A holder
+ * that does not answer in time, such as one that was killed, is not waited
+ * for again; orders its units would have covered may be rejected.
+ *
+ */
+public class OrderIngest {
+
+   // rows per multi-row INSERT into the staging table
+   static final int STAGE_ROWS = 500;
+
+   // Product.productName is char(30)
+   static final int PRODUCT_NAME_CHARS = 30;
+
+   static final String CREATE_STAGING =
+      "CREATE TEMP TABLE IF NOT EXISTS OrderStaging (" +
+      " line integer NOT NULL, customerID integer NOT NULL, storeID integer NOT NULL," +
+      " productName char(30) NOT NULL, unitsOrdered integer NOT NULL, orderTime timestamp," +
+      " accepted boolean, reason text) ON COMMIT DELETE ROWS";
+
+   // locks the stock of every staged product and reads each staged order
+   // in input order with that stock and the reason it is rejected, if any
+   // reason other than the stock applies
+   static final String CHECK =
+      "WITH stock AS (" +
+      " SELECT P.storeID, P.productName, P.numberOfUnits FROM Product P" +
+      " WHERE (P.storeID, P.productName) IN (SELECT storeID, productName FROM OrderStaging)" +
+      " FOR UPDATE)" +
+      " SELECT S.line, S.storeID, S.productName, S.unitsOrdered, T.numberOfUnits," +
+      " CASE WHEN T.numberOfUnits IS NULL THEN 'unknown product'" +
+      " WHEN NOT EXISTS (SELECT 1 FROM Users U WHERE U.userID = S.customerID) THEN 'unknown customer'" +
+      " WHEN S.unitsOrdered < 1 THEN 'must order at least 1 unit' END AS reason" +
+      " FROM OrderStaging S LEFT JOIN stock T ON T.storeID = S.storeID AND T.productName = S.productName" +
+      " ORDER BY S.line";
+
+   static final String ACCEPT_ALL = "UPDATE OrderStaging SET accepted = true";
+
+   // monthly Orders partitions for the accepted orders' times
+   static final String ENSURE_PARTITIONS =
+      "SELECT ensure_order_partitions(MIN(COALESCE(orderTime, LOCALTIMESTAMP(0))), MAX(COALESCE(orderTime, LOCALTIMESTAMP(0))))" +
+      " FROM OrderStaging WHERE accepted";
+
+   static final String INSERT_ORDERS =
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)" +
+      " SELECT customerID, storeID, productName, unitsOrdered, COALESCE(orderTime, LOCALTIMESTAMP(0))" +
+      " FROM OrderStaging WHERE accepted ORDER BY line";
+
+   static final String DECREMENT_STOCK =
+      "UPDATE Product P SET numberOfUnits = P.numberOfUnits - A.units" +
+      " FROM (SELECT storeID, productName, SUM(unitsOrdered) AS units FROM OrderStaging WHERE accepted" +
+      " GROUP BY storeID, productName) A" +
+      " WHERE P.storeID = A.storeID AND P.productName = A.productName" +
+      " RETURNING P.storeID, P.productName, P.numberOfUnits, P.pricePerUnit";
+
+   static final String BUMP_PRODUCT_POPULARITY =
+      "INSERT INTO ProductPopularity (storeID, productName, totalOrders)" +
+      " SELECT storeID, productName, COUNT(*) FROM OrderStaging WHERE accepted GROUP BY storeID, productName" +
+      " ON CONFLICT (storeID, productName) DO UPDATE SET totalOrders = ProductPopularity.totalOrders + EXCLUDED.totalOrders";
+
+   static final String BUMP_CUSTOMER_POPULARITY =
+      "INSERT INTO CustomerPopularity (storeID, customerID, totalUnits)" +
+      " SELECT storeID, customerID, SUM(unitsOrdered) FROM OrderStaging WHERE accepted GROUP BY storeID, customerID" +
+      " ON CONFLICT (storeID, customerID) DO UPDATE SET totalUnits = CustomerPopularity.totalUnits + EXCLUDED.totalUnits";
+
+   static final String REJECTED = "SELECT line, reason FROM OrderStaging WHERE NOT accepted ORDER BY line";
+
+   static final String HELD = "SELECT storeID, productName, holder FROM HotStock WHERE NOT recalled";
+
+   static final String RECALL =
+      "UPDATE HotStock SET recalled = true WHERE storeID = ? AND productName = ? AND holder = ? AND NOT recalled";
+
+   static final String STILL_HELD = "SELECT 1 FROM HotStock WHERE storeID = ? AND productName = ? AND holder = ?";
+
+   // how long a batch waits for recalled hot stock
+   static final long RECALL_MILLIS = Long.getLong("retail.ingest.recallMs", 5000L);
+
+   static final long RECALL_POLL_MILLIS = 50L;
+
+   /**
+    * One order read from the input.
+    */
+   static class Line {
+      final int line;
+      final int customerID;
+      final int storeID;
+      final String productName;
+      final int unitsOrdered;
+      final Timestamp orderTime;
+
+      Line(int line, int customerID, int storeID, String productName, int unitsOrdered, Timestamp orderTime) {
+         this.line = line;
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.unitsOrdered = unitsOrdered;
+         this.orderTime = orderTime;
+      }
+   }//end Line
+
+   /**
+    * Totals of one ingest run.
+    */
+   public static class Summary {
+      public long read;
+      public long accepted;
+      public long rejected;
+      public int batches;
+   }//end Summary
+
+   private static final RowMapper<Object[]> CHECKED = new RowMapper<Object[]>() {
+      public Object[] map(ResultSet rs) throws SQLException {
+         int units = rs.getInt(5);
+         return new Object[] { rs.getInt(1), rs.getInt(2), Rows.trim(rs.getString(3)), rs.getInt(4),
+                               rs.wasNull() ? null : Integer.valueOf(units), rs.getString(6) };
+      }
+   };
+
+   private static final RowMapper<Object[]> REJECTION = new RowMapper<Object[]>() {
+      public Object[] map(ResultSet rs) throws SQLException {
+         return new Object[] { rs.getInt(1), rs.getString(2) };
+      }
+   };
+
+   private static final RowMapper<Object[]> HOLDING = new RowMapper<Object[]>() {
+      public Object[] map(ResultSet rs) throws SQLException {
+         return new Object[] { rs.getInt(1), Rows.trim(rs.getString(2)), rs.getString(3) };
+      }
+   };
+
+   private final Retail esql;
+   private final int batchSize;
+
+   /**
+    * @param esql the database and caches to apply the orders to
+    * @param batchSize how many orders go into one transaction
+    */
+   public OrderIngest(Retail esql, int batchSize) {
+      this.esql = esql;
+      this.batchSize = Math.max(STAGE_ROWS, batchSize);
+   }
+
+   /**
+    * Applies every order in the input.  A line that does not parse is
+    * rejected on its own; the rest of its batch still goes in.
+    *
+    * @param in the CSV lines; a first line that starts with "customerID" is
+    *        taken as a header
+    * @param rejects where rejected orders are reported, one JSON object per line
+    * @return the run's totals
+    * @throws java.sql.SQLException when a batch could not be applied; the
+    *         batches before it stay committed
+    * @throws java.io.IOException when the input could not be read or the
+    *         rejects could not be written
+    */
+   public Summary ingest(BufferedReader in, Appendable rejects) throws SQLException, IOException {
+      Summary summary = new Summary();
+      List<Line> batch = new ArrayList<Line>(batchSize);
+      String text;
+      int lineNumber = 0;
+      while ((text = in.readLine()) != null) {
+         lineNumber++;
+         if (text.trim().length() == 0 || (lineNumber == 1 && text.startsWith("customerID"))) {
+            continue;
+         }
+         summary.read++;
+         Line order;
+         try {
+            order = parse(lineNumber, text);
+         } catch (IllegalArgumentException e) {
+            reject(rejects, lineNumber, e.getMessage());
+            summary.rejected++;
+            continue;
+         }
+         batch.add(order);
+         if (batch.size() == batchSize) {
+            apply(batch, rejects, summary);
+            batch.clear();
+         }
+      }//end while
+      if (!batch.isEmpty()) {
+         apply(batch, rejects, summary);
+      }
+      return summary;
+   }
+
+   static Line parse(int lineNumber, String text) {
+      String[] fields = text.split(",", -1);
+      if (fields.length != 4 && fields.length != 5) {
+         throw new IllegalArgumentException("expected customerID,storeID,productName,unitsOrdered[,orderTime]");
+      }
+      // a longer name could not be staged, and no product has one
+      if (fields[2].trim().length() > PRODUCT_NAME_CHARS) {
+         throw new IllegalArgumentException("unknown product: names are at most " + PRODUCT_NAME_CHARS + " characters");
+      }
+      try {
+         Timestamp time = fields.length == 5 && fields[4].trim().length() > 0 ? Timestamp.valueOf(fields[4].trim()) : null;
+         return new Line(lineNumber, Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()),
+                         fields[2].trim(), Integer.parseInt(fields[3].trim()), time);
+      } catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException("malformed line: " + e.getMessage());
+      }
+   }
+
+   private void apply(List<Line> batch, Appendable rejects, Summary summary) throws SQLException, IOException {
+      ConnectionPool pool = esql.getPool();
+      List<Rows.Product> changed;
+      List<Object[]> rejected;
+      recall(batch);
+      pool.begin();
+      try {
+         esql.executeUpdate(CREATE_STAGING);
+         stage(batch);
+         allocate();
+         esql.executeQuery(ENSURE_PARTITIONS);
+         esql.executeUpdate(INSERT_ORDERS);
+         changed = esql.executeQueryAndMap(DECREMENT_STOCK, Rows.PRODUCT);
+         esql.executeUpdate(BUMP_PRODUCT_POPULARITY);
+         esql.executeUpdate(BUMP_CUSTOMER_POPULARITY);
+         rejected = esql.executeQueryAndMap(REJECTED, REJECTION);
+         pool.commit();
+      } catch (SQLException e) {
+         pool.rollback();
+         throw e;
+      } catch (RuntimeException e) {
+         pool.rollback();
+         throw e;
+      }
+      // the cached listings of the changed stores are reloaded on next read
+      for (int i = 0; i < changed.size(); i++) {
+         esql.getCatalogCache().invalidate(changed.get(i).storeID);
+         esql.getReplenishment().stockChanged(changed.get(i).storeID, changed.get(i).productName);
+      }
+      for (int i = 0; i < rejected.size(); i++) {
+         reject(rejects, (Integer) rejected.get(i)[0], (String) rejected.get(i)[1]);
+      }
+      summary.batches++;
+      summary.rejected += rejected.size();
+      summary.accepted += batch.size() - rejected.size();
+   }
+
+   /**
+    * Asks the processes holding units of the batch's products to hand them
+    * back to Product, and waits until they have or RECALL_MILLIS is up.
+    */
+   private void recall(List<Line> batch) throws SQLException {
+      List<Object[]> held = esql.executeQueryAndMap(HELD, HOLDING);
+      if (held.isEmpty()) {
+         return;
+      }
+      Set<String> ordered = new HashSet<String>();
+      for (int i = 0; i < batch.size(); i++) {
+         ordered.add(batch.get(i).storeID + "\u0000" + batch.get(i).productName);
+      }
+      List<Object[]> pending = new ArrayList<Object[]>();
+      for (int i = 0; i < held.size(); i++) {
+         Object[] h = held.get(i);
+         if (ordered.contains(h[0] + "\u0000" + h[1]) && esql.executeUpdate(RECALL, h[0], h[1], h[2]) > 0) {
+            pending.add(h);
+         }
+      }
+      long deadline = System.currentTimeMillis() + RECALL_MILLIS;
+      while (!pending.isEmpty()) {
+         if (System.currentTimeMillis() >= deadline) {
+            System.err.println("Gave up waiting for " + pending.size() + " holders of hot stock to hand it back");
+            return;
+         }
+         try {
+            Thread.sleep(RECALL_POLL_MILLIS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+         for (Iterator<Object[]> it = pending.iterator(); it.hasNext();) {
+            Object[] h = it.next();
+            if (esql.executeQuery(STILL_HELD, h[0], h[1], h[2]) == 0) {
+               it.remove();
+            }
+         }
+      }//end while
+   }
+
+   /**
+    * Decides which staged orders go in.  Each product's orders are walked
+    * in input order against its locked stock, and an order the units left
+    * cannot cover is rejected without taking any of them.
+    */
+   private void allocate() throws SQLException {
+      List<Object[]> checks = esql.executeQueryAndMap(CHECK, CHECKED);
+      Map<String, Integer> left = new HashMap<String, Integer>();
+      List<Object[]> rejections = new ArrayList<Object[]>();
+      for (int i = 0; i < checks.size(); i++) {
+         Object[] c = checks.get(i);
+         String reason = (String) c[5];
+         if (reason == null) {
+            String key = c[1] + "\u0000" + c[2];
+            Integer units = left.containsKey(key) ? left.get(key) : (Integer) c[4];
+            int ordered = (Integer) c[3];
+            if (ordered <= units) {
+               left.put(key, units - ordered);
+               continue;
+            }
+            reason = "insufficient stock";
+         }
+         rejections.add(new Object[] { c[0], reason });
+      }//end for
+      esql.executeUpdate(ACCEPT_ALL);
+      for (int from = 0; from < rejections.size(); from += STAGE_ROWS) {
+         int rows = Math.min(STAGE_ROWS, rejections.size() - from);
+         Object[] params = new Object[rows * 2];
+         for (int i = 0; i < rows; i++) {
+            params[i * 2] = rejections.get(from + i)[0];
+            params[i * 2 + 1] = rejections.get(from + i)[1];
+         }
+         esql.executeUpdate(rejectSql(rows), params);
+      }
+   }
+
+   // stages the batch with multi-row inserts of STAGE_ROWS rows each
+   private void stage(List<Line> batch) throws SQLException {
+      for (int from = 0; from < batch.size(); from += STAGE_ROWS) {
+         int rows = Math.min(STAGE_ROWS, batch.size() - from);
+         Object[] params = new Object[rows * 6];
+         for (int i = 0; i < rows; i++) {
+            Line order = batch.get(from + i);
+            params[i * 6] = order.line;
+            params[i * 6 + 1] = order.customerID;
+            params[i * 6 + 2] = order.storeID;
+            params[i * 6 + 3] = order.productName;
+            params[i * 6 + 4] = order.unitsOrdered;
+            params[i * 6 + 5] = order.orderTime;
+         }
+         esql.executeUpdate(stageSql(rows), params);
+      }
+   }
+
+   static String stageSql(int rows) {
+      StringBuilder sql = new StringBuilder(64 + rows * 48);
+      sql.append("INSERT INTO OrderStaging (line, customerID, storeID, productName, unitsOrdered, orderTime) VALUES ");
+      for (int i = 0; i < rows; i++) {
+         sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, CAST(? AS timestamp))");
+      }
+      return sql.toString();
+   }
+
+   static String rejectSql(int rows) {
+      StringBuilder sql = new StringBuilder(128 + rows * 8);
+      sql.append("UPDATE OrderStaging S SET accepted = false, reason = V.reason FROM (VALUES ");
+      for (int i = 0; i < rows; i++) {
+         sql.append(i == 0 ? "" : ", ").append("(?, ?)");
+      }
+      return sql.append(") AS V (line, reason) WHERE S.line = V.line").toString();
+   }
+
+   private static void reject(Appendable rejects, int line, String reason) throws IOException {
+      StringBuilder text = new StringBuilder(96);
+      new Json(text).beginObject().field("line", line).field("error", reason).endObject();
+      rejects.append(text).append('\n');
+   }
+
+}//end OrderIngest
@@ -0,0 +1,277 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Upkeep of the monthly Orders partitions (see create_tables.sql): creating
+ * them ahead of the orders that will need them, and archiving old months.
+ *
+ * Archiving a month first writes its rows to a gzipped CSV file in the same
+ * layout as data/orders.csv, through a read-only cursor on the still
+ * attached partition.  A second, short transaction then detaches and drops
+ * the partition, after checking that it still holds exactly the exported
+ * orders.  DETACH locks all of Orders, so that lock is only held for the
+ * check, not for the export.  A month that changed in between stays
+ * attached, and the file only gets its final name once the month is
+ * dropped.  The popularity totals are running sums, so the reports still
+ * count archived orders; only a customer's recent orders stop at the
+ * archive horizon.
+ *
+ */
+public class OrderPartitions {
+
+   static final String ENSURE = "SELECT ensure_order_partitions(CAST(? AS timestamp), CAST(? AS timestamp))";
+
+   static final String MONTHLY_PARTITIONS =
+      "SELECT C.relname FROM pg_inherits I, pg_class C" +
+      " WHERE I.inhrelid = C.oid AND I.inhparent = CAST('orders' AS regclass)" +
+      " ORDER BY C.relname";
+
+   static final String ARCHIVE_COLUMNS = "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime";
+   private static final String EXPORT_CURSOR = "archive_export";
+
+   // partition names are built by ensure_order_partitions; anything else is left alone
+   private static final Pattern MONTHLY = Pattern.compile("orders_[0-9]{4}_[0-9]{2}");
+
+   private static final RowMapper<String> NAME = new RowMapper<String>() {
+      public String map(ResultSet rs) throws SQLException {
+         return rs.getString(1);
+      }
+   };
+
+   private static final RowMapper<Exported> CONTENT = new RowMapper<Exported>() {
+      public Exported map(ResultSet rs) throws SQLException {
+         return new Exported(rs.getLong(1), rs.getLong(2));
+      }
+   };
+
+   /**
+    * The orders a partition held, as their count and last order number.
+    * Orders are only ever added with a higher number, so two equal ones
+    * mean the same rows.
+    */
+   private static class Exported {
+      final long rows;
+      final long lastOrderNumber;
+
+      Exported(long rows, long lastOrderNumber) {
+         this.rows = rows;
+         this.lastOrderNumber = lastOrderNumber;
+      }
+
+      boolean same(Exported other) {
+         return rows == other.rows && lastOrderNumber == other.lastOrderNumber;
+      }
+   }//end Exported
+
+   private final Retail esql;
+
+   public OrderPartitions(Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Creates the partitions from last month to monthsAhead months from now
+    * that do not exist yet.
+    *
+    * @return how many partitions were created
+    * @throws java.sql.SQLException when they could not be created
+    */
+   public int ensureAhead(int monthsAhead) throws SQLException {
+      Calendar from = monthStart(-1);
+      Calendar to = monthStart(monthsAhead);
+      List<Integer> created = esql.executeQueryAndMap(ENSURE, Rows.INT,
+         new Timestamp(from.getTimeInMillis()), new Timestamp(to.getTimeInMillis()));
+      return created.isEmpty() ? 0 : created.get(0);
+   }
+
+   /**
+    * Runs ensureAhead once a day on a daemon thread, for processes that stay
+    * up across month ends.
+    */
+   public void scheduleDaily(final int monthsAhead) {
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "retail-partitions");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               ensureAhead(monthsAhead);
+            } catch (Exception e) {
+               System.err.println("Unable to create Orders partitions: " + e.getMessage());
+            }
+         }
+      }, 1, 1, TimeUnit.DAYS);
+   }
+
+   /**
+    * Archives every monthly partition older than keepMonths full months
+    * before the current one, oldest first.
+    *
+    * @param keepMonths how many months before the current one stay online
+    * @param dir where the orders_YYYY_MM.csv.gz files are written
+    * @return the archived partitions' names
+    * @throws java.sql.SQLException when a partition could not be detached or
+    *         dropped, or changed while it was exported; the ones before it
+    *         stay archived
+    * @throws java.io.IOException when an export could not be written
+    */
+   public List<String> archive(int keepMonths, File dir) throws SQLException, IOException {
+      Calendar cutoff = monthStart(-keepMonths);
+      String oldestKept = String.format("orders_%04d_%02d", cutoff.get(Calendar.YEAR), cutoff.get(Calendar.MONTH) + 1);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Unable to create " + dir);
+      }
+      List<String> archived = new ArrayList<String>();
+      List<String> partitions = esql.executeQueryAndMap(MONTHLY_PARTITIONS, NAME);
+      for (int i = 0; i < partitions.size(); i++) {
+         String name = partitions.get(i);
+         if (MONTHLY.matcher(name).matches() && name.compareTo(oldestKept) < 0) {
+            long rows = archivePartition(name, new File(dir, name + ".csv.gz"));
+            System.err.println("Archived " + rows + " orders from " + name);
+            archived.add(name);
+         }
+      }
+      return archived;
+   }
+
+   private long archivePartition(String name, File file) throws SQLException, IOException {
+      ConnectionPool pool = esql.getPool();
+      File temp = new File(file.getPath() + ".tmp");
+      Exported exported;
+      try {
+         exported = export(name, temp);
+         // detached only now, and only if no order was added or removed
+         // since, so Orders is not locked through the export
+         pool.begin();
+         try {
+            esql.executeUpdate("ALTER TABLE Orders DETACH PARTITION " + name);
+            Exported current = esql.executeQueryAndMap(
+               "SELECT COUNT(*), COALESCE(MAX(orderNumber), 0) FROM " + name, CONTENT).get(0);
+            if (!current.same(exported)) {
+               throw new SQLException(name + " changed while it was exported (" + exported.rows + " orders exported, "
+                                      + current.rows + " now); it stays attached");
+            }
+            esql.executeUpdate("DROP TABLE " + name);
+         } catch (SQLException e) {
+            pool.rollback();
+            throw e;
+         } catch (RuntimeException e) {
+            pool.rollback();
+            throw e;
+         }
+      } catch (SQLException e) {
+         temp.delete();
+         throw e;
+      } catch (IOException e) {
+         temp.delete();
+         throw e;
+      } catch (RuntimeException e) {
+         temp.delete();
+         throw e;
+      }
+      // a commit that fails may still have dropped the month, so the export
+      // is kept, under its temporary name, whatever happens here
+      pool.commit();
+      if (!temp.renameTo(file)) {
+         throw new IOException("Archived " + name + " to " + temp + " but could not rename it to " + file);
+      }
+      return exported.rows;
+   }
+
+   // pages the attached partition through a cursor in a read-only
+   // transaction into a gzipped CSV file; the bundled driver has no fetch
+   // size, so rows are fetched FETCH_SIZE at a time
+   private Exported export(String name, File file) throws SQLException, IOException {
+      ConnectionPool pool = esql.getPool();
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+         new GZIPOutputStream(new FileOutputStream(file), 1 << 16), "UTF-8"), 1 << 16);
+      pool.begin();
+      // the pinned connection, so the cursor lives in the transaction
+      PooledConnection conn = pool.acquire();
+      long rows = 0;
+      long lastOrderNumber = 0;
+      boolean ok = false;
+      try {
+         conn.prepare("SET TRANSACTION READ ONLY").execute();
+         conn.prepare("DECLARE " + EXPORT_CURSOR + " NO SCROLL CURSOR FOR SELECT " + ARCHIVE_COLUMNS
+                      + " FROM " + name + " ORDER BY orderNumber").execute();
+         PreparedStatement fetch = conn.prepare("FETCH FORWARD " + Retail.FETCH_SIZE + " FROM " + EXPORT_CURSOR);
+         out.write(ARCHIVE_COLUMNS);
+         out.write('\n');
+         StringBuilder line = new StringBuilder(96);
+         int page;
+         do {
+            ResultSet rs = fetch.executeQuery();
+            page = 0;
+            while (rs.next()) {
+               lastOrderNumber = rs.getInt(1);
+               line.setLength(0);
+               line.append(lastOrderNumber).append(',').append(rs.getInt(2)).append(',').append(rs.getInt(3)).append(',');
+               csv(line, Rows.trim(rs.getString(4)));
+               line.append(',').append(rs.getInt(5)).append(',').append(Rows.format(rs.getTimestamp(6))).append('\n');
+               out.append(line);
+               page++;
+            }//end while
+            rs.close();
+            rows += page;
+         } while (page == Retail.FETCH_SIZE);
+         ok = true;
+      } finally {
+         pool.release(conn);
+         // nothing was written, so ending the transaction either way only
+         // closes the cursor
+         try {
+            if (ok) {
+               pool.commit();
+            } else {
+               pool.rollback();
+            }
+         } finally {
+            out.close();
+         }
+      }
+      return new Exported(rows, lastOrderNumber);
+   }
+
+   private static void csv(StringBuilder line, String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+         line.append(value);
+         return;
+      }
+      line.append('"').append(value.replace("\"", "\"\"")).append('"');
+   }
+
+   // the first instant of the month the given number of months from now
+   private static Calendar monthStart(int months) {
+      Calendar month = Calendar.getInstance();
+      month.set(Calendar.DAY_OF_MONTH, 1);
+      month.set(Calendar.HOUR_OF_DAY, 0);
+      month.set(Calendar.MINUTE, 0);
+      month.set(Calendar.SECOND, 0);
+      month.set(Calendar.MILLISECOND, 0);
+      month.add(Calendar.MONTH, months);
+      return month;
+   }
+
+}//end OrderPartitions
@@ -0,0 +1,139 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGStatement;
+
+/**
+ * A physical database connection handed out by a ConnectionPool.  Each
+ * connection keeps its own LRU cache of PreparedStatements keyed by SQL text,
+ * so a query shape is parsed and planned once per connection instead of once
+ * per call.
+ *
+ * The driver only interpolates parameters into the SQL text unless a
+ * statement is switched to server-side prepare.  A cached statement that
+ * PREPARE accepts is switched, so its first execution sends PREPARE and every
+ * later one only EXECUTE with the values.  Cursor commands, DDL and
+ * statements that are not the driver's own, such as a wrapper's, are left as
+ * they are.
+ *
+ */
+public class PooledConnection {
+
+   // statements PREPARE accepts
+   private static final Pattern PREPARABLE = Pattern.compile(
+      "\\s*(SELECT|INSERT|UPDATE|DELETE|WITH|VALUES)\\b", Pattern.CASE_INSENSITIVE);
+
+   private final Connection connection;
+   private final int statementCacheSize;
+   private final LinkedHashMap<String, PreparedStatement> statements;
+
+   PooledConnection(Connection connection, int statementCacheSize) {
+      this.connection = connection;
+      this.statementCacheSize = statementCacheSize;
+      // access-ordered so the eldest entry is the least recently used one
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }
+
+   /**
+    * @return the underlying JDBC connection
+    */
+   public Connection getConnection() {
+      return connection;
+   }
+
+   /**
+    * Returns the cached PreparedStatement for a query shape, preparing it on
+    * first use.  Callers must close the ResultSets they open but never the
+    * statement itself.
+    *
+    * @param sql the parameterized SQL text
+    * @return a ready to bind statement
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt == null) {
+         stmt = connection.prepareStatement(sql);
+         if (stmt instanceof PGStatement && PREPARABLE.matcher(sql).lookingAt()) {
+            ((PGStatement) stmt).setUseServerPrepare(true);
+         }
+         statements.put(sql, stmt);
+         evictOverflow();
+      } else {
+         stmt.clearParameters();
+      }
+      return stmt;
+   }
+
+   /**
+    * Drops a query shape's cached statement after it failed, so the next
+    * call prepares it afresh.  The driver names a server-side statement
+    * before its first PREPARE runs, so a PREPARE that failed, in an aborted
+    * transaction for example, would otherwise leave a statement whose every
+    * EXECUTE fails.
+    */
+   public void discard(String sql) {
+      PreparedStatement stmt = statements.remove(sql);
+      if (stmt != null) {
+         closeQuietly(stmt);
+      }
+   }
+
+   private void evictOverflow() {
+      Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+      while (statements.size() > statementCacheSize && it.hasNext()) {
+         PreparedStatement eldest = it.next().getValue();
+         it.remove();
+         closeQuietly(eldest);
+      }
+   }
+
+   /**
+    * @return the number of statements currently cached
+    */
+   public int cachedStatements() {
+      return statements.size();
+   }
+
+   /**
+    * Puts the connection back into auto-commit mode, rolling back anything a
+    * caller left open, so the next borrower starts clean.
+    *
+    * @throws java.sql.SQLException when the connection is no longer usable
+    */
+   void reset() throws SQLException {
+      if (!connection.getAutoCommit()) {
+         connection.rollback();
+         connection.setAutoCommit(true);
+      }
+   }
+
+   /**
+    * Closes every cached statement and the physical connection.
+    */
+   void close() {
+      for (PreparedStatement stmt : statements.values()) {
+         closeQuietly(stmt);
+      }
+      statements.clear();
+      try {
+         connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+}//end PooledConnection
@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory index over the distinct product names, for the "find a product
+ * near me" search.  Every name is keyed, lower case, by the whole name and
+ * by each of its words, in a sorted map, so a prefix lookup is one range of
+ * the map: "co" finds "Coke" and "Diet Coke".
+ *
+ * A term with no prefix match is matched fuzzily instead: against the start
+ * of every key, allowing one edit for terms of 4 to 7 characters and two for
+ * longer ones, so "pepsy" and "coka" still find "Pepsi" and "Coke".
+ *
+ */
+public class ProductSearch {
+
+   /**
+    * A store within the search radius that has a matching product in stock.
+    */
+   public static class Hit {
+      public final StoreIndex.Entry store;
+      public final double distance;
+      public final Rows.Product product;
+
+      public Hit(StoreIndex.Entry store, double distance, Rows.Product product) {
+         this.store = store;
+         this.distance = distance;
+         this.product = product;
+      }
+   }//end Hit
+
+   // nearest store first, then cheapest, then by name so the order is stable
+   static final Comparator<Hit> BY_DISTANCE_THEN_PRICE = new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+         int c = Double.compare(a.distance, b.distance);
+         if (c == 0) {
+            c = Double.compare(a.product.pricePerUnit, b.product.pricePerUnit);
+         }
+         if (c == 0) {
+            c = a.store.storeID - b.store.storeID;
+         }
+         return c != 0 ? c : a.product.productName.compareTo(b.product.productName);
+      }
+   };
+
+   // most names a term may match; a one-letter term would otherwise match half the catalog
+   static final int MAX_NAMES = 20;
+
+   // lower case name or word -> the names it starts
+   private final TreeMap<String, Set<String>> keys = new TreeMap<String, Set<String>>();
+
+   /**
+    * @param names the distinct product names
+    */
+   public ProductSearch(Collection<String> names) {
+      for (String name : names) {
+         String trimmed = Rows.trim(name);
+         String lower = trimmed.toLowerCase();
+         key(lower, trimmed);
+         String[] words = lower.split("[^a-z0-9]+");
+         for (int i = 0; i < words.length; i++) {
+            if (words[i].length() > 0) {
+               key(words[i], trimmed);
+            }
+         }
+      }
+   }
+
+   private void key(String key, String name) {
+      Set<String> names = keys.get(key);
+      if (names == null) {
+         names = new LinkedHashSet<String>();
+         keys.put(key, names);
+      }
+      names.add(name);
+   }
+
+   /**
+    * @return the product names the term is a prefix of, or, if there are
+    *         none, the ones it nearly matches; at most MAX_NAMES
+    */
+   public List<String> names(String term) {
+      String lower = term.trim().toLowerCase();
+      Set<String> found = new LinkedHashSet<String>();
+      if (lower.length() == 0) {
+         return new ArrayList<String>();
+      }
+      SortedMap<String, Set<String>> range = keys.subMap(lower, lower + Character.MAX_VALUE);
+      for (Set<String> names : range.values()) {
+         found.addAll(names);
+      }
+      if (found.isEmpty()) {
+         int allowed = lower.length() < 4 ? 0 : lower.length() < 8 ? 1 : 2;
+         for (Map.Entry<String, Set<String>> key : keys.entrySet()) {
+            if (allowed > 0 && prefixDistance(lower, key.getKey(), allowed) <= allowed) {
+               found.addAll(key.getValue());
+            }
+         }
+      }
+      List<String> result = new ArrayList<String>(found);
+      return result.size() > MAX_NAMES ? new ArrayList<String>(result.subList(0, MAX_NAMES)) : result;
+   }
+
+   /**
+    * The fewest edits (insertions, deletions, substitutions) that turn term
+    * into some prefix of key, or more than limit if that is over limit.
+    */
+   static int prefixDistance(String term, String key, int limit) {
+      // previous[j]: edits between term's first i-1 chars and key's first j
+      int[] previous = new int[key.length() + 1];
+      int[] current = new int[key.length() + 1];
+      for (int j = 0; j <= key.length(); j++) {
+         previous[j] = j;
+      }
+      for (int i = 1; i <= term.length(); i++) {
+         current[0] = i;
+         int best = current[0];
+         for (int j = 1; j <= key.length(); j++) {
+            int cost = term.charAt(i - 1) == key.charAt(j - 1) ? 0 : 1;
+            current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+            best = Math.min(best, current[j]);
+         }
+         if (best > limit) {
+            return best;
+         }
+         int[] swap = previous;
+         previous = current;
+         current = swap;
+      }
+      // any prefix of key will do, so the best of the last row
+      int distance = previous[0];
+      for (int j = 1; j <= key.length(); j++) {
+         distance = Math.min(distance, previous[j]);
+      }
+      return distance;
+   }
+
+}//end ProductSearch
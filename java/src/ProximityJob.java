@@ -0,0 +1,391 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Precomputes UserNearbyStores: for every user, the stores within a radius,
+ * with their distances, so the store screens read one user's rows instead
+ * of searching the stores on every call.
+ *
+ * The points are held in primitive arrays sorted by latitude.  A user's
+ * stores are found by binary searching the band of stores within the
+ * radius in latitude, skipping those outside it in longitude, and only
+ * then working out the distance, the same euclidean one as
+ * Retail.calculateDistance.  The users are split into chunks over a
+ * fork-join pool.
+ *
+ * A full run replaces every row.  An incremental run only redoes the users
+ * and stores the triggers on Users and Store queued in StaleUserProximity
+ * and StaleStoreProximity: a queued user's rows are replaced by its stores,
+ * and a queued store's rows by its users.  Either run takes the queues in
+ * the transaction that writes the rows, so a user who moves meanwhile is
+ * queued again and redone by the next run.
+ *
+ */
+public class ProximityJob {
+
+   // query points per fork-join task
+   static final int POINTS_PER_TASK = 1024;
+
+   // rows written per insert, and IDs per IN list
+   static final int INSERT_BATCH = 1000;
+
+   static final String ALL_USERS = "SELECT userID, latitude, longitude FROM Users";
+   static final String ALL_STORES = "SELECT storeID, latitude, longitude FROM Store";
+   static final String TAKE_STALE_USERS = "DELETE FROM StaleUserProximity RETURNING userID";
+   static final String TAKE_STALE_STORES = "DELETE FROM StaleStoreProximity RETURNING storeID";
+
+   /**
+    * IDs and coordinates in parallel arrays, sorted by latitude.
+    */
+   static class Points {
+      final int[] ids;
+      final double[] latitudes;
+      final double[] longitudes;
+
+      Points(final int[] ids, final double[] latitudes, final double[] longitudes) {
+         Integer[] order = new Integer[ids.length];
+         for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+         }
+         Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               return Double.compare(latitudes[a], latitudes[b]);
+            }
+         });
+         this.ids = new int[ids.length];
+         this.latitudes = new double[ids.length];
+         this.longitudes = new double[ids.length];
+         for (int i = 0; i < order.length; i++) {
+            this.ids[i] = ids[order[i]];
+            this.latitudes[i] = latitudes[order[i]];
+            this.longitudes[i] = longitudes[order[i]];
+         }
+      }
+
+      int size() {
+         return ids.length;
+      }
+
+      // index of the first point whose latitude is at least the given one
+      int from(double latitude) {
+         int low = 0;
+         int high = latitudes.length;
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (latitudes[middle] < latitude) {
+               low = middle + 1;
+            } else {
+               high = middle;
+            }
+         }
+         return low;
+      }
+   }//end Points
+
+   /**
+    * UserNearbyStores rows in parallel growable arrays.
+    */
+   static class Pairs {
+      int size = 0;
+      int[] users = new int[64];
+      int[] stores = new int[64];
+      double[] distances = new double[64];
+
+      void add(int userID, int storeID, double distance) {
+         if (size == users.length) {
+            users = Arrays.copyOf(users, size * 2);
+            stores = Arrays.copyOf(stores, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+         }
+         users[size] = userID;
+         stores[size] = storeID;
+         distances[size] = distance;
+         size++;
+      }
+
+      void addAll(Pairs other) {
+         for (int i = 0; i < other.size; i++) {
+            add(other.users[i], other.stores[i], other.distances[i]);
+         }
+      }
+   }//end Pairs
+
+   private static final RowMapper<double[]> POINT = new RowMapper<double[]>() {
+      public double[] map(ResultSet rs) throws SQLException {
+         return new double[] { rs.getInt(1), rs.getDouble(2), rs.getDouble(3) };
+      }
+   };
+
+   private final Retail esql;
+   private final ForkJoinPool workers;
+   private final double radius;
+   private ScheduledExecutorService scheduler = null;
+
+   /**
+    * @param esql the database the rows are written to
+    * @param parallelism how many chunks are worked on at once
+    * @param radius how far a nearby store may be
+    */
+   public ProximityJob(Retail esql, int parallelism, double radius) {
+      this.esql = esql;
+      this.workers = new ForkJoinPool(Math.max(1, parallelism));
+      this.radius = radius;
+   }
+
+   /**
+    * Replaces every user's nearby stores.
+    *
+    * @return the rows written
+    * @throws java.sql.SQLException when the points could not be read or the
+    *         rows written; nothing is changed then
+    */
+   public int runFull() throws SQLException {
+      ConnectionPool pool = esql.getPool();
+      pool.begin();
+      try {
+         esql.executeQueryAndMap(TAKE_STALE_USERS, Rows.INT);
+         esql.executeQueryAndMap(TAKE_STALE_STORES, Rows.INT);
+         Points users = points(ALL_USERS);
+         Points stores = points(ALL_STORES);
+         Pairs rows = workers.invoke(new Near(users, 0, users.size(), stores, true));
+         esql.executeUpdate("DELETE FROM UserNearbyStores");
+         insert(rows);
+         pool.commit();
+         // sessions re-read their nearby stores
+         esql.invalidateSession();
+         return rows.size;
+      } catch (SQLException e) {
+         pool.rollback();
+         throw e;
+      } catch (RuntimeException e) {
+         pool.rollback();
+         throw e;
+      }
+   }
+
+   /**
+    * Redoes the users and stores queued since the last run.
+    *
+    * @return the rows written
+    * @throws java.sql.SQLException when the points could not be read or the
+    *         rows written; the queues are left as they were then
+    */
+   public int runIncremental() throws SQLException {
+      ConnectionPool pool = esql.getPool();
+      pool.begin();
+      try {
+         List<Integer> staleUsers = esql.executeQueryAndMap(TAKE_STALE_USERS, Rows.INT);
+         List<Integer> staleStores = esql.executeQueryAndMap(TAKE_STALE_STORES, Rows.INT);
+         Pairs rows = new Pairs();
+         if (!staleUsers.isEmpty()) {
+            Points users = points(ALL_USERS + " WHERE userID IN ", staleUsers);
+            Points stores = points(ALL_STORES);
+            rows.addAll(workers.invoke(new Near(users, 0, users.size(), stores, true)));
+            delete("DELETE FROM UserNearbyStores WHERE userID IN ", staleUsers);
+         }
+         if (!staleStores.isEmpty()) {
+            Points stores = points(ALL_STORES + " WHERE storeID IN ", staleStores);
+            Points users = points(ALL_USERS);
+            rows.addAll(workers.invoke(new Near(stores, 0, stores.size(), users, false)));
+            delete("DELETE FROM UserNearbyStores WHERE storeID IN ", staleStores);
+         }
+         insert(rows);
+         pool.commit();
+         if (!staleUsers.isEmpty() || !staleStores.isEmpty()) {
+            esql.invalidateSession();
+         }
+         return rows.size;
+      } catch (SQLException e) {
+         pool.rollback();
+         throw e;
+      } catch (RuntimeException e) {
+         pool.rollback();
+         throw e;
+      }
+   }
+
+   /**
+    * Runs runIncremental every intervalMillis on a daemon thread.
+    */
+   public synchronized void schedule(long intervalMillis) {
+      if (scheduler != null) {
+         return;
+      }
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "retail-proximity");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            Retail.METRICS.setOperation("proximity");
+            try {
+               runIncremental();
+            } catch (Exception e) {
+               System.err.println("Unable to update the nearby stores: " + e.getMessage());
+            }
+         }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops the scheduled runs and the worker threads.  Call it before the
+    * connection pool is closed.
+    */
+   public synchronized void close() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+      }
+      workers.shutdownNow();
+   }
+
+   /**
+    * Finds, for each query point in [from, to), the targets within the
+    * radius, splitting the range in halves down to POINTS_PER_TASK.  A
+    * user's stores come out nearest first.
+    */
+   private class Near extends RecursiveTask<Pairs> {
+      private static final long serialVersionUID = 1L;
+
+      private final Points queries;
+      private final int from;
+      private final int to;
+      private final Points targets;
+      private final boolean queriesAreUsers;
+
+      Near(Points queries, int from, int to, Points targets, boolean queriesAreUsers) {
+         this.queries = queries;
+         this.from = from;
+         this.to = to;
+         this.targets = targets;
+         this.queriesAreUsers = queriesAreUsers;
+      }
+
+      protected Pairs compute() {
+         if (to - from > POINTS_PER_TASK) {
+            int middle = (from + to) >>> 1;
+            Near left = new Near(queries, from, middle, targets, queriesAreUsers);
+            left.fork();
+            Pairs pairs = new Near(queries, middle, to, targets, queriesAreUsers).compute();
+            Pairs first = left.join();
+            first.addAll(pairs);
+            return first;
+         }
+         Pairs pairs = new Pairs();
+         double r2 = radius * radius;
+         for (int q = from; q < to; q++) {
+            double lat = queries.latitudes[q];
+            double lon = queries.longitudes[q];
+            int start = pairs.size;
+            for (int t = targets.from(lat - radius); t < targets.size() && targets.latitudes[t] <= lat + radius; t++) {
+               double dLon = targets.longitudes[t] - lon;
+               if (dLon > radius || dLon < -radius) {
+                  continue;
+               }
+               double dLat = targets.latitudes[t] - lat;
+               double d2 = dLat * dLat + dLon * dLon;
+               if (d2 <= r2) {
+                  if (queriesAreUsers) {
+                     pairs.add(queries.ids[q], targets.ids[t], Math.sqrt(d2));
+                  } else {
+                     pairs.add(targets.ids[t], queries.ids[q], Math.sqrt(d2));
+                  }
+               }
+            }
+            if (queriesAreUsers) {
+               sortByDistance(pairs, start, pairs.size);
+            }
+         }
+         return pairs;
+      }
+   }//end Near
+
+   // insertion sort of one user's few rows, nearest first
+   private static void sortByDistance(Pairs pairs, int from, int to) {
+      for (int i = from + 1; i < to; i++) {
+         int store = pairs.stores[i];
+         double distance = pairs.distances[i];
+         int j = i - 1;
+         while (j >= from && pairs.distances[j] > distance) {
+            pairs.stores[j + 1] = pairs.stores[j];
+            pairs.distances[j + 1] = pairs.distances[j];
+            j--;
+         }
+         pairs.stores[j + 1] = store;
+         pairs.distances[j + 1] = distance;
+      }
+   }
+
+   private Points points(String sql) throws SQLException {
+      return points(esql.executeQueryAndMap(sql, POINT));
+   }
+
+   // the points of the given IDs, read IN list by IN list
+   private Points points(String sqlUpToIn, List<Integer> ids) throws SQLException {
+      List<double[]> rows = new ArrayList<double[]>(ids.size());
+      for (int from = 0; from < ids.size(); from += INSERT_BATCH) {
+         List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + INSERT_BATCH));
+         rows.addAll(esql.executeQueryAndMap(sqlUpToIn + in(chunk.size()), POINT, chunk.toArray()));
+      }
+      return points(rows);
+   }
+
+   private static Points points(List<double[]> rows) {
+      int[] ids = new int[rows.size()];
+      double[] latitudes = new double[rows.size()];
+      double[] longitudes = new double[rows.size()];
+      for (int i = 0; i < ids.length; i++) {
+         double[] row = rows.get(i);
+         ids[i] = (int) row[0];
+         latitudes[i] = row[1];
+         longitudes[i] = row[2];
+      }
+      return new Points(ids, latitudes, longitudes);
+   }
+
+   private void delete(String sqlUpToIn, List<Integer> ids) throws SQLException {
+      for (int from = 0; from < ids.size(); from += INSERT_BATCH) {
+         List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + INSERT_BATCH));
+         esql.executeUpdate(sqlUpToIn + in(chunk.size()), chunk.toArray());
+      }
+   }
+
+   // a queued user and a queued store can produce the same row
+   private void insert(Pairs rows) throws SQLException {
+      for (int from = 0; from < rows.size; from += INSERT_BATCH) {
+         int count = Math.min(rows.size - from, INSERT_BATCH);
+         Object[] params = new Object[count * 3];
+         StringBuilder sql = new StringBuilder(100 + count * 12);
+         sql.append("INSERT INTO UserNearbyStores (userID, storeID, distance) VALUES ");
+         for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+            params[i * 3] = rows.users[from + i];
+            params[i * 3 + 1] = rows.stores[from + i];
+            params[i * 3 + 2] = rows.distances[from + i];
+         }
+         sql.append(" ON CONFLICT DO NOTHING");
+         esql.executeUpdate(sql.toString(), params);
+      }
+   }
+
+   private static String in(int count) {
+      StringBuilder list = new StringBuilder(2 + count * 3).append('(');
+      for (int i = 0; i < count; i++) {
+         list.append(i == 0 ? "?" : ", ?");
+      }
+      return list.append(')').toString();
+   }
+
+}//end ProximityJob
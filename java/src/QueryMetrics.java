@@ -0,0 +1,365 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+
+/**
+ * Latency and volume statistics for every statement the Retail helpers run,
+ * kept per menu operation and query shape.  A query shape is the SQL text,
+ * with runs of placeholders such as IN lists, and the variable-length VALUES
+ * lists of carts and bulk staging, collapsed so every cart size counts as
+ * one shape.
+ *
+ * Recording a statement costs two clock reads, two map lookups and a few
+ * atomic increments, so the metrics are always on.  Latencies go into a
+ * log-linear histogram (four buckets per power of two of microseconds),
+ * which puts p50 and p99 within about 19% of the true value.
+ *
+ * The statistics are exposed through JMX as retail:type=QueryMetrics, and
+ * when retail.metrics.file is set they are also written to that file every
+ * retail.metrics.intervalMs milliseconds.
+ *
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // 4 sub-buckets for each power of two up to 2^40 microseconds
+   static final int SUB_BUCKETS = 4;
+   static final int BUCKETS = 41 * SUB_BUCKETS;
+
+   // distinct shapes beyond this many per operation are counted under OTHER_SHAPE
+   static final int MAX_SHAPES = 1024;
+   // raw SQL texts remembered per operation, so repeats skip the normalization
+   static final int MAX_TEXTS = 8 * MAX_SHAPES;
+   static final String OTHER_SHAPE = "(other)";
+   static final String UNTAGGED = "(none)";
+
+   // a parenthesized tuple up to three levels deep, such as (CAST(? AS char(30)), ?),
+   // followed by more copies of itself
+   private static final String NESTED_1 = "\\([^()]*\\)";
+   private static final String NESTED_2 = "\\((?:[^()]|" + NESTED_1 + ")*\\)";
+   private static final String TUPLE = "\\((?:[^()]|" + NESTED_2 + ")*\\)";
+   private static final Pattern VALUES_LIST = Pattern.compile("(" + TUPLE + ")(?:\\s*+,\\s*+\\1)++");
+   // two or more placeholders in a row, such as an IN list
+   private static final Pattern PARAM_LIST = Pattern.compile("\\?(?:\\s*+,\\s*+\\?)++");
+
+   private static final QueryMetrics INSTANCE = new QueryMetrics();
+
+   /**
+    * The statistics of one operation and query shape.
+    */
+   static class Stats {
+      final String operation;
+      final String shape;
+      final AtomicLong count = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      final AtomicLong totalMicros = new AtomicLong();
+      final AtomicLong maxMicros = new AtomicLong();
+      final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+      Stats(String operation, String shape) {
+         this.operation = operation;
+         this.shape = shape;
+      }
+
+      void record(long micros, long rowCount, long byteCount, boolean ok) {
+         count.incrementAndGet();
+         if (!ok) {
+            errors.incrementAndGet();
+         }
+         if (rowCount > 0) {
+            rows.addAndGet(rowCount);
+         }
+         if (byteCount > 0) {
+            bytes.addAndGet(byteCount);
+         }
+         totalMicros.addAndGet(micros);
+         histogram.incrementAndGet(bucket(micros));
+         long max = maxMicros.get();
+         while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+         }
+      }
+
+      /**
+       * @return the upper bound of the bucket holding the given percentile
+       */
+      long percentile(double p) {
+         long total = 0;
+         long[] counts = new long[BUCKETS];
+         for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+         }
+         if (total == 0) {
+            return 0;
+         }
+         long rank = (long) Math.ceil(p * total);
+         long seen = 0;
+         for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+               return Math.min(upperBound(i), maxMicros.get());
+            }
+         }
+         return maxMicros.get();
+      }
+   }//end Stats
+
+   /**
+    * The statistics of one operation, by shape and by the raw SQL texts
+    * already seen.
+    */
+   static class Shapes {
+      final ConcurrentMap<String, Stats> byShape = new ConcurrentHashMap<String, Stats>();
+      final ConcurrentMap<String, Stats> byText = new ConcurrentHashMap<String, Stats>();
+   }//end Shapes
+
+   // operation -> its shapes
+   private final ConcurrentMap<String, Shapes> stats = new ConcurrentHashMap<String, Shapes>();
+   private final ThreadLocal<String> operation = new ThreadLocal<String>();
+   private final AtomicLong totalQueries = new AtomicLong();
+   private final AtomicLong totalErrors = new AtomicLong();
+   private final boolean enabled = !"false".equalsIgnoreCase(System.getProperty("retail.metrics"));
+   private boolean started = false;
+
+   /**
+    * @return the process-wide metrics
+    */
+   public static QueryMetrics get() {
+      return INSTANCE;
+   }
+
+   /**
+    * Registers the JMX bean and, if retail.metrics.file is set, starts the
+    * periodic dump.  Later calls do nothing.
+    */
+   public synchronized void start() {
+      if (started || !enabled) {
+         return;
+      }
+      started = true;
+      try {
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("retail:type=QueryMetrics"));
+      } catch (Exception e) {
+         System.err.println("Query metrics are not available through JMX: " + e.getMessage());
+      }
+      final String file = System.getProperty("retail.metrics.file");
+      if (file != null) {
+         long interval = Long.getLong("retail.metrics.intervalMs", 60000L);
+         ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+               Thread thread = new Thread(task, "retail-metrics");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+         dumper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+               dumpTo(file);
+            }
+         }, interval, interval, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Tags the statements the calling thread runs from now on with a menu
+    * operation.
+    *
+    * @return the previous tag, to hand back to setOperation when done
+    */
+   public String setOperation(String name) {
+      String previous = operation.get();
+      operation.set(name);
+      return previous;
+   }
+
+   /**
+    * @return the calling thread's operation tag, or null
+    */
+   public String getOperation() {
+      return operation.get();
+   }
+
+   /**
+    * Records one executed statement.
+    *
+    * @param sql the statement's SQL text
+    * @param startNanos System.nanoTime() when it started
+    * @param rowCount rows returned or changed
+    * @param byteCount bytes of result rows read, 0 for statements that return none
+    * @param ok false if it failed
+    */
+   public void record(String sql, long startNanos, long rowCount, long byteCount, boolean ok) {
+      if (!enabled) {
+         return;
+      }
+      long micros = (System.nanoTime() - startNanos) / 1000;
+      totalQueries.incrementAndGet();
+      if (!ok) {
+         totalErrors.incrementAndGet();
+      }
+      statsFor(sql).record(micros, rowCount, byteCount, ok);
+   }
+
+   private Stats statsFor(String sql) {
+      String op = operation.get();
+      if (op == null) {
+         op = UNTAGGED;
+      }
+      Shapes shapes = stats.get(op);
+      if (shapes == null) {
+         Shapes created = new Shapes();
+         shapes = stats.putIfAbsent(op, created);
+         if (shapes == null) {
+            shapes = created;
+         }
+      }
+      Stats s = shapes.byText.get(sql);
+      if (s != null) {
+         return s;
+      }
+      // first time this text is seen: find or create its shape's stats and
+      // remember the text so later calls skip the normalization
+      String shape = shapeOf(sql);
+      s = shapes.byShape.get(shape);
+      if (s == null) {
+         if (shapes.byShape.size() >= MAX_SHAPES) {
+            shape = OTHER_SHAPE;
+         }
+         Stats created = new Stats(op, shape);
+         s = shapes.byShape.putIfAbsent(shape, created);
+         if (s == null) {
+            s = created;
+         }
+      }
+      if (shapes.byText.size() < MAX_TEXTS) {
+         shapes.byText.putIfAbsent(sql, s);
+      }
+      return s;
+   }
+
+   /**
+    * @return the SQL text with runs of placeholders and repeated VALUES
+    *         tuples collapsed to one
+    */
+   static String shapeOf(String sql) {
+      String shape = PARAM_LIST.matcher(sql).replaceAll("?, ...");
+      return VALUES_LIST.matcher(shape).replaceAll("$1, ...");
+   }
+
+   static int bucket(long micros) {
+      if (micros < SUB_BUCKETS) {
+         return (int) Math.max(0, micros);
+      }
+      int log = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) ((micros >>> (log - 2)) & (SUB_BUCKETS - 1));
+      return Math.min(BUCKETS - 1, (log - 1) * SUB_BUCKETS + sub);
+   }
+
+   static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+         return bucket;
+      }
+      int log = bucket / SUB_BUCKETS + 1;
+      int sub = bucket % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + sub + 1) << (log - 2)) - 1;
+   }
+
+   // every shape's stats, slowest total time first
+   private List<Stats> snapshot() {
+      List<Stats> all = new ArrayList<Stats>();
+      for (Shapes shapes : stats.values()) {
+         all.addAll(shapes.byShape.values());
+      }
+      Collections.sort(all, new Comparator<Stats>() {
+         public int compare(Stats a, Stats b) {
+            return Long.compare(b.totalMicros.get(), a.totalMicros.get());
+         }
+      });
+      return all;
+   }
+
+   public long getTotalQueries() {
+      return totalQueries.get();
+   }
+
+   public long getTotalErrors() {
+      return totalErrors.get();
+   }
+
+   public String[] getQueryStats() {
+      List<Stats> all = snapshot();
+      String[] lines = new String[all.size()];
+      for (int i = 0; i < all.size(); i++) {
+         Stats s = all.get(i);
+         lines[i] = String.format("%s count=%d errors=%d rows=%d bytes=%d p50=%dus p99=%dus max=%dus | %s",
+            s.operation, s.count.get(), s.errors.get(), s.rows.get(), s.bytes.get(),
+            s.percentile(0.50), s.percentile(0.99), s.maxMicros.get(), s.shape);
+      }
+      return lines;
+   }
+
+   public String dumpJson() {
+      StringBuilder text = new StringBuilder(4096);
+      List<Stats> all = snapshot();
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < all.size(); i++) {
+         Stats s = all.get(i);
+         new Json(text).beginObject().field("time", now).field("operation", s.operation)
+            .field("count", s.count.get()).field("errors", s.errors.get())
+            .field("rows", s.rows.get()).field("bytes", s.bytes.get())
+            .field("totalUs", s.totalMicros.get()).field("p50Us", s.percentile(0.50))
+            .field("p99Us", s.percentile(0.99)).field("maxUs", s.maxMicros.get())
+            .field("sql", s.shape).endObject();
+         text.append('\n');
+      }
+      return text.toString();
+   }
+
+   public void reset() {
+      stats.clear();
+      totalQueries.set(0);
+      totalErrors.set(0);
+   }
+
+   /**
+    * Writes dumpJson() to a file, replacing it atomically.
+    */
+   public void dumpTo(String file) {
+      File target = new File(file);
+      File temp = new File(target.getPath() + ".tmp");
+      try {
+         Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+         try {
+            out.write(dumpJson());
+         } finally {
+            out.close();
+         }
+         if (!temp.renameTo(target)) {
+            target.delete();
+            temp.renameTo(target);
+         }
+      } catch (IOException e) {
+         System.err.println("Unable to write query metrics to " + file + ": " + e.getMessage());
+      }
+   }
+
+}//end QueryMetrics
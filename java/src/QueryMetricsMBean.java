@@ -0,0 +1,33 @@
+/**
+ * JMX view of QueryMetrics, registered as retail:type=QueryMetrics.
+ *
+ */
+public interface QueryMetricsMBean {
+
+   /**
+    * @return the number of statements executed since the last reset
+    */
+   long getTotalQueries();
+
+   /**
+    * @return the number of statements that failed since the last reset
+    */
+   long getTotalErrors();
+
+   /**
+    * @return one line per operation and query shape: count, errors, rows,
+    *         bytes and p50/p99/max latency, slowest total time first
+    */
+   String[] getQueryStats();
+
+   /**
+    * @return the same statistics as JSON, one object per line
+    */
+   String dumpJson();
+
+   /**
+    * Clears every statistic.
+    */
+   void reset();
+
+}//end QueryMetricsMBean
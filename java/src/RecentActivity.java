@@ -0,0 +1,98 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Newest-first feeds of a customer's orders and of the product updates on a
+ * manager's stores.  Pages are fetched by keyset: each page asks for the rows
+ * that sort after the last row already shown, so the database walks the
+ * (customerID, orderTime DESC, orderNumber DESC) and
+ * (storeID, updatedOn DESC, updateNumber DESC) indexes from that point and
+ * reads only one page of rows, however long the history is.  Orders are
+ * partitioned by month, newest partitions are read first and the scan stops
+ * once the page is full.
+ *
+ */
+public class RecentActivity {
+
+   static final String ORDER_COLUMNS =
+      "SELECT O.orderNumber, O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime" +
+      " FROM Orders O, Store S WHERE O.storeID = S.storeID AND O.customerID = ?";
+   static final String ORDER_PAGE = " ORDER BY O.orderTime DESC, O.orderNumber DESC LIMIT ?";
+
+   static final String FIRST_ORDERS = ORDER_COLUMNS + ORDER_PAGE;
+   // the plain orderTime bound lets the planner skip the monthly Orders
+   // partitions newer than the page; the row comparison alone does not
+   static final String OLDER_ORDERS = ORDER_COLUMNS +
+      " AND O.orderTime <= ? AND (O.orderTime, O.orderNumber) < (?, ?)" + ORDER_PAGE;
+
+   static final String UPDATE_COLUMNS = "SELECT P.updateNumber, P.managerID, P.storeID, P.productName, P.updatedOn";
+   static final String UPDATE_PAGE = " ORDER BY P.updatedOn DESC, P.updateNumber DESC LIMIT ?";
+
+   // admins see every store, newest first across the whole table
+   static final String FIRST_UPDATES = UPDATE_COLUMNS + " FROM ProductUpdates P" + UPDATE_PAGE;
+   static final String OLDER_UPDATES = UPDATE_COLUMNS + " FROM ProductUpdates P" +
+      " WHERE (P.updatedOn, P.updateNumber) < (?, ?)" + UPDATE_PAGE;
+
+   // managers take one page from each of their stores, then merge the pages
+   static final String FIRST_STORE_UPDATES = UPDATE_COLUMNS + " FROM Store S CROSS JOIN LATERAL (" +
+      "SELECT * FROM ProductUpdates U WHERE U.storeID = S.storeID" +
+      " ORDER BY U.updatedOn DESC, U.updateNumber DESC LIMIT ?) P" +
+      " WHERE S.managerID = ?" + UPDATE_PAGE;
+   static final String OLDER_STORE_UPDATES = UPDATE_COLUMNS + " FROM Store S CROSS JOIN LATERAL (" +
+      "SELECT * FROM ProductUpdates U WHERE U.storeID = S.storeID AND (U.updatedOn, U.updateNumber) < (?, ?)" +
+      " ORDER BY U.updatedOn DESC, U.updateNumber DESC LIMIT ?) P" +
+      " WHERE S.managerID = ?" + UPDATE_PAGE;
+
+   static final long FLUSH_MILLIS = 2000;
+
+   private final Retail esql;
+
+   public RecentActivity(Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * @param customerID the ordering user
+    * @param after the last order of the previous page, or null for the newest orders
+    * @param limit the page size
+    * @return up to limit orders placed before after, newest first
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public List<Rows.RecentOrder> orders(int customerID, Rows.RecentOrder after, int limit) throws SQLException {
+      if (after == null) {
+         return esql.executeQueryAndMap(FIRST_ORDERS, Rows.RECENT_ORDER, customerID, limit);
+      }
+      return esql.executeQueryAndMap(OLDER_ORDERS, Rows.RECENT_ORDER,
+         customerID, after.orderTime, after.orderTime, after.orderNumber, limit);
+   }
+
+   /**
+    * @param session the manager or admin asking; admins see every store
+    * @param after the last update of the previous page, or null for the newest updates
+    * @param limit the page size
+    * @return up to limit product updates made before after, newest first
+    * @throws java.sql.SQLException when the updates could not be read
+    */
+   public List<Rows.ProductUpdate> updates(Session session, Rows.ProductUpdate after, int limit) throws SQLException {
+      // updates still on their way to ProductUpdates are written first, so a
+      // manager sees their own; after FLUSH_MILLIS the page is read anyway
+      try {
+         esql.getAuditLog().flush(FLUSH_MILLIS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (session.isAdmin()) {
+         if (after == null) {
+            return esql.executeQueryAndMap(FIRST_UPDATES, Rows.PRODUCT_UPDATE, limit);
+         }
+         return esql.executeQueryAndMap(OLDER_UPDATES, Rows.PRODUCT_UPDATE,
+            after.updatedOn, after.updateNumber, limit);
+      }
+      if (after == null) {
+         return esql.executeQueryAndMap(FIRST_STORE_UPDATES, Rows.PRODUCT_UPDATE, limit, session.userID, limit);
+      }
+      return esql.executeQueryAndMap(OLDER_STORE_UPDATES, Rows.PRODUCT_UPDATE,
+         after.updatedOn, after.updateNumber, limit, session.userID, limit);
+   }
+
+}//end RecentActivity
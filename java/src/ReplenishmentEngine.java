@@ -0,0 +1,392 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests supply for products that are running low, without a manager
+ * walking through the supply screen.  A product is low when the units on
+ * hand, in Product or held in memory by StripedInventory (HotStock), plus
+ * the units already requested and not yet delivered are at or
+ * below the larger of its reorder point (ReorderPoint, or the default for
+ * products without one) and the units it is expected to sell over the
+ * warehouse lead time.  It is then topped up to that level plus coverDays
+ * of expected sales, from the store's nearest warehouse, in the store
+ * manager's name.  Expected sales are the units ordered over the last
+ * windowDays days.
+ *
+ * A run only looks at the products whose stock this process changed since
+ * the last run.  The first run, and every fullScanEvery-th run after it,
+ * looks at every product instead, which picks up stock changed by other
+ * processes.  The stores are scanned in parallel, a chunk of stores per
+ * fork-join task, and the requests of a whole run are written with a few
+ * multi-row inserts and handed to the supply pipeline.
+ *
+ */
+public class ReplenishmentEngine {
+
+   // stores scanned by one task
+   static final int STORES_PER_TASK = 64;
+
+   // requests written per insert
+   static final int INSERT_BATCH = 500;
+
+   private static final String STOCK_COLUMNS =
+      "SELECT P.storeID, P.productName, P.numberOfUnits +" +
+      " (SELECT COALESCE(SUM(H.units), 0) FROM HotStock H WHERE H.storeID = P.storeID AND H.productName = P.productName)," +
+      " COALESCE(T.reorderPoint, ?)," +
+      " (SELECT COALESCE(SUM(O.unitsOrdered), 0) FROM Orders O" +
+      "   WHERE O.storeID = P.storeID AND O.productName = P.productName AND O.orderTime >= ?)," +
+      " (SELECT COALESCE(SUM(R.unitsRequested), 0) FROM ProductSupplyRequests R" +
+      "   WHERE R.storeID = P.storeID AND R.productName = P.productName AND R.deliveredOn IS NULL)" +
+      " FROM Product P LEFT JOIN ReorderPoint T ON T.productName = P.productName";
+
+   /**
+    * A product's stock as a run sees it.
+    */
+   static class Stock {
+      final int storeID;
+      final String productName;
+      final int units;
+      final int reorderPoint;
+      final int recentlyOrdered;
+      final int onOrder;
+
+      Stock(int storeID, String productName, int units, int reorderPoint, int recentlyOrdered, int onOrder) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+         this.reorderPoint = reorderPoint;
+         this.recentlyOrdered = recentlyOrdered;
+         this.onOrder = onOrder;
+      }
+   }//end Stock
+
+   private static final RowMapper<Stock> STOCK = new RowMapper<Stock>() {
+      public Stock map(ResultSet rs) throws SQLException {
+         return new Stock(rs.getInt(1), Rows.trim(rs.getString(2)), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6));
+      }
+   };
+
+   /**
+    * A supply request a run decided to make.
+    */
+   static class Need {
+      final int managerID;
+      final int warehouseID;
+      final int storeID;
+      final String productName;
+      final int units;
+
+      Need(int managerID, int warehouseID, int storeID, String productName, int units) {
+         this.managerID = managerID;
+         this.warehouseID = warehouseID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+      }
+   }//end Need
+
+   // carries a task's SQLException out of the fork-join pool
+   private static class ScanFailed extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      ScanFailed(SQLException cause) {
+         super(cause);
+      }
+   }//end ScanFailed
+
+   private final Retail esql;
+   private final ForkJoinPool workers;
+   private final int defaultReorderPoint;
+   private final int windowDays;
+   private final int leadDays;
+   private final int coverDays;
+   private final int fullScanEvery;
+   // per store, the products whose stock changed since the last run; guarded by this
+   private Map<Integer, Set<String>> changed = new HashMap<Integer, Set<String>>();
+   private int runs = 0;
+   private ScheduledExecutorService scheduler = null;
+
+   /**
+    * @param esql the database and caches
+    * @param parallelism how many stores' chunks are scanned at once
+    * @param defaultReorderPoint the reorder point of products not in ReorderPoint
+    * @param windowDays how many days of orders the expected sales are taken from
+    * @param leadDays how many days a delivery is expected to take
+    * @param coverDays how many days of expected sales a request adds
+    * @param fullScanEvery how often a run looks at every product; 1 makes
+    *        every run a full one
+    */
+   public ReplenishmentEngine(Retail esql, int parallelism, int defaultReorderPoint, int windowDays,
+                              int leadDays, int coverDays, int fullScanEvery) {
+      this.esql = esql;
+      this.workers = new ForkJoinPool(Math.max(1, parallelism));
+      this.defaultReorderPoint = defaultReorderPoint;
+      this.windowDays = Math.max(1, windowDays);
+      this.leadDays = Math.max(0, leadDays);
+      this.coverDays = Math.max(1, coverDays);
+      this.fullScanEvery = Math.max(1, fullScanEvery);
+   }
+
+   /**
+    * Notes that a product's stock changed, so the next run looks at it.
+    */
+   public synchronized void stockChanged(int storeID, String productName) {
+      Set<String> products = changed.get(storeID);
+      if (products == null) {
+         products = new HashSet<String>();
+         changed.put(storeID, products);
+      }
+      products.add(Rows.trim(productName));
+   }
+
+   /**
+    * Looks at the products due for a look and requests supply for the low
+    * ones.
+    *
+    * @return the requests made
+    * @throws java.sql.SQLException when the stock could not be read or the
+    *         requests written; the changed products are kept for the next run
+    */
+   public List<SupplyPipeline.Request> runOnce() throws SQLException {
+      Map<Integer, Set<String>> products;
+      boolean full;
+      synchronized (this) {
+         full = runs % fullScanEvery == 0;
+         products = changed;
+         changed = new HashMap<Integer, Set<String>>();
+         runs++;
+      }
+      List<Need> needs;
+      try {
+         needs = scan(full ? null : products);
+      } catch (SQLException e) {
+         putBack(products, full);
+         throw e;
+      } catch (RuntimeException e) {
+         putBack(products, full);
+         throw e;
+      }
+      List<SupplyPipeline.Request> made = new ArrayList<SupplyPipeline.Request>(needs.size());
+      for (int from = 0; from < needs.size(); from += INSERT_BATCH) {
+         List<Need> batch = needs.subList(from, Math.min(needs.size(), from + INSERT_BATCH));
+         Object[] params = new Object[batch.size() * 5];
+         for (int i = 0; i < batch.size(); i++) {
+            Need need = batch.get(i);
+            params[i * 5] = need.managerID;
+            params[i * 5 + 1] = need.warehouseID;
+            params[i * 5 + 2] = need.storeID;
+            params[i * 5 + 3] = need.productName;
+            params[i * 5 + 4] = need.units;
+         }
+         List<SupplyPipeline.Request> requests = esql.executeQueryAndMap(insertSql(batch.size()), SupplyPipeline.REQUEST, params);
+         for (int i = 0; i < requests.size(); i++) {
+            esql.getSupplyPipeline().submit(requests.get(i));
+         }
+         made.addAll(requests);
+      }
+      return made;
+   }
+
+   /**
+    * Runs runOnce every intervalMillis on a daemon thread.
+    */
+   public synchronized void schedule(long intervalMillis) {
+      if (scheduler != null) {
+         return;
+      }
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "retail-replenish");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            Retail.METRICS.setOperation("replenish");
+            try {
+               List<SupplyPipeline.Request> made = runOnce();
+               if (!made.isEmpty()) {
+                  System.err.println("Requested supply for " + made.size() + " low products");
+               }
+            } catch (Exception e) {
+               System.err.println("Unable to replenish low stock: " + e.getMessage());
+            }
+         }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops the scheduled runs and the scan threads.  Call it before the
+    * supply pipeline is closed.
+    */
+   public synchronized void close() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+      }
+      workers.shutdownNow();
+   }
+
+   // a failed incremental run leaves its products for the next one
+   private void putBack(Map<Integer, Set<String>> products, boolean full) {
+      synchronized (this) {
+         if (full) {
+            // the next run is a full one again
+            runs = 0;
+            return;
+         }
+         for (Map.Entry<Integer, Set<String>> store : products.entrySet()) {
+            for (String productName : store.getValue()) {
+               stockChanged(store.getKey(), productName);
+            }
+         }
+      }
+   }
+
+   // the needs of every store, or of the given products only
+   private List<Need> scan(Map<Integer, Set<String>> products) throws SQLException {
+      List<StoreIndex.Entry> stores = new ArrayList<StoreIndex.Entry>();
+      List<StoreIndex.Entry> all = esql.getStoreIndex().all();
+      for (int i = 0; i < all.size(); i++) {
+         if (products == null || products.containsKey(all.get(i).storeID)) {
+            stores.add(all.get(i));
+         }
+      }
+      if (stores.isEmpty()) {
+         return new ArrayList<Need>();
+      }
+      long since = System.currentTimeMillis() - windowDays * 24L * 60 * 60 * 1000;
+      Scan scan = new Scan(stores, 0, stores.size(), products, esql.getWarehouseRouter(), new Timestamp(since));
+      try {
+         return workers.invoke(scan);
+      } catch (ScanFailed e) {
+         throw (SQLException) e.getCause();
+      }
+   }
+
+   /**
+    * Splits the stores in halves until a chunk is at most STORES_PER_TASK
+    * stores, and scans a chunk with one query.
+    */
+   private class Scan extends RecursiveTask<List<Need>> {
+      private static final long serialVersionUID = 1L;
+
+      private final List<StoreIndex.Entry> stores;
+      private final int from;
+      private final int to;
+      private final Map<Integer, Set<String>> products;
+      private final WarehouseRouter router;
+      private final Timestamp since;
+
+      Scan(List<StoreIndex.Entry> stores, int from, int to, Map<Integer, Set<String>> products,
+           WarehouseRouter router, Timestamp since) {
+         this.stores = stores;
+         this.from = from;
+         this.to = to;
+         this.products = products;
+         this.router = router;
+         this.since = since;
+      }
+
+      protected List<Need> compute() {
+         if (to - from > STORES_PER_TASK) {
+            int middle = (from + to) >>> 1;
+            Scan left = new Scan(stores, from, middle, products, router, since);
+            Scan right = new Scan(stores, middle, to, products, router, since);
+            left.fork();
+            List<Need> needs = right.compute();
+            needs.addAll(left.join());
+            return needs;
+         }
+         Retail.METRICS.setOperation("replenish");
+         try {
+            return needs(stock());
+         } catch (SQLException e) {
+            throw new ScanFailed(e);
+         }
+      }
+
+      private List<Stock> stock() throws SQLException {
+         List<Object> params = new ArrayList<Object>();
+         params.add(defaultReorderPoint);
+         params.add(since);
+         StringBuilder sql = new StringBuilder(STOCK_COLUMNS.length() + 64 * (to - from));
+         sql.append(STOCK_COLUMNS);
+         if (products == null) {
+            sql.append(" WHERE P.storeID IN (");
+            for (int i = from; i < to; i++) {
+               sql.append(i == from ? "?" : ", ?");
+               params.add(stores.get(i).storeID);
+            }
+            sql.append(')');
+         } else {
+            sql.append(" WHERE (P.storeID, P.productName) IN (VALUES ");
+            boolean first = true;
+            for (int i = from; i < to; i++) {
+               int storeID = stores.get(i).storeID;
+               for (String productName : products.get(storeID)) {
+                  sql.append(first ? "(CAST(? AS integer), CAST(? AS char(30)))" : ", (?, ?)");
+                  params.add(storeID);
+                  params.add(productName);
+                  first = false;
+               }
+            }
+            sql.append(')');
+         }
+         return esql.executeQueryAndMap(sql.toString(), STOCK, params.toArray());
+      }
+
+      private List<Need> needs(List<Stock> stock) {
+         Map<Integer, StoreIndex.Entry> byID = new HashMap<Integer, StoreIndex.Entry>();
+         for (int i = from; i < to; i++) {
+            byID.put(stores.get(i).storeID, stores.get(i));
+         }
+         List<Need> needs = new ArrayList<Need>();
+         for (int i = 0; i < stock.size(); i++) {
+            Stock s = stock.get(i);
+            int units = unitsToRequest(s);
+            WarehouseRouter.Route route = router.best(s.storeID);
+            if (units > 0 && route != null) {
+               needs.add(new Need(byID.get(s.storeID).managerID, route.warehouse.warehouseID, s.storeID, s.productName, units));
+            }
+         }
+         return needs;
+      }
+   }//end Scan
+
+   /**
+    * @return how many units to request for a product, or 0 if it is not low
+    */
+   int unitsToRequest(Stock s) {
+      double perDay = s.recentlyOrdered / (double) windowDays;
+      int reorderAt = Math.max(s.reorderPoint, (int) Math.ceil(perDay * leadDays));
+      int projected = s.units + s.onOrder;
+      if (projected > reorderAt) {
+         return 0;
+      }
+      return Math.max(1, reorderAt + (int) Math.ceil(perDay * coverDays) - projected);
+   }
+
+   static String insertSql(int rows) {
+      StringBuilder sql = new StringBuilder(200 + rows * 20);
+      sql.append("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES ");
+      for (int i = 0; i < rows; i++) {
+         sql.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+      }
+      return sql.append(" RETURNING requestNumber, warehouseID, storeID, productName, unitsRequested").toString();
+   }
+
+}//end ReplenishmentEngine
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Formats result rows as tab separated text into one reusable buffer and
+ * writes it out in chunks, instead of issuing a print call per cell.  Column
+ * names are read from the metadata once per result, not once per row, and
+ * written once however many pages the result is rendered in.
+ *
+ */
+public class ResultRenderer {
+
+   private final Appendable out;
+   private final int chunkChars;
+   private final StringBuilder buffer;
+   private long charsWritten;
+   private boolean headerWritten;
+
+   /**
+    * @param out where rendered text goes
+    * @param chunkChars how much text to collect before writing it out
+    */
+   public ResultRenderer(Appendable out, int chunkChars) {
+      this.out = out;
+      this.chunkChars = Math.max(chunkChars, 256);
+      this.buffer = new StringBuilder(this.chunkChars + 256);
+   }
+
+   /**
+    * Renders every remaining row of a result set, or of one page of a
+    * result.  The header is written before the first row rendered, so not
+    * at all if there are no rows.
+    *
+    * @return the number of rows rendered
+    * @throws java.sql.SQLException when a row could not be read
+    * @throws java.io.IOException when the output could not be written
+    */
+   public int render(ResultSet rs) throws SQLException, IOException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      int rowCount = 0;
+      while (rs.next()){
+         if (!headerWritten){
+            for (int i = 1; i <= numCol; i++){
+               buffer.append(rsmd.getColumnName(i)).append('\t');
+            }
+            buffer.append('\n');
+            headerWritten = true;
+         }
+         for (int i = 1; i <= numCol; i++){
+            buffer.append(rs.getString(i)).append('\t');
+         }
+         buffer.append('\n');
+         ++rowCount;
+         if (buffer.length() >= chunkChars){
+            flush();
+         }
+      }//end while
+      flush();
+      return rowCount;
+   }
+
+   /**
+    * @return how many characters have been written out so far
+    */
+   public long getCharsWritten() {
+      return charsWritten;
+   }
+
+   /**
+    * Writes out whatever is buffered.
+    *
+    * @throws java.io.IOException when the output could not be written
+    */
+   public void flush() throws IOException {
+      if (buffer.length() > 0){
+         out.append(buffer);
+         charsWritten += buffer.length();
+         buffer.setLength(0);
+      }
+   }
+
+}//end ResultRenderer
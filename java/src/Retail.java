@@ -11,20 +11,32 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.lang.Math;
 import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.postgresql.jdbc1.AbstractJdbc1Statement;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,12 +45,144 @@ import java.util.Arrays;
  */
 public class Retail {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by the query helpers.
+   private ConnectionPool _pool = null;
+   // the sequence lookup behind getCurrSeqVal, and the parameter type a
+   // server-side prepared statement infers from context
+   private static final String CURRVAL = "SELECT currval(CAST(? AS regclass))";
+   private static final String UNTYPED = "unknown";
 
    // Member variable for referencing logged in users
    private String loggedInUserName;
 
+   // the logged-in user's id, location, role and managed stores, resolved
+   // at login; marked stale when Users or Store rows are written
+   private Session session = null;
+   // bumped by every write that may change a session; see current()
+   private volatile long sessionVersion = 0;
+
+   // rows fetched per server round trip when streaming results, and how much
+   // rendered text is collected before it is written out
+   static final int FETCH_SIZE = Integer.getInteger("retail.fetchSize", 500);
+   static final int RENDER_CHUNK = Integer.getInteger("retail.renderChunk", 8192);
+   private static final String STREAM_CURSOR = "retail_stream";
+
+   // radius used by the "stores near me" screens
+   static final double STORE_RADIUS = 30.0;
+
+   // grid index over Store locations, loaded on first use and reloaded after
+   // a Store write goes through executeUpdate
+   private StoreIndex storeIndex = null;
+
+   // each store's nearest warehouses, built on first use and rebuilt after a
+   // Store or Warehouse write goes through executeUpdate
+   private WarehouseRouter warehouseRouter = null;
+   static final int ROUTES_PER_STORE = Integer.getInteger("retail.router.keep", 5);
+   static final double CAPACITY_WEIGHT = Double.parseDouble(System.getProperty("retail.router.capacityWeight", "0"));
+
+   // distinct product names for the product search, loaded on first use and
+   // reloaded after a Product insert or delete goes through executeUpdate
+   private ProductSearch productSearch = null;
+   // stores whose stock one search query reads, and matches the menu lists
+   static final int SEARCH_STORES_PER_QUERY = 1000;
+   static final int SEARCH_RESULTS_SHOWN = 20;
+
+   // product listings per store; writes below drop the store's listing
+   private final CatalogCache catalogCache = new CatalogCache(
+      Integer.getInteger("retail.catalog.stores", 256), Long.getLong("retail.catalog.ttlMs", 30000L));
+
+   // in-memory striped stock of hot products, flushed back to Product
+   private final StripedInventory inventory = new StripedInventory(this,
+      Integer.getInteger("retail.stripes.count", Runtime.getRuntime().availableProcessors()),
+      Integer.getInteger("retail.stripes.chunk", 256));
+   static final long STRIPES_FLUSH_INTERVAL = Long.getLong("retail.stripes.flushMs", 1000L);
+
+   // places orders with a single conditional stock decrement + insert
+   private final OrderEngine orderEngine = new OrderEngine(this);
+
+   // keyset-paged recent orders and product updates
+   private final RecentActivity recentActivity = new RecentActivity(this);
+   static final int RECENT_PAGE = 5;
+
+   // default local port for --serve
+   static final int SERVER_PORT = 8166;
+
+   // latency, rows and errors of every statement, per menu operation
+   static final QueryMetrics METRICS = QueryMetrics.get();
+
+   // metrics tag of each user menu choice
+   static final String[] USER_MENU_OPERATIONS = {
+      null, "viewStores", "viewProducts", "placeOrder", "viewRecentOrders", "updateProduct",
+      "viewRecentUpdates", "viewPopularProducts", "viewPopularCustomers", "placeProductSupplyRequests",
+      "findProduct" };
+
+   // creates the monthly Orders partitions ahead of time and archives old ones
+   private final OrderPartitions orderPartitions = new OrderPartitions(this);
+   static final int PARTITIONS_AHEAD = Integer.getInteger("retail.partitions.ahead", 3);
+   static final int ARCHIVE_KEEP_MONTHS = 12;
+   static final String ARCHIVE_DIR = System.getProperty("retail.archive.dir", "archive");
+
+   // ProductUpdates entries, written behind by their own thread
+   private final AuditLog auditLog = new AuditLog(this,
+      Integer.getInteger("retail.audit.queue", 10000),
+      new File(System.getProperty("retail.audit.spill", "audit-spill.jsonl")),
+      new File(System.getProperty("retail.audit.rejects", "audit-rejected.jsonl")),
+      Long.getLong("retail.audit.closeMs", 5000L));
+
+   // supply requests, batched per warehouse and added to stock on delivery;
+   // only --serve resumes the ones earlier runs left undelivered
+   private final SupplyPipeline supplyPipeline = new SupplyPipeline(this,
+      new SimulatedWarehouse(Long.getLong("retail.supply.leadMs", 2000L), Long.getLong("retail.supply.perRequestMs", 0L)),
+      Integer.getInteger("retail.supply.batch", 100),
+      Long.getLong("retail.supply.batchMs", 1000L),
+      Integer.getInteger("retail.supply.workers", 2),
+      Long.getLong("retail.supply.closeMs", 5000L));
+
+   // requests supply for low products; runs on a schedule under --serve and
+   // once under --replenish
+   private final ReplenishmentEngine replenishment = new ReplenishmentEngine(this,
+      Integer.getInteger("retail.replenish.parallelism", Integer.getInteger("retail.pool.size", 4)),
+      Integer.getInteger("retail.replenish.reorderPoint", 10),
+      Integer.getInteger("retail.replenish.windowDays", 7),
+      Integer.getInteger("retail.replenish.leadDays", 2),
+      Integer.getInteger("retail.replenish.coverDays", 7),
+      Integer.getInteger("retail.replenish.fullEvery", 60));
+   static final long REPLENISH_INTERVAL = Long.getLong("retail.replenish.intervalMs", 60000L);
+
+   // precomputes each user's nearby stores; redoes the moved users and
+   // stores on a schedule under --serve, and everything under --proximity full
+   private final ProximityJob proximityJob = new ProximityJob(this,
+      Integer.getInteger("retail.proximity.parallelism", Runtime.getRuntime().availableProcessors()),
+      STORE_RADIUS);
+   static final long PROXIMITY_INTERVAL = Long.getLong("retail.proximity.intervalMs", 60000L);
+
+   // orders applied per transaction by --ingest
+   static final int INGEST_BATCH = Integer.getInteger("retail.ingest.batch", 50000);
+
+   // statements behind the shared operations; the index benchmark explains
+   // these same strings
+   static final String STORE_PRODUCTS = "SELECT " + Rows.PRODUCT_COLUMNS + " FROM Product WHERE storeID = ?";
+   static final String PRODUCT_UPDATE = "UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ?";
+   static final String SUPPLY_REQUEST = "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?) RETURNING requestNumber";
+   // the top five of each store, read off the (storeID, total DESC) indexes
+   static final String TOP_PRODUCTS = " CROSS JOIN LATERAL (SELECT P.productName, P.totalOrders FROM ProductPopularity P WHERE P.storeID = S.storeID ORDER BY P.totalOrders DESC LIMIT 5) T";
+   static final String TOP_CUSTOMERS = " CROSS JOIN LATERAL (SELECT C.customerID, C.totalUnits FROM CustomerPopularity C WHERE C.storeID = S.storeID ORDER BY C.totalUnits DESC LIMIT 5) T";
+   static final String POPULAR_PRODUCTS = "SELECT S.storeID, T.productName, T.totalOrders FROM Store S" + TOP_PRODUCTS + " ORDER BY S.storeID, T.totalOrders DESC";
+   static final String MANAGER_POPULAR_PRODUCTS = "SELECT S.storeID, T.productName, T.totalOrders FROM Store S" + TOP_PRODUCTS + " WHERE S.managerID = ? ORDER BY S.storeID, T.totalOrders DESC";
+   static final String POPULAR_CUSTOMERS = "SELECT S.storeID, T.customerID, T.totalUnits FROM Store S" + TOP_CUSTOMERS + " ORDER BY S.storeID, T.totalUnits DESC";
+   static final String MANAGER_POPULAR_CUSTOMERS = "SELECT S.storeID, T.customerID, T.totalUnits FROM Store S" + TOP_CUSTOMERS + " WHERE S.managerID = ? ORDER BY S.storeID, T.totalUnits DESC";
+
+   // matches statements that insert, update or delete Store rows
+   private static final Pattern STORE_WRITE = Pattern.compile(
+      "^\\s*(INSERT\\s+INTO|UPDATE|DELETE\\s+FROM)\\s+store\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+   private static final Pattern WAREHOUSE_WRITE = Pattern.compile(
+      "^\\s*(INSERT\\s+INTO|UPDATE|DELETE\\s+FROM)\\s+warehouse\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+   private static final Pattern PRODUCT_NAMES_WRITE = Pattern.compile(
+      "^\\s*(INSERT\\s+INTO|DELETE\\s+FROM)\\s+product\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+   // matches statements that update or delete Users rows
+   private static final Pattern USERS_WRITE = Pattern.compile(
+      "^\\s*(UPDATE|DELETE\\s+FROM)\\s+users\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -63,16 +207,44 @@ public class Retail {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // set up the connection pool and make sure the first connection opens
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("retail.pool.size", 4),
+            Integer.getInteger("retail.pool.statementCache", 64),
+            Long.getLong("retail.pool.timeoutMs", 10000L));
+         this._pool.release(this._pool.acquire());
+         METRICS.start();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      this.auditLog.start();
+
+      // products named in retail.stripes.hot ("storeID:product,...") start hot
+      String hot = System.getProperty("retail.stripes.hot");
+      if (hot != null){
+         this.inventory.makeHot(hot);
+      }//end if
+      this.inventory.schedule(STRIPES_FLUSH_INTERVAL);
    }//end Retail
 
+   /**
+    * Makes sure the orders placed this month and the next few go to their
+    * own partition.  This is DDL that locks Orders, so only --serve and
+    * --archive run it, not every client that connects; the load scripts
+    * create the same months.
+    */
+   private void ensurePartitions() {
+      try{
+         this.orderPartitions.ensureAhead(PARTITIONS_AHEAD);
+      }catch (SQLException e){
+         System.err.println("Warning - Unable to create Orders partitions: " + e.getMessage());
+      }//end catch
+   }//end ensurePartitions
+
    public String getLoggedInUser() {
       return loggedInUserName;
    }
@@ -81,28 +253,576 @@ public class Retail {
       loggedInUserName = user;
    }
 
+   /**
+    * Returns the logged-in user's session, re-reading it first if the user's
+    * row or the stores table changed since it was loaded.
+    *
+    * @return the session, or null if nobody is logged in
+    * @throws java.sql.SQLException when a stale session could not be reloaded
+    */
+   public synchronized Session getSession() throws SQLException {
+      Session current = current(session);
+      if (current != session) {
+         session = current;
+         loggedInUserName = session == null ? null : session.name;
+      }
+      return session;
+   }
+
+   /**
+    * Returns a session as it is now: the same one, or a re-read one if a
+    * Users or Store write or a ProximityJob run happened since it was read.
+    * Every holder of a session, such as a BatchRunner, goes through here.
+    *
+    * @return the session, or null if it was null or the user no longer exists
+    * @throws java.sql.SQLException when a stale session could not be reloaded
+    */
+   public Session current(Session session) throws SQLException {
+      if (session == null || session.version == sessionVersion) {
+         return session;
+      }
+      return Session.reload(this, session.userID);
+   }
+
+   long getSessionVersion() {
+      return sessionVersion;
+   }
+
+   /**
+    * Starts a session for a logged-in user, or ends it when passed null.
+    */
+   public synchronized void setSession(Session session) {
+      this.session = session;
+      this.loggedInUserName = session == null ? null : session.name;
+   }
+
+   /**
+    * Marks every session stale so the next getSession() or current() re-reads
+    * it.
+    */
+   public synchronized void invalidateSession() {
+      sessionVersion++;
+   }
+
+   /**
+    * Returns the stores the logged-in user may manage: every store for an
+    * admin, otherwise the stores whose managerID is the user.
+    *
+    * @return the stores ordered by store ID
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public List<StoreIndex.Entry> managedStores() throws SQLException {
+      return managedStores(getSession());
+   }
+
+   /**
+    * Returns the stores a user may manage: every store for an admin,
+    * otherwise the stores whose managerID is the user.
+    *
+    * @param current the user's session, or null for nobody
+    * @return the stores ordered by store ID
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public List<StoreIndex.Entry> managedStores(Session current) throws SQLException {
+      List<StoreIndex.Entry> all = getStoreIndex().all();
+      if (current == null || current.isAdmin()) {
+         return current == null ? new ArrayList<StoreIndex.Entry>() : all;
+      }
+      List<StoreIndex.Entry> managed = new ArrayList<StoreIndex.Entry>();
+      for (int i = 0; i < all.size(); i++) {
+         if (current.managedStoreIDs.contains(all.get(i).storeID)) {
+            managed.add(all.get(i));
+         }
+      }
+      return managed;
+   }
+
+   /**
+    * @return the per-store product listing cache
+    */
+   public CatalogCache getCatalogCache() {
+      return catalogCache;
+   }
+
+   /**
+    * Returns a store's product listing, from the catalog cache when it is
+    * there and from the Product table otherwise.
+    *
+    * @param storeID the store whose products are listed
+    * @return the store's products
+    * @throws java.sql.SQLException when the listing could not be loaded
+    */
+   public List<Rows.Product> getCatalog(int storeID) throws SQLException {
+      List<Rows.Product> products = catalogCache.get(storeID);
+      if (products == null) {
+         long version = catalogCache.version();
+         // listed as the store has them, counting hot products' stripes
+         products = inventory.visible(executeQueryAndMap(STORE_PRODUCTS, Rows.PRODUCT, storeID));
+         catalogCache.put(storeID, products, version);
+      }
+      return products;
+   }
+
+   /**
+    * @return the striped stock of hot products
+    */
+   public StripedInventory getInventory() {
+      return inventory;
+   }
+
+   /**
+    * @return the engine used to place orders
+    */
+   public OrderEngine getOrderEngine() {
+      return orderEngine;
+   }
+
+   /**
+    * @return the feeds behind the recent orders and recent updates screens
+    */
+   public RecentActivity getRecentActivity() {
+      return recentActivity;
+   }
+
+   /**
+    * @return the write-behind log of managers' product updates
+    */
+   public AuditLog getAuditLog() {
+      return auditLog;
+   }
+
+   /**
+    * @return the engine that requests supply for low products
+    */
+   public ReplenishmentEngine getReplenishment() {
+      return replenishment;
+   }
+
+   /**
+    * @return the pipeline that delivers supply requests
+    */
+   public SupplyPipeline getSupplyPipeline() {
+      return supplyPipeline;
+   }
+
+   // ----------operations shared by the menus and batch mode----------
+
+   /**
+    * Registers a new customer.
+    *
+    * @throws java.sql.SQLException when the user could not be inserted
+    */
+   public void createUser(String name, String password, double latitude, double longitude) throws SQLException {
+      String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
+      executeUpdate(query, name, password, latitude, longitude, "Customer");
+   }
+
+   /**
+    * Finds a product in a store's listing.
+    *
+    * @return the product
+    * @throws IllegalArgumentException when the store does not sell it
+    * @throws java.sql.SQLException when the listing could not be loaded
+    */
+   public Rows.Product findProduct(int storeID, String productName) throws SQLException {
+      List<Rows.Product> products = getCatalog(storeID);
+      for (int i = 0; i < products.size(); i++) {
+         if (products.get(i).productName.equalsIgnoreCase(productName.trim())) {
+            return products.get(i);
+         }
+      }
+      throw new IllegalArgumentException("Store " + storeID + " does not sell " + productName);
+   }
+
+   private static void checkCanManage(Session session, int storeID) {
+      if (session == null || !session.canManage(storeID)) {
+         throw new IllegalArgumentException("Not allowed to manage store " + storeID);
+      }
+   }
+
+   /**
+    * Sets a product's stock and price.  Updates made by managers are logged
+    * to ProductUpdates; admin updates are not.
+    *
+    * @return the product as it is now
+    * @throws IllegalArgumentException when the user does not manage the store
+    * @throws java.sql.SQLException when the update could not be written
+    */
+   public Rows.Product applyProductUpdate(Session session, Rows.Product product, int units, double price) throws SQLException {
+      checkCanManage(session, product.storeID);
+      inventory.setStock(product.storeID, product.productName, units, price);
+      Rows.Product updated = new Rows.Product(product.storeID, product.productName, units, price);
+      catalogCache.invalidate(product.storeID);
+      replenishment.stockChanged(product.storeID, product.productName);
+
+      //log update if user is a manager; the entry is written behind
+      if (!session.isAdmin()){
+         auditLog.record(session.userID, product.storeID, product.productName);
+      }
+      return updated;
+   }
+
+   /**
+    * @return the best warehouse to resupply the store from
+    * @throws IllegalArgumentException when there are no warehouses or no such store
+    * @throws java.sql.SQLException when the warehouses could not be loaded
+    */
+   public WarehouseRouter.Route nearestWarehouse(int storeID) throws SQLException {
+      WarehouseRouter.Route route = getWarehouseRouter().best(storeID);
+      if (route == null) {
+         throw new IllegalArgumentException("No warehouse can supply store " + storeID);
+      }
+      return route;
+   }
+
+   /**
+    * Records a supply request to a warehouse and queues it for delivery; the
+    * units are added to the store's stock when its batch is delivered.
+    *
+    * @return the request number
+    * @throws IllegalArgumentException when the user does not manage the store
+    *         or the warehouse does not exist
+    * @throws java.sql.SQLException when the request could not be written
+    */
+   public int requestSupply(Session session, int storeID, String productName, int units, int warehouseID) throws SQLException {
+      checkCanManage(session, storeID);
+      if (units < 1) {
+         throw new IllegalArgumentException("Must request at least 1 unit (requested " + units + ")");
+      }
+      // checked here rather than left to the foreign key, so nothing is written
+      if (getWarehouseRouter().get(warehouseID) == null) {
+         throw new IllegalArgumentException("No warehouse with ID " + warehouseID);
+      }
+      int requestNumber = executeQueryAndMap(SUPPLY_REQUEST, Rows.INT, session.userID, warehouseID, storeID, productName, units).get(0);
+      supplyPipeline.submit(new SupplyPipeline.Request(requestNumber, warehouseID, storeID, productName, units));
+      return requestNumber;
+   }
+
+   /**
+    * Top five products by orders of each store the user manages, read from
+    * the running totals kept by the order path with one index range scan
+    * per store.
+    *
+    * @throws java.sql.SQLException when the totals could not be read
+    */
+   public List<Rows.Total> popularProducts(Session session) throws SQLException {
+      if (session.isAdmin()){
+         return executeQueryAndMap(POPULAR_PRODUCTS, Rows.TOTAL);
+      }
+      return executeQueryAndMap(MANAGER_POPULAR_PRODUCTS, Rows.TOTAL, session.userID);
+   }
+
+   /**
+    * Top five customers by units ordered of each store the user manages,
+    * read from the running totals kept by the order path with one index
+    * range scan per store.
+    *
+    * @throws java.sql.SQLException when the totals could not be read
+    */
+   public List<Rows.Total> popularCustomers(Session session) throws SQLException {
+      if (session.isAdmin()){
+         return executeQueryAndMap(POPULAR_CUSTOMERS, Rows.TOTAL);
+      }
+      return executeQueryAndMap(MANAGER_POPULAR_CUSTOMERS, Rows.TOTAL, session.userID);
+   }
+
+   /**
+    * @return the connection pool shared by every query helper
+    */
+   public ConnectionPool getPool() {
+      return _pool;
+   }
+
+   /**
+    * Loads the postgres JDBC driver, which registers itself with
+    * DriverManager.  Every entry point calls this before its first Retail.
+    *
+    * @throws java.lang.ClassNotFoundException when the driver jar is not on
+    *         the classpath
+    */
+   static void loadDriver () throws ClassNotFoundException {
+      Class.forName ("org.postgresql.Driver");
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
-   public double calculateDistance (double lat1, double long1, double lat2, double long2){
+   public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2);
    }
+
+   /**
+    * Returns the store location index, loading it from the Store table the
+    * first time it is needed.
+    *
+    * @return the store index
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public synchronized StoreIndex getStoreIndex() throws SQLException {
+      if (storeIndex == null) {
+         StoreIndex index = new StoreIndex(STORE_RADIUS);
+         PooledConnection conn = _pool.acquire();
+         try{
+            ResultSet rs = conn.prepare("SELECT storeID, name, latitude, longitude, managerID FROM Store").executeQuery();
+            while (rs.next()){
+               index.put(new StoreIndex.Entry(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4), rs.getInt(5)));
+            }//end while
+            rs.close();
+         }finally{
+            _pool.release(conn);
+         }
+         storeIndex = index;
+      }
+      return storeIndex;
+   }
+
+   /**
+    * Drops the cached store index so the next lookup reloads it.  Called
+    * whenever Store rows are inserted, updated or deleted.
+    */
+   public synchronized void invalidateStoreIndex() {
+      storeIndex = null;
+      warehouseRouter = null;
+   }
+
+   /**
+    * Returns the warehouse router, building it from the Warehouse table and
+    * the store index the first time it is needed.
+    *
+    * @return the warehouse router
+    * @throws java.sql.SQLException when the warehouses could not be loaded
+    */
+   public synchronized WarehouseRouter getWarehouseRouter() throws SQLException {
+      if (warehouseRouter == null) {
+         List<WarehouseRouter.Warehouse> warehouses = executeQueryAndMap(
+            "SELECT warehouseID, area, latitude, longitude FROM Warehouse", WAREHOUSE);
+         warehouseRouter = new WarehouseRouter(getStoreIndex().all(), warehouses, ROUTES_PER_STORE, CAPACITY_WEIGHT);
+      }
+      return warehouseRouter;
+   }
+
+   /**
+    * Drops the cached warehouse routes so the next lookup rebuilds them.
+    * Called whenever Store or Warehouse rows are written.
+    */
+   public synchronized void invalidateWarehouseRouter() {
+      warehouseRouter = null;
+   }
+
+   private static final RowMapper<WarehouseRouter.Warehouse> WAREHOUSE = new RowMapper<WarehouseRouter.Warehouse>() {
+      public WarehouseRouter.Warehouse map(ResultSet rs) throws SQLException {
+         return new WarehouseRouter.Warehouse(rs.getInt(1), rs.getInt(2), rs.getDouble(3), rs.getDouble(4));
+      }
+   };
+
+   /**
+    * Finds the stores within STORE_RADIUS of the given location.
+    *
+    * @return the nearby stores, nearest first
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public List<StoreIndex.Hit> nearbyStores(double latitude, double longitude) throws SQLException {
+      return getStoreIndex().within(latitude, longitude, STORE_RADIUS);
+   }
+
+   /**
+    * Finds the stores within STORE_RADIUS of a logged-in user, from the
+    * rows ProximityJob precomputed for them when there are any, and from
+    * the store index otherwise.
+    *
+    * @return the nearby stores, nearest first
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public List<StoreIndex.Hit> nearbyStores(Session session) throws SQLException {
+      if (session.nearbyStoreIDs == null) {
+         return nearbyStores(session.latitude, session.longitude);
+      }
+      StoreIndex index = getStoreIndex();
+      List<StoreIndex.Hit> stores = new ArrayList<StoreIndex.Hit>(session.nearbyStoreIDs.length);
+      for (int i = 0; i < session.nearbyStoreIDs.length; i++) {
+         StoreIndex.Entry store = index.get(session.nearbyStoreIDs[i]);
+         // a store closed since the rows were read is skipped
+         if (store != null) {
+            stores.add(new StoreIndex.Hit(store, session.nearbyDistances[i]));
+         }
+      }
+      return stores;
+   }
+
+   /**
+    * @return the product name index, loading it on first use
+    * @throws java.sql.SQLException when the names could not be read
+    */
+   public synchronized ProductSearch getProductSearch() throws SQLException {
+      if (productSearch == null) {
+         productSearch = new ProductSearch(executeQueryAndMap("SELECT DISTINCT productName FROM Product", Rows.TEXT));
+      }
+      return productSearch;
+   }
+
+   /**
+    * Drops the product name index so the next search reloads it.  Called
+    * whenever Product rows are inserted or deleted.
+    */
+   public synchronized void invalidateProductSearch() {
+      productSearch = null;
+   }
+
+   /**
+    * Finds the stores within STORE_RADIUS of a point that have a product
+    * matching the term in stock, reading the stock of every matching
+    * product at every nearby store with one query (per
+    * SEARCH_STORES_PER_QUERY stores) instead of one catalog per store.
+    *
+    * @param term a product name prefix, or a near miss of one
+    * @return the matches, nearest store first and then cheapest
+    * @throws java.sql.SQLException when the stock could not be read
+    */
+   public List<ProductSearch.Hit> searchProducts(double latitude, double longitude, String term) throws SQLException {
+      return searchProducts(nearbyStores(latitude, longitude), term);
+   }
+
+   /**
+    * Runs the search of searchProducts(latitude, longitude, term) over a
+    * logged-in user's nearby stores.
+    *
+    * @throws java.sql.SQLException when the stock could not be read
+    */
+   public List<ProductSearch.Hit> searchProducts(Session session, String term) throws SQLException {
+      return searchProducts(nearbyStores(session), term);
+   }
+
+   private List<ProductSearch.Hit> searchProducts(List<StoreIndex.Hit> stores, String term) throws SQLException {
+      List<ProductSearch.Hit> hits = new ArrayList<ProductSearch.Hit>();
+      List<String> names = getProductSearch().names(term);
+      if (names.isEmpty() || stores.isEmpty()) {
+         return hits;
+      }
+      Map<Integer, StoreIndex.Hit> byID = new HashMap<Integer, StoreIndex.Hit>();
+      for (int from = 0; from < stores.size(); from += SEARCH_STORES_PER_QUERY) {
+         List<StoreIndex.Hit> chunk = stores.subList(from, Math.min(stores.size(), from + SEARCH_STORES_PER_QUERY));
+         StringBuilder sql = new StringBuilder(STORE_PRODUCTS.length() + 40 + 3 * (names.size() + chunk.size()));
+         sql.append("SELECT ").append(Rows.PRODUCT_COLUMNS).append(" FROM Product WHERE productName IN (");
+         List<Object> params = new ArrayList<Object>(names.size() + chunk.size());
+         for (int i = 0; i < names.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            params.add(names.get(i));
+         }
+         sql.append(") AND storeID IN (");
+         for (int i = 0; i < chunk.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            params.add(chunk.get(i).store.storeID);
+            byID.put(chunk.get(i).store.storeID, chunk.get(i));
+         }
+         sql.append(')');
+         // stock is checked after the stripes of hot products are counted
+         List<Rows.Product> products = inventory.visible(executeQueryAndMap(sql.toString(), Rows.PRODUCT, params.toArray()));
+         for (int i = 0; i < products.size(); i++) {
+            if (products.get(i).numberOfUnits > 0) {
+               StoreIndex.Hit store = byID.get(products.get(i).storeID);
+               hits.add(new ProductSearch.Hit(store.store, store.distance, products.get(i)));
+            }
+         }
+      }
+      Collections.sort(hits, ProductSearch.BY_DISTANCE_THEN_PRICE);
+      return hits;
+   }
+
+   /**
+    * Binds positional parameters to a prepared statement.  Integers and
+    * doubles are bound with their own setters so the server sees properly
+    * typed values.  Strings and timestamps are bound as "unknown", which
+    * server-side prepared statements (see PooledConnection) resolve from
+    * where the parameter is used, as the server does for a literal; bound
+    * as text, a char(n) column compared with one would be cast to text and
+    * lose its index.  Strings lose their trailing blanks: every text column
+    * in the schema is char(n), which pads values, and comparing a padded
+    * value as varchar would never match.  A statement that is not the
+    * driver's own, such as a wrapper, gets the plain setString and
+    * setTimestamp instead.
+    */
+   private static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      AbstractJdbc1Statement pgStmt = null;
+      if (stmt instanceof AbstractJdbc1Statement){
+         pgStmt = (AbstractJdbc1Statement) stmt;
+      }
+      for (int i = 0; i < params.length; ++i){
+         Object p = params[i];
+         if (p == null)
+            stmt.setNull (i+1, Types.VARCHAR);
+         else if (p instanceof Integer)
+            stmt.setInt (i+1, ((Integer) p).intValue());
+         else if (p instanceof Double)
+            stmt.setDouble (i+1, ((Double) p).doubleValue());
+         else if (p instanceof Timestamp && pgStmt != null)
+            pgStmt.setString (i+1, p.toString(), UNTYPED);
+         else if (p instanceof Timestamp)
+            stmt.setTimestamp (i+1, (Timestamp) p);
+         else if (pgStmt != null)
+            pgStmt.setString (i+1, Rows.trim(p.toString()), UNTYPED);
+         else
+            stmt.setString (i+1, Rows.trim(p.toString()));
+      }//end for
+   }//end bind
+
+   /**
+    * @return the size of the current row as the server sent it.  getBytes
+    *         hands back the driver's own buffer for every non-bytea column,
+    *         so this copies nothing.
+    */
+   private static long rowBytes (ResultSet rs, int numCol) throws SQLException {
+      long bytes = 0;
+      for (int i = 1; i <= numCol; ++i){
+         byte[] value = rs.getBytes (i);
+         if (value != null)
+            bytes += value.length;
+      }
+      return bytes;
+   }
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, with ? placeholders for params
+    * @param params values bound to the placeholders in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      // borrows a connection and its cached statement for this query shape
+      long start = System.nanoTime();
+      PooledConnection conn = _pool.acquire();
+      int rowCount = 0;
+      boolean ok = false;
+      try{
+         PreparedStatement stmt = conn.prepare (sql);
+         bind (stmt, params);
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         rowCount = stmt.executeUpdate ();
+         ok = true;
+      }finally{
+         if (!ok){
+            conn.discard (sql);
+         }
+         _pool.release (conn);
+         METRICS.record (sql, start, rowCount, 0, ok);
+      }
 
-      // close the instruction
-      stmt.close ();
+      // keep the store index, routes, session and product names in step
+      // with Store, Warehouse, Users and Product writes
+      if (STORE_WRITE.matcher(sql).matches()){
+         invalidateStoreIndex();
+         invalidateSession();
+      }else if (WAREHOUSE_WRITE.matcher(sql).matches()){
+         invalidateWarehouseRouter();
+      }else if (USERS_WRITE.matcher(sql).matches()){
+         invalidateSession();
+      }else if (PRODUCT_NAMES_WRITE.matcher(sql).matches()){
+         invalidateProductSearch();
+      }
+      return rowCount;
    }//end executeUpdate
 
    /**
@@ -110,135 +830,268 @@ public class Retail {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string, with ? placeholders for params
+    * @param params values bound to the placeholders in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-      for (int i=1; i<=numCol; ++i)
-         System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndStreamResult (System.out, query, params);
    }//end executeQuery
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * stream the results to the given output.  The bundled driver has no
+    * fetch size and reads a whole result at once, so the query is declared
+    * as a cursor and its rows are fetched FETCH_SIZE at a time.  Each page
+    * is rendered through one buffer that is written out in RENDER_CHUNK
+    * sized pieces, so memory use stays flat however many rows the query
+    * returns.
+    *
+    * @param out where the rendered rows are written
+    * @param query the input query string, with ? placeholders for params
+    * @param params values bound to the placeholders in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStreamResult (Appendable out, String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      PooledConnection conn = _pool.acquire();
+      ResultRenderer renderer = new ResultRenderer(out, RENDER_CHUNK);
+      int rowCount = 0;
+      boolean declared = false;
+      boolean ok = false;
+      try{
+         // a cursor only lives inside a transaction; a connection opened
+         // here is rolled back to auto-commit on release
+         Connection connection = conn.getConnection();
+         if (connection.getAutoCommit()){
+            connection.setAutoCommit(false);
+         }
+         PreparedStatement declare = conn.prepare ("DECLARE " + STREAM_CURSOR + " NO SCROLL CURSOR FOR " + query);
+         bind (declare, params);
+         declare.execute ();
+         declared = true;
+
+         // renders one page at a time into one buffer, flushed in chunks,
+         // until a page comes back short
+         PreparedStatement fetch = conn.prepare ("FETCH FORWARD " + FETCH_SIZE + " FROM " + STREAM_CURSOR);
+         int page;
+         do{
+            ResultSet rs = fetch.executeQuery ();
+            page = renderer.render(rs);
+            rs.close ();
+            rowCount += page;
+         }while (page == FETCH_SIZE);
+         ok = true;
+         return rowCount;
+      }catch (IOException e){
+         throw new SQLException("Unable to write query results: " + e.getMessage());
+      }finally{
+         if (declared){
+            // a transaction pinned by the caller outlives the cursor
+            try{
+               conn.prepare ("CLOSE " + STREAM_CURSOR).execute ();
+            }catch (SQLException e){
+               // ignored: the transaction is aborted and the cursor goes with it.
+            }
+         }
+         _pool.release (conn);
+         METRICS.record (query, start, rowCount, renderer.getCharsWritten(), ok);
+      }
+   }//end executeQueryAndStreamResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, with ? placeholders for params
+    * @param params values bound to the placeholders in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      PooledConnection conn = _pool.acquire();
       int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      long chars = 0;
+      boolean ok = false;
+      try{
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i=1; i<=numCol; ++i){
+               String value = rs.getString (i);
+               if (value != null)
+                  chars += value.length();
+               record.add(value);
+            }
+            result.add(record);
+            ++rowCount;
+         }//end while
+         rs.close ();
+         ok = true;
+         return result;
+      }finally{
+         if (!ok){
+            conn.discard (query);
+         }
+         _pool.release (conn);
+         METRICS.record (query, start, rowCount, chars, ok);
+      }
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as a list
+    * of typed rows.  Each row is read with the mapper's typed getters, so
+    * numbers and times never pass through an intermediate String.
+    *
+    * @param query the input query string, with ? placeholders for params
+    * @param mapper reads one row of the result
+    * @param params values bound to the placeholders in order
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      PooledConnection conn = _pool.acquire();
+      List<T> result = new ArrayList<T>();
+      long bytes = 0;
+      boolean ok = false;
+      try{
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+
+         // maps each row straight from the result set
+         while (rs.next()){
+            result.add(mapper.map(rs));
+            bytes += rowBytes (rs, numCol);
+         }//end while
+         rs.close ();
+         ok = true;
+         return result;
+      }finally{
+         if (!ok){
+            conn.discard (query);
+         }
+         _pool.release (conn);
+         METRICS.record (query, start, result.size(), bytes, ok);
+      }
+   }//end executeQueryAndMap
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, with ? placeholders for params
+    * @param params values bound to the placeholders in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      PooledConnection conn = _pool.acquire();
+      int rowCount = 0;
+      long bytes = 0;
+      boolean ok = false;
+      try{
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         int numCol = rs.getMetaData ().getColumnCount ();
 
-       int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+         // iterates through the result set and count nuber of results.
+         while (rs.next()){
+            rowCount++;
+            bytes += rowBytes (rs, numCol);
+         }//end while
+         rs.close ();
+         ok = true;
+         return rowCount;
+      }finally{
+         if (!ok){
+            conn.discard (query);
+         }
+         _pool.release (conn);
+         METRICS.record (query, start, rowCount, bytes, ok);
+      }
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is per
+    * connection, so call this inside the transaction that advanced the
+    * sequence.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	   Statement stmt = this._connection.createStatement ();
-
-	   ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	   if (rs.next())
-		   return rs.getInt(1);
-	   return -1;
+      long start = System.nanoTime();
+      PooledConnection conn = _pool.acquire();
+      boolean ok = false;
+      try{
+         PreparedStatement stmt = conn.prepare (CURRVAL);
+         stmt.setString (1, sequence);
+         ResultSet rs = stmt.executeQuery ();
+         int value = -1;
+         if (rs.next())
+            value = rs.getInt(1);
+         rs.close ();
+         ok = true;
+         return value;
+      }finally{
+         if (!ok){
+            conn.discard (CURRVAL);
+         }
+         _pool.release (conn);
+         METRICS.record (CURRVAL, start, 1, 0, ok);
+      }
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the pooled connections.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      // the audit log and supply pipeline still need the pool to drain, and
+      // the replenishment engine feeds the pipeline
+      this.replenishment.close ();
+      this.proximityJob.close ();
+      this.inventory.close ();
+      this.supplyPipeline.close ();
+      this.auditLog.close ();
+      String metricsFile = System.getProperty("retail.metrics.file");
+      if (metricsFile != null){
+         METRICS.dumpTo (metricsFile);
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -247,20 +1100,46 @@ public class Retail {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      String mode = args.length >= 4 && args.length <= 5 ? args[3] : null;
+      boolean batch = "--batch".equals(mode);
+      boolean serve = "--serve".equals(mode);
+      boolean ingest = "--ingest".equals(mode);
+      boolean archive = "--archive".equals(mode);
+      boolean replenish = "--replenish".equals(mode) && args.length == 4;
+      boolean proximity = "--proximity".equals(mode) && (args.length == 4 || "full".equals(args[4]));
+      if (args.length != 3 && !batch && !serve && !ingest && !archive && !replenish && !proximity) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--batch [<script>|-] | --serve [<listen port>] | --ingest [<orders.csv>|-]" +
+            " | --archive [<months to keep>] | --replenish | --proximity [full]]");
          return;
       }//end if
+      if (batch) {
+         System.exit(runBatch(args[0], args[1], args[2], args.length == 5 ? args[4] : "-"));
+      }
+      if (ingest) {
+         System.exit(runIngest(args[0], args[1], args[2], args.length == 5 ? args[4] : "-"));
+      }
+      if (archive) {
+         System.exit(runArchive(args[0], args[1], args[2], args.length == 5 ? Integer.parseInt(args[4]) : ARCHIVE_KEEP_MONTHS));
+      }
+      if (replenish) {
+         System.exit(runReplenish(args[0], args[1], args[2]));
+      }
+      if (proximity) {
+         System.exit(runProximity(args[0], args[1], args[2], args.length == 5));
+      }
+      if (serve) {
+         System.exit(runServer(args[0], args[1], args[2], args.length == 5 ? Integer.parseInt(args[4]) : SERVER_PORT));
+      }
 
       Greeting();
       Retail esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         loadDriver ();
          // instantiate the Retail object and creates a physical
          // connection.
          String dbname = args[0];
@@ -277,7 +1156,9 @@ public class Retail {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
+            int choice = readChoice();
+            METRICS.setOperation(choice == 1 ? "createUser" : choice == 2 ? "logIn" : null);
+            switch (choice){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); break;
                case 9: keepon = false; break;
@@ -299,10 +1180,13 @@ public class Retail {
                 System.out.println("7. View 5 Popular Items");
                 System.out.println("8. View 5 Popular Customers");
                 System.out.println("9. Place Product Supply Request to Warehouse");
+                System.out.println("10. Find a Product near me");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
+                choice = readChoice();
+                METRICS.setOperation(choice > 0 && choice < USER_MENU_OPERATIONS.length ? USER_MENU_OPERATIONS[choice] : null);
+                switch (choice){
                    case 1: viewStores(esql); break;
                    case 2: viewProducts(esql); break;
                    case 3: placeOrder(esql); break;
@@ -312,8 +1196,9 @@ public class Retail {
                    case 7: viewPopularProducts(esql); break;
                    case 8: viewPopularCustomers(esql); break;
                    case 9: placeProductSupplyRequests(esql); break;
+                   case 10: findProduct(esql); break;
 
-                   case 20: usermenu = false; break;
+                   case 20: usermenu = false; esql.setSession(null); break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -335,6 +1220,192 @@ public class Retail {
       }//end try
    }//end main
 
+   /**
+    * Runs a command script (see BatchRunner) and writes one JSON result per
+    * command to standard output.  Everything else the program prints goes
+    * to standard error so the results can be piped straight into a tool.
+    *
+    * @param script the script file, or "-" for standard input
+    * @return the process exit status: 0 if every command succeeded
+    */
+   static int runBatch(String dbname, String dbport, String user, String script) {
+      PrintStream results = System.out;
+      System.setOut(System.err);
+      Retail esql = null;
+      try{
+         loadDriver ();
+         esql = new Retail (dbname, dbport, user, "");
+         BufferedReader reader = script.equals("-") ? in : new BufferedReader(new FileReader(script));
+         Writer out = new BufferedWriter(new OutputStreamWriter(results), RENDER_CHUNK);
+         try{
+            int failures = new BatchRunner(esql, out).run(reader);
+            return failures == 0 ? 0 : 1;
+         }finally{
+            out.flush();
+            reader.close();
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         return 2;
+      }finally{
+         if(esql != null) {
+            esql.cleanup ();
+         }//end if
+      }//end try
+   }//end runBatch
+
+   /**
+    * Bulk loads offline orders (see OrderIngest).  Rejected orders are
+    * written to standard output as JSON lines and the totals to standard
+    * error.
+    *
+    * @param file the orders CSV, or "-" for standard input
+    * @return the process exit status: 0 if every order was accepted
+    */
+   static int runIngest(String dbname, String dbport, String user, String file) {
+      PrintStream results = System.out;
+      System.setOut(System.err);
+      Retail esql = null;
+      try{
+         loadDriver ();
+         esql = new Retail (dbname, dbport, user, "");
+         BufferedReader reader = file.equals("-") ? in : new BufferedReader(new FileReader(file), 1 << 16);
+         Writer out = new BufferedWriter(new OutputStreamWriter(results), RENDER_CHUNK);
+         long start = System.currentTimeMillis();
+         try{
+            METRICS.setOperation("ingest");
+            OrderIngest.Summary summary = new OrderIngest(esql, INGEST_BATCH).ingest(reader, out);
+            System.err.printf("Read %d orders: %d accepted, %d rejected, in %d batches and %d ms%n",
+               summary.read, summary.accepted, summary.rejected, summary.batches, System.currentTimeMillis() - start);
+            return summary.rejected == 0 ? 0 : 1;
+         }finally{
+            out.flush();
+            reader.close();
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         return 2;
+      }finally{
+         if(esql != null) {
+            esql.cleanup ();
+         }//end if
+      }//end try
+   }//end runIngest
+
+   /**
+    * Archives the monthly Orders partitions older than keepMonths months
+    * (see OrderPartitions) to gzipped CSV files under ARCHIVE_DIR.
+    *
+    * @param keepMonths how many months before the current one stay online
+    * @return the process exit status
+    */
+   static int runArchive(String dbname, String dbport, String user, int keepMonths) {
+      Retail esql = null;
+      try{
+         loadDriver ();
+         esql = new Retail (dbname, dbport, user, "");
+         METRICS.setOperation("archive");
+         esql.ensurePartitions();
+         List<String> archived = esql.orderPartitions.archive(keepMonths, new File(ARCHIVE_DIR));
+         System.err.println("Archived " + archived.size() + " partitions to " + ARCHIVE_DIR);
+         return 0;
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         return 2;
+      }finally{
+         if(esql != null) {
+            esql.cleanup ();
+         }//end if
+      }//end try
+   }//end runArchive
+
+   /**
+    * Requests supply for every low product once (see ReplenishmentEngine)
+    * and waits for the deliveries until cleanup gives up on them.
+    *
+    * @return the process exit status
+    */
+   static int runReplenish(String dbname, String dbport, String user) {
+      Retail esql = null;
+      try{
+         loadDriver ();
+         esql = new Retail (dbname, dbport, user, "");
+         METRICS.setOperation("replenish");
+         List<SupplyPipeline.Request> made = esql.replenishment.runOnce();
+         System.err.println("Requested supply for " + made.size() + " low products");
+         return 0;
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         return 2;
+      }finally{
+         if(esql != null) {
+            esql.cleanup ();
+         }//end if
+      }//end try
+   }//end runReplenish
+
+   /**
+    * Recomputes the nearby stores (see ProximityJob) of every user, or of
+    * only the users and stores that moved or opened since the last run.
+    *
+    * @param full whether to recompute every user
+    * @return the process exit status
+    */
+   static int runProximity(String dbname, String dbport, String user, boolean full) {
+      Retail esql = null;
+      try{
+         loadDriver ();
+         esql = new Retail (dbname, dbport, user, "");
+         METRICS.setOperation("proximity");
+         int rows = full ? esql.proximityJob.runFull() : esql.proximityJob.runIncremental();
+         System.err.println("Wrote " + rows + " nearby store rows");
+         return 0;
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         return 2;
+      }finally{
+         if(esql != null) {
+            esql.cleanup ();
+         }//end if
+      }//end try
+   }//end runProximity
+
+   /**
+    * Serves the batch commands to concurrent clients (see RetailServer)
+    * until the process is stopped.
+    *
+    * @param listenPort the local port clients connect to
+    * @return the process exit status
+    */
+   static int runServer(String dbname, String dbport, String user, int listenPort) {
+      Retail esql = null;
+      try{
+         loadDriver ();
+         esql = new Retail (dbname, dbport, user, "");
+         esql.ensurePartitions();
+         esql.orderPartitions.scheduleDaily(PARTITIONS_AHEAD);
+         // the one process that delivers what earlier runs left undelivered
+         esql.supplyPipeline.start();
+         esql.replenishment.schedule(REPLENISH_INTERVAL);
+         esql.proximityJob.schedule(PROXIMITY_INTERVAL);
+         final RetailServer server = new RetailServer(esql, listenPort);
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               server.stop();
+            }
+         });
+         server.serve();
+         return 0;
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         return 2;
+      }finally{
+         if(esql != null) {
+            esql.cleanup ();
+         }//end if
+      }//end try
+   }//end runServer
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -376,11 +1447,7 @@ public class Retail {
          System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
          String longitude = in.readLine();
          
-         String type="Customer";
-
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
+         esql.createUser(name, password, Double.parseDouble(latitude), Double.parseDouble(longitude));
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -399,11 +1466,11 @@ public class Retail {
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-	      if (userNum > 0){
-            esql.setLoggedInUser(name);
-		      return name;
+         //resolve id, location, role and managed stores once for the whole session
+         Session session = Session.logIn(esql, name, password);
+         if (session != null){
+            esql.setSession(session);
+            return session.name;
          }
          return null;
       }catch(Exception e){
@@ -416,43 +1483,18 @@ public class Retail {
 
    public static void viewStores(Retail esql) {
       try{
-         //getting logged-in user's location
-         String username = esql.getLoggedInUser();
-         String getUser = "SELECT * FROM Users U WHERE U.name = \'";
-         List<List<String>> users = esql.executeQueryAndReturnResult(getUser + username + "\';"); //grab users w username equal to current user (should return 1)
-         List<String> user = users.get(0); //get first (should be only) user
-         double userLat = Double.parseDouble(user.get(3));
-         double userLong = Double.parseDouble(user.get(4));
-
-         //get list of stores to parse each location's distance from user
-         String getStores = "SELECT * FROM Store S;";
-         List<List<String>> stores = esql.executeQueryAndReturnResult(getStores);
-         List<String> store = new ArrayList<String>();
-         double euclideanDist = 0.0;
-         double cartesianDistMiles = 0.0;
-         double storeLat = 0.0;
-         double storeLong = 0.0;
-         List<Double> distances = Arrays.asList(new Double[stores.size()]); //store distances of stores in separate array to reference in tandem w store
-         System.out.print("Total # of stores: " + stores.size());
-         for (int i = 0; i < stores.size(); i++){
-            store = stores.get(i);
-            storeLat = Double.parseDouble(store.get(2)); //reference column 3(lat) in sql results
-            storeLong = Double.parseDouble(store.get(3)); //reference column 4(long) in sql results
-            euclideanDist = esql.calculateDistance(userLat,userLong,storeLat,storeLong);
-            // removes from stores list any stores > 30 miles from user
-            distances.set(i,euclideanDist);
-            if (euclideanDist > 30.0){
-               //System.out.print("\nOver 30 miles: " + store.get(1) + " " + euclideanDist);
-               stores.remove(i);
-               i = i-1;
-            }
-         }
+         //getting logged-in user's session
+         Session session = esql.getSession();
+
+         //stores within 30 miles of user, precomputed or through the store index
+         System.out.print("Total # of stores: " + esql.getStoreIndex().size());
+         List<StoreIndex.Hit> stores = esql.nearbyStores(session);
          System.out.print("\n# of stores after filtering: " + stores.size());
          //output list of stores < 30 miles from user
          System.out.print("\n|#|\t|Store name|\t\t\t|Store ID|\t|Latitude|\t|Longitude|\t|Distance|");
          for (int j = 0; j < stores.size(); j++){
-            store = stores.get(j);
-            System.out.printf("\n %d\t  %s   %s\t\t%s\t%s\t  %.2f", j+1, store.get(1), store.get(0), store.get(2), store.get(3), distances.get(j));
+            StoreIndex.Hit hit = stores.get(j);
+            System.out.printf("\n %d\t  %-30s   %d\t\t%f\t%f\t  %.2f", j+1, hit.store.name, hit.store.storeID, hit.store.latitude, hit.store.longitude, hit.distance);
          }
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -463,10 +1505,10 @@ public class Retail {
       try{
 
          //initialize
-         List<List<String>> stores = new ArrayList<List<String>>();
-         List<String> store = new ArrayList<String>();
-         List<List<String>> products = new ArrayList<List<String>>();
-         List<String> product = new ArrayList<String>();
+         List<StoreIndex.Entry> stores = new ArrayList<StoreIndex.Entry>();
+         StoreIndex.Entry store = null;
+         List<Rows.Product> products = new ArrayList<Rows.Product>();
+         Rows.Product product = null;
          boolean viewingProducts = true;
          String storeID = "";
          String input = "";
@@ -474,30 +1516,28 @@ public class Retail {
          while(viewingProducts){
             //output list of stores that user can request to
 
-            String getStores = "SELECT * FROM Store;";
-            stores = esql.executeQueryAndReturnResult(getStores);
+            stores = esql.getStoreIndex().all();
             System.out.print("\n|#|\t|Store name|\t\t\t|Latitude|\t|Longitude|");
             for(int i = 0; i < stores.size(); i++){
                store = stores.get(i);
-               System.out.printf("\n%d\t%s\t%s\t%s", (i+1), store.get(1), store.get(2), store.get(3));
+               System.out.printf("\n%d\t%-30s\t%f\t%f", (i+1), store.name, store.latitude, store.longitude);
             }
 
             //select store, pass input to stores array index
             System.out.printf("\nPlease select a store to view its products (%d - %d): ", 1, stores.size());
             input = in.readLine();
             store = stores.get(Integer.parseInt(input) - 1);
-            storeID = store.get(0);
-            System.out.printf("\nYou selected store: %s\n", store.get(1));
+            storeID = String.valueOf(store.storeID);
+            System.out.printf("\nYou selected store: %s\n", store.name);
 
             //get list of products from selected store
          
             //get current product listing
-            String getProduct = "SELECT * FROM Product WHERE storeID = \'" + storeID + "\';";
             System.out.print("\n|#|\t|Product|\t\t\t|Price|\t|Quantity|");
-            products = esql.executeQueryAndReturnResult(getProduct);
+            products = esql.getCatalog(Integer.parseInt(storeID));
             for(int j = 0; j < products.size(); j++){
                product = products.get(j);
-               System.out.printf("\n %d\t%s\t$%.2f\t%d", (j+1), product.get(1), Double.parseDouble(product.get(3)), Integer.parseInt(product.get(2)));
+               System.out.printf("\n %d\t%-30s\t$%.2f\t%d", (j+1), product.productName, product.pricePerUnit, product.numberOfUnits);
             }
 
             System.out.print("\n\nView another store's products?\n\t1. Yes\n\t2. No\n\t");
@@ -522,40 +1562,15 @@ public class Retail {
       }
    }
 
-   public static List<List<String>> returnStores(Retail esql){
+   public static List<StoreIndex.Hit> returnStores(Retail esql){
       //only called from within other methods
-      List<List<String>> stores = Arrays.asList(Arrays.asList(new String[20]));
+      List<StoreIndex.Hit> stores = new ArrayList<StoreIndex.Hit>();
       try{
-         //getting logged-in user's location
-         String username = esql.getLoggedInUser();
-         String getUser = "SELECT * FROM Users U WHERE U.name = \'";
-         List<List<String>> users = esql.executeQueryAndReturnResult(getUser + username + "\';"); //grab users w username equal to current user (should return 1)
-         List<String> user = users.get(0); //get first (should be only) user
-         double userLat = Double.parseDouble(user.get(3));
-         double userLong = Double.parseDouble(user.get(4));
-
-         //get list of stores to parse each location's distance from user
-         String getStores = "SELECT * FROM Store S;";
-         stores = esql.executeQueryAndReturnResult(getStores);
-         List<String> store;
-         double euclideanDist = 0.0;
-         double cartesianDistMiles = 0.0;
-         double storeLat = 0.0;
-         double storeLong = 0.0;
-         List<Double> distances = Arrays.asList(new Double[stores.size()]); //store distances of stores in separate array to reference in tandem w store
-         for (int i = 0; i < stores.size(); i++){
-            store = stores.get(i);
-            storeLat = Double.parseDouble(store.get(2)); //reference column 3(lat) in sql results
-            storeLong = Double.parseDouble(store.get(3)); //reference column 4(long) in sql results
-            euclideanDist = esql.calculateDistance(userLat,userLong,storeLat,storeLong);
-            // removes from stores list any stores > 30 miles from user
-            distances.set(i,euclideanDist);
-            if (euclideanDist > 30.0){
-               //System.out.print("\nOver 30 miles: " + store.get(1) + " " + euclideanDist);
-               stores.remove(i);
-               i = i-1;
-            }
-         }
+         //getting logged-in user's session
+         Session session = esql.getSession();
+
+         //stores within 30 miles of user, in the same order viewStores lists them
+         stores = esql.nearbyStores(session);
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
@@ -564,102 +1579,104 @@ public class Retail {
 
    public static void placeOrder(Retail esql) {
       try{
-         String query1 = ""; //for general query usage
-         String query2 = ""; //for general query usage
          //Find stores within 30 miles radius of user and print list of stores
          viewStores(esql);
-         List<List<String>> stores = returnStores(esql);
+         List<StoreIndex.Hit> stores = returnStores(esql);
 
          //Grab userID from logged in user
-         String username = esql.getLoggedInUser();
-         String getUser = "SELECT * FROM Users U WHERE U.name = \'";
-         List<List<String>> users = esql.executeQueryAndReturnResult(getUser + username + "\';"); //grab users w username equal to current user (should return 1)
-         List<String> user = users.get(0); //get first (should be only) user
-         String userID =  user.get(0); //get userID from current user
+         int userID = esql.getSession().userID;
 
          //User select store from list
          System.out.printf("\nPlease select a store (%d - %d): ", 1, stores.size());
          String input = in.readLine();
          int selection = Integer.parseInt(input);
-         List<String> store = stores.get(selection-1);
-         System.out.printf("\nYou selected store: %s\n", store.get(1));
-         String storeID = store.get(0);
+         StoreIndex.Entry store = stores.get(selection-1).store;
+         System.out.printf("\nYou selected store: %s\n", store.name);
+         String storeID = String.valueOf(store.storeID);
 
-         //init queries
-         String productRequest = "";
-         String productStockUpdate = "";
-         List<List<String>> products = esql.executeQueryAndReturnResult("SELECT * FROM Product;");
-         List<String> product = new ArrayList<String>();
+         //init
+         List<Rows.Product> products = new ArrayList<Rows.Product>();
+         Rows.Product product = null;
+         List<OrderEngine.Item> cart = new ArrayList<OrderEngine.Item>();
+         Map<String, Integer> inCart = new HashMap<String, Integer>();
 
-         //start order flow
+         //collect items into the cart, then check them all out at once
          boolean orderFlow = true;
-         boolean startover = false;
          while(orderFlow){
-            startover = false;
-
             //list products at store
             System.out.print("\n\n\t========Available Products========\n\n");
-            String getProduct = "SELECT * FROM Product WHERE storeID = \'" + storeID + "\';";
             System.out.print("\n|#|\t|Product|\t\t\t|Price|\t|Quantity|");
-            products = esql.executeQueryAndReturnResult(getProduct);
+            products = esql.getCatalog(Integer.parseInt(storeID));
             for(int j = 0; j < products.size(); j++){
                product = products.get(j);
-               System.out.printf("\n %d\t%s\t$%.2f\t%d", (j+1), product.get(1), Double.parseDouble(product.get(3)), Integer.parseInt(product.get(2)));
+               System.out.printf("\n %d\t%-30s\t$%.2f\t%d", (j+1), product.productName, product.pricePerUnit, product.numberOfUnits);
             }
             System.out.printf("\nWhat product would you like to order? (%d - %d): ", 1, products.size());
             input = in.readLine();
             product = products.get(Integer.parseInt(input) - 1);
-            System.out.printf("\nYou selected: %s  $%.2f, %s\n", product.get(1), Double.parseDouble(product.get(3)), product.get(2));
-            
-            System.out.printf("\nHow many would you like to order? (price: $%d, in stock: %d): ", Integer.parseInt(product.get(3)), Integer.parseInt(product.get(2)));
+            System.out.printf("\nYou selected: %s  $%.2f, %s\n", product.productName, product.pricePerUnit, product.numberOfUnits);
+
+            //units already in the cart count against the stock too
+            Integer carted = inCart.get(product.productName);
+            int available = product.numberOfUnits - (carted == null ? 0 : carted);
+            System.out.printf("\nHow many would you like to order? (price: $%.2f, available: %d): ", product.pricePerUnit, available);
             input = in.readLine();
             int requestedAmount = Integer.parseInt(input);
-            if(requestedAmount < (Integer.parseInt(product.get(2)) + 1)){ //check if num requested < num in stock at user's selected store
-               //first, to create new order, determine new order number to be used (NEXTVAL on orderNumber sequence)
-               //order format for reference: (orderNumber,customerID,storeID,productName,unitsOrdered,orderTime)
-               //product listing format for reference: (storeID,productName,numberOfUnits,pricePerUnit)
-               
-               //get current date and time
-               String timeQuery = "SELECT NOW()";
-               List<List<String>> times = esql.executeQueryAndReturnResult(timeQuery);
-               List<String> time = times.get(0);
-               String timestamp = time.get(0);
-               timestamp = timestamp.substring(0, timestamp.length() - 10);
-               //System.out.print(timestamp);
-               
-               //confirm order
-               System.out.printf("\nPlease confirm order:\n\tItem: %s\n\tQuantity: %d\n\nPlace order?\n1. Yes\n2. No, exit to main menu\n", product.get(1), requestedAmount);
-               switch(readChoice()){
-                  case 1: startover = false; break;
-                  case 2: startover = true; break;
-                  default : System.out.println("Unrecognized choice!"); break;
-               }
-               if(startover){
-                  break;
-               }
-               //assemble and execute query
-               productRequest = "INSERT INTO Orders VALUES (NEXTVAL(\'orders_orderNumber_seq\'),\'" + userID + "\',\'" + product.get(0) + "\',\'" + product.get(1) + "\',\'" + requestedAmount + "\',\'" + timestamp + "\');"; //create product request query
-               esql.executeUpdate(productRequest);
-
-               //update product listing's stock
-               productStockUpdate = "UPDATE Product SET numberOfUnits = \'";
-               productStockUpdate = productStockUpdate + (Integer.parseInt(product.get(2)) - requestedAmount) + "\' WHERE storeID = \'" + product.get(0) + "\' AND productName = \'" + product.get(1) + "\';";
-               esql.executeUpdate(productStockUpdate);
-
-               //print order confirmation
-               System.out.print("\n\n\t\t\t=====Order Confirmation=====\n");
-               query1 = "SELECT * FROM Orders O WHERE O.customerID = \'"; 
-               query2 = "\' GROUP BY 1 ORDER BY 1 DESC LIMIT 1;";
-               esql.executeQueryAndPrintResult(query1 + user.get(0) + query2);
-               System.out.printf("\n\nPlace another order from this store?\nYour current store: %s\n1. Yes\n2. No, please exit to main menu\n", store.get(1));
-               switch(readChoice()){
-                  case 1: orderFlow = true; break;
-                  case 2: orderFlow = false; break;
-                  default : System.out.println("Unrecognized choice!"); break;
-               }
+            if(requestedAmount > 0 && requestedAmount <= available){
+               cart.add(new OrderEngine.Item(product.productName, requestedAmount));
+               inCart.put(product.productName, (carted == null ? 0 : carted) + requestedAmount);
             }
             else{
-               System.out.printf("Cannot request more than %s units of %s \n\t(you entered: %d) \nPlease reenter product selection.\n", product.get(2), product.get(1), requestedAmount);
+               System.out.printf("Cannot request more than %s units of %s \n\t(you entered: %d) \nPlease reenter product selection.\n", available, product.productName, requestedAmount);
+            }
+            if(cart.isEmpty()){
+               continue;
+            }
+
+            //show the cart
+            System.out.printf("\n\t=====Your Cart (%s)=====\n", store.name);
+            System.out.print("|Product|\t\t\t|Units|\n");
+            for(int i = 0; i < cart.size(); i++){
+               System.out.printf("%-30s\t%d\n", cart.get(i).productName, cart.get(i).units);
+            }
+            System.out.print("\n1. Add another item\n2. Check out\n3. Empty cart and exit to main menu\n");
+            switch(readChoice()){
+               case 1: continue;
+               case 2: break;
+               case 3: return;
+               default : System.out.println("Unrecognized choice!"); continue;
+            }
+
+            //order every item in one transaction; the stock check is repeated
+            //server-side in case someone else bought them first
+            OrderEngine.Checkout checkout = esql.getOrderEngine().checkout(userID, store.storeID, cart);
+            if(!checkout.placed()){
+               esql.getCatalogCache().invalidate(store.storeID); //listing was stale, reload it
+               System.out.printf("\nSorry, %s no longer has enough stock of: %s\nNothing was ordered; please adjust your cart.\n", store.name, checkout.unavailable);
+               for(int i = cart.size() - 1; i >= 0; i--){
+                  if(checkout.unavailable.contains(cart.get(i).productName)){
+                     inCart.remove(cart.get(i).productName);
+                     cart.remove(i);
+                  }
+               }
+               continue;
+            }
+            esql.getCatalogCache().invalidate(store.storeID);
+
+            //print one confirmation for the whole cart
+            System.out.print("\n\n\t\t\t=====Order Confirmation=====\n");
+            System.out.print("|Order #|\t|Customer ID|\t|Store ID|\t|Product|\t\t\t|Units|\t|Order Time|\n");
+            for(int i = 0; i < checkout.receipts.size(); i++){
+               OrderEngine.Receipt receipt = checkout.receipts.get(i);
+               System.out.printf("%d\t\t%d\t\t%d\t\t%-30s\t%d\t%s\n", receipt.orderNumber, receipt.customerID, receipt.storeID, receipt.productName, receipt.unitsOrdered, Rows.format(receipt.orderTime));
+            }
+            cart.clear();
+            inCart.clear();
+            System.out.printf("\n\nPlace another order from this store?\nYour current store: %s\n1. Yes\n2. No, please exit to main menu\n", store.name);
+            switch(readChoice()){
+               case 1: orderFlow = true; break;
+               case 2: orderFlow = false; break;
+               default : System.out.println("Unrecognized choice!"); break;
             }
          }
          
@@ -670,20 +1687,30 @@ public class Retail {
 
    public static void viewRecentOrders(Retail esql) {
       try{
-         String username = esql.getLoggedInUser();
+         int userID = esql.getSession().userID;
          System.out.print("\n\n\t\t\t\t\t========Recent Orders========\n");
-         String query1 = "SELECT O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM Orders O, Store S, Users U WHERE O.storeID = S.storeID AND U.userID = O.customerID AND U.name = \'";
-         String query2 = "\' GROUP BY O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime ORDER BY 5 DESC LIMIT 5;";
-         String query = query1 + username + query2;
-         //int rowCount = esql.executeQueryAndPrintResult(query);
-         List<List<String>> recentOrders = esql.executeQueryAndReturnResult(query);
-         List<String> order = new ArrayList<String>();
-
-         //print orders
-         System.out.print("\n|Product|\t\t\t|Amount|   |Store ID| |Store Name|\t\t\t|Date Ordered|");
-         for(int i = 0; i < recentOrders.size(); i++){
-            order = recentOrders.get(i);
-            System.out.printf("\n%s\t %s\t\t%s\t%s %s", order.get(2), order.get(3), order.get(0), order.get(1), order.get(4));
+         Rows.RecentOrder order = null;
+         boolean older = true;
+         while(older){
+            //fetch the page that starts after the last order shown
+            List<Rows.RecentOrder> recentOrders = esql.getRecentActivity().orders(userID, order, RECENT_PAGE);
+            if(recentOrders.isEmpty()){
+               System.out.print(order == null ? "\nNo orders yet.\n" : "\nNo older orders.\n");
+               break;
+            }
+
+            //print orders
+            System.out.print("\n|Product|\t\t\t|Amount|   |Store ID| |Store Name|\t\t\t|Date Ordered|");
+            for(int i = 0; i < recentOrders.size(); i++){
+               order = recentOrders.get(i);
+               System.out.printf("\n%-30s\t %d\t\t%d\t%-30s %s", order.productName, order.unitsOrdered, order.storeID, order.storeName, Rows.format(order.orderTime));
+            }
+            if(recentOrders.size() < RECENT_PAGE){
+               System.out.println();
+               break;
+            }
+            System.out.printf("\n\n1. Show %d older orders\n2. Exit to main menu\n", RECENT_PAGE);
+            older = readChoice() == 1;
          }
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -694,79 +1721,62 @@ public class Retail {
 
    public static void updateProduct(Retail esql) {
       try{
-         //Grab userID from logged in user
-         String username = esql.getLoggedInUser();
-         String getUser = "SELECT * FROM Users U WHERE U.name = \'";
-         List<List<String>> users = esql.executeQueryAndReturnResult(getUser + username + "\';"); //grab users w username equal to current user (should return 1)
-         List<String> user = users.get(0); //get first (should be only) user
-         String userID =  user.get(0); //get userID from current user
+         //Grab role from logged in user
+         Session session = esql.getSession();
 
          //initialize
          String input = "";
          String storeID = "";
-         List<String> store = new ArrayList<String>();
-         List<List<String>> stores = new ArrayList<List<String>>();
-         List<String> product = new ArrayList<String>();
-         List<List<String>> products = new ArrayList<List<String>>();
-         String getStores = "";
-         String prodName = "";
-         String warehouseID = "";
-         String numUnits = "";
-         boolean isAdmin = false;
+         StoreIndex.Entry store = null;
+         List<StoreIndex.Entry> stores = new ArrayList<StoreIndex.Entry>();
+         Rows.Product product = null;
+         List<Rows.Product> products = new ArrayList<Rows.Product>();
+         boolean isAdmin = session.isAdmin();
          int newQuantity = 0;
          Double newPrice = 0.0;
          boolean startover = false;
 
          //check if logged-in user is a manager or admin
-         int storemanager = esql.executeQuery("SELECT * FROM Users U WHERE U.userID = \'" + userID + "\' AND (U.type = \'manager\' OR U.type = \'admin\');");
-         if (storemanager < 1){
+         if (!session.isManager()){
             System.out.print("\nERROR: Must be logged in as a manager or administrator to use this function. Exiting...\n\n");
             return;
          }
-         if(Integer.parseInt(user.get(0)) == 1){
-            //only the admin will have userID = 1
-            isAdmin = true;
-         }
 
          //managers must choose store from list of stores they manage, admin can choose any store
-         getStores = "SELECT * FROM Store S WHERE S.managerID = \'" + userID + "\';";
-
          if(isAdmin){
             System.out.print("\n========Admin View========\n");
-            getStores = "SELECT * FROM Store;";
          }
          
          //output list of stores that user can request to
-         stores = esql.executeQueryAndReturnResult(getStores);
+         stores = esql.managedStores();
          System.out.print("\n|#|\t|Store name|\t\t\t|Latitude|\t|Longitude|");
          for(int i = 0; i < stores.size(); i++){
             store = stores.get(i);
-            System.out.printf("\n%d\t%s\t%s\t%s", (i+1), store.get(1), store.get(2), store.get(3));
+            System.out.printf("\n%d\t%-30s\t%f\t%f", (i+1), store.name, store.latitude, store.longitude);
          }
 
          //select store, pass input to stores array index
          System.out.printf("\nPlease select a store (%d - %d): ", 1, stores.size());
          input = in.readLine();
          store = stores.get(Integer.parseInt(input) - 1);
-         storeID = store.get(0);
-         System.out.printf("\nYou selected store: %s\n", store.get(1));
+         storeID = String.valueOf(store.storeID);
+         System.out.printf("\nYou selected store: %s\n", store.name);
 
          //get list of products from selected store
          
          //get current product listing
-         String getProduct = "SELECT * FROM Product WHERE storeID = \'" + storeID + "\';";
          System.out.print("\n|#|\t|Product|\t\t\t|Price|\t|Quantity|");
-         products = esql.executeQueryAndReturnResult(getProduct);
+         products = esql.getCatalog(Integer.parseInt(storeID));
          for(int j = 0; j < products.size(); j++){
             product = products.get(j);
-            System.out.printf("\n %d\t%s\t$%.2f\t%d", (j+1), product.get(1), Double.parseDouble(product.get(3)), Integer.parseInt(product.get(2)));
+            System.out.printf("\n %d\t%-30s\t$%.2f\t%d", (j+1), product.productName, product.pricePerUnit, product.numberOfUnits);
          }
 
          //product selection
          System.out.printf("\nPlease select a product (%d - %d): ", 1, products.size());
          input = in.readLine();
          product = products.get(Integer.parseInt(input) - 1);
-         System.out.printf("\nYou selected: %s  $%.2f, %s", product.get(1), Double.parseDouble(product.get(3)), product.get(2));
+         System.out.printf("\nYou selected: %s  $%.2f, %s", product.productName, product.pricePerUnit, product.numberOfUnits);
 
          //update price or quantity
          System.out.print("\nUpdate quantity or price?\n\n\t1. Quantity\n\t2. Price\n\t3. Both Quantity and Price\n\t");
@@ -774,12 +1784,12 @@ public class Retail {
             case 1: 
                System.out.print("\nEnter new quantity: ");
                newQuantity = Integer.parseInt(in.readLine());
-               newPrice = Double.parseDouble(product.get(3));
+               newPrice = product.pricePerUnit;
                break;
             case 2:
                System.out.print("\nEnter new price ($#.##): $");
                newPrice = Double.parseDouble(in.readLine());
-               newQuantity = Integer.parseInt(product.get(2));
+               newQuantity = product.numberOfUnits;
                break;
             case 3:
                System.out.print("\nEnter new quantity: ");
@@ -796,8 +1806,8 @@ public class Retail {
 
          //display old and new entries side-by-side
          System.out.print("\nPlease confirm changes: \n");
-         System.out.printf("Old: %s  $%.2f, %s\n", product.get(1), Double.parseDouble(product.get(3)), product.get(2));
-         System.out.printf("New: %s  $%.2f, %s\n", product.get(1), newPrice, newQuantity);
+         System.out.printf("Old: %s  $%.2f, %s\n", product.productName, product.pricePerUnit, product.numberOfUnits);
+         System.out.printf("New: %s  $%.2f, %s\n", product.productName, newPrice, newQuantity);
 
          System.out.print("\n\t1. Confirm and exit\n\t2. Discard and exit\n\n\t");
          switch(readChoice()){
@@ -810,29 +1820,13 @@ public class Retail {
             return;
          }
 
-         //confirm update
-         String productUpdate = "UPDATE Product SET numberOfUnits = \'" + newQuantity + "\', pricePerUnit = \'" + newPrice + "\' WHERE storeID = \'" + product.get(0) + "\' AND productName = \'" + product.get(1) + "\';";
-         esql.executeUpdate(productUpdate);
+         //confirm update; managers' updates are logged as well
+         Rows.Product updated = esql.applyProductUpdate(session, product, newQuantity, newPrice);
          System.out.print("\n\n========Update Confirmation========\n\n");
-         String updatedEntry  = "SELECT * FROM Product P WHERE storeID = \'" + storeID + "\' AND productName = \'" + product.get(1) + "\';";
-         esql.executeQueryAndPrintResult(updatedEntry);
+         System.out.printf("%d\t%s\t$%.2f\t%d\n", updated.storeID, updated.productName, updated.pricePerUnit, updated.numberOfUnits);
 
-         //log update if user is a manager
          if(!isAdmin){
-            //get current date and time
-            String timeQuery = "SELECT NOW()";
-            List<List<String>> times = esql.executeQueryAndReturnResult(timeQuery);
-            List<String> time = times.get(0);
-            String timestamp = time.get(0);
-            timestamp = timestamp.substring(0, timestamp.length() - 10);
-            String newUpdate = "INSERT INTO ProductUpdates VALUES(NEXTVAL(\'productupdates_updateNumber_seq\'),\'" + userID + "\',\'" + product.get(0) + "\',\'" + product.get(1) + "\',\'" + timestamp + "\');";
-            System.out.println(newUpdate);
-            esql.executeUpdate(newUpdate);
-
-            //confirm log update
-            System.out.print("\n\n======Update Log Confirmation======\n\n");
-            String updateLogEntry = "SELECT * FROM ProductUpdates ORDER BY 1 DESC LIMIT 1";
-            esql.executeQueryAndPrintResult(updateLogEntry);
+            System.out.print("\nThe update has been added to the product update log.\n");
          }
 
       }catch(Exception e){
@@ -842,28 +1836,36 @@ public class Retail {
 
    public static void viewRecentUpdates(Retail esql) {
       try{
-         String username = esql.getLoggedInUser();
+         Session session = esql.getSession();
          //check if logged-in user is a manager or admin
-         int storemanager = esql.executeQuery("SELECT * FROM Users U WHERE U.name = \'" + username + "\' AND (U.type = \'manager\' OR U.type = \'admin\');");
-         if (storemanager < 1){
+         if (!session.isManager()){
             System.out.print("\nERROR: Must be logged in as a manager or administrator to use this function. Exiting...\n\n");
             return;
          }
-         String query1 = "SELECT * FROM ProductUpdates P WHERE EXISTS (SELECT * FROM Users U, Store S WHERE (U.type = \'admin\' OR U.userID = S.managerID) AND U.name = \'";
-         String query2 = "\') GROUP BY P.updateNumber, P.managerID, P.storeID, P.productName, P.updatedOn ORDER BY 5 DESC LIMIT 5";
-         String query = query1 + username + query2;
-         //int rowCount = esql.executeQueryAndPrintResult(query);
-         List<List<String>> recentUpdates = esql.executeQueryAndReturnResult(query);
-         List<String> update = new ArrayList<String>();
-
-         //print updates
          System.out.print("\n\n\t\t\t\t========Recent Updates========\n");
-         System.out.print("\n|Update #| |Manager ID| |Store ID| |Product Name|\t\t   |Date Updated|");
-         for(int i = 0; i < recentUpdates.size(); i++){
-            update = recentUpdates.get(i);
-            System.out.printf("\n    %s\t\t%s\t    %s\t    %s %s", update.get(0), update.get(1), update.get(2), update.get(3), update.get(4));
-         }
+         Rows.ProductUpdate update = null;
+         boolean older = true;
+         while(older){
+            //fetch the page that starts after the last update shown
+            List<Rows.ProductUpdate> recentUpdates = esql.getRecentActivity().updates(session, update, RECENT_PAGE);
+            if(recentUpdates.isEmpty()){
+               System.out.print(update == null ? "\nNo product updates yet.\n" : "\nNo older updates.\n");
+               break;
+            }
 
+            //print updates
+            System.out.print("\n|Update #| |Manager ID| |Store ID| |Product Name|\t\t   |Date Updated|");
+            for(int i = 0; i < recentUpdates.size(); i++){
+               update = recentUpdates.get(i);
+               System.out.printf("\n    %d\t\t%d\t    %d\t    %-30s %s", update.updateNumber, update.managerID, update.storeID, update.productName, Rows.format(update.updatedOn));
+            }
+            if(recentUpdates.size() < RECENT_PAGE){
+               System.out.println();
+               break;
+            }
+            System.out.printf("\n\n1. Show %d older updates\n2. Exit to main menu\n", RECENT_PAGE);
+            older = readChoice() == 1;
+         }
       }catch(Exception e){
          System.err.println(e.getMessage());
       }
@@ -871,26 +1873,21 @@ public class Retail {
 
    public static void viewPopularProducts(Retail esql) {
       try{
-         String username = esql.getLoggedInUser();
+         Session session = esql.getSession();
          //check if logged-in user is a manager or admin
-         int storemanager = esql.executeQuery("SELECT * FROM Users U WHERE U.name = \'" + username + "\' AND (U.type = \'manager\' OR U.type = \'admin\');");
-         if (storemanager < 1){
+         if (!session.isManager()){
             System.out.print("\nERROR: Must be logged in as a manager or administrator to use this function. Exiting...\n\n");
             return;
          }
-         String query1 = "SELECT * FROM (SELECT P.productName, COUNT(O.productName) AS total_orders FROM Product P, Orders O, Users U, Store S WHERE (U.userID = S.managerID OR U.type = \'admin\') AND P.storeID = S.storeID AND O.storeID = S.storeID AND P.productName = O.productName AND U.name = \'";
-         String query2 = "\' GROUP BY P.productName) AS popular_products ORDER BY 2 DESC LIMIT 5;";
-         String query = query1 + username + query2;
-         //int rowCount = esql.executeQueryAndPrintResult(query);
-         List<List<String>> popularProducts = esql.executeQueryAndReturnResult(query);
-         List<String> product = new ArrayList<String>();
+         List<Rows.Total> popularProducts = esql.popularProducts(session);
+         Rows.Total product = null;
 
          //print products
          System.out.print("\n\t=====Popular Products=====\n");
-         System.out.print("\n|Product|\t\t |Total Orders|");
+         System.out.print("\n|Store|  |Product|\t\t |Total Orders|");
          for(int i = 0; i < popularProducts.size(); i++){
             product = popularProducts.get(i);
-            System.out.printf("\n%s %s", product.get(0), product.get(1));
+            System.out.printf("\n%-8d %-30s %d", product.storeID, product.key, product.total);
          }
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -899,23 +1896,19 @@ public class Retail {
 
    public static void viewPopularCustomers(Retail esql) {
       try{
-         String username = esql.getLoggedInUser();
+         Session session = esql.getSession();
          //check if logged-in user is a manager
-         int storemanager = esql.executeQuery("SELECT * FROM Users U WHERE U.name = \'" + username + "\' AND (U.type = \'manager\' OR U.type = \'admin\');");
-         if (storemanager < 1){
+         if (!session.isManager()){
             System.out.print("\nERROR: Must be logged in as a manager or administrator to use this function. Exiting...\n\n");
             return;
          }
-         String query1 = "SELECT * FROM (SELECT O.customerID, SUM(O.unitsOrdered) AS total_units_ordered FROM Product P, Orders O, Users U, Store S WHERE (U.userID = S.managerID OR U.type = \'admin\') AND P.storeID = S.storeID AND O.storeID = S.storeID AND P.productName = O.productName AND U.name = \'";
-         String query2 = "\' GROUP BY O.customerID) AS popular_customers ORDER BY 2 DESC LIMIT 5;";
-         String query = query1 + username + query2;
-         List<List<String>> popularCustomers = esql.executeQueryAndReturnResult(query);
-         List<String> customer = new ArrayList<String>();
+         List<Rows.Total> popularCustomers = esql.popularCustomers(session);
+         Rows.Total customer = null;
          System.out.print("\n\t=====Popular Customers=====\n");
-         System.out.print("\n|Customer ID|\t\t |# Products Ordered|");
+         System.out.print("\n|Store|  |Customer ID|\t\t |# Products Ordered|");
          for(int i = 0; i < popularCustomers.size(); i++){
             customer = popularCustomers.get(i);
-            System.out.printf("\n   %s \t\t\t\t%s", customer.get(0), customer.get(1));
+            System.out.printf("\n%-8d    %s \t\t\t\t%d", customer.storeID, customer.key, customer.total);
          }
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -924,98 +1917,115 @@ public class Retail {
 
    public static void placeProductSupplyRequests(Retail esql) {
       try{
-         //Grab userID from logged in user
-         String username = esql.getLoggedInUser();
-         String getUser = "SELECT * FROM Users U WHERE U.name = \'";
-         List<List<String>> users = esql.executeQueryAndReturnResult(getUser + username + "\';"); //grab users w username equal to current user (should return 1)
-         List<String> user = users.get(0); //get first (should be only) user
-         String userID =  user.get(0); //get userID from current user
+         //Grab role from logged in user
+         Session session = esql.getSession();
 
          //initialize
          String input = "";
          String storeID = "";
-         List<String> store = new ArrayList<String>();
-         List<List<String>> stores = new ArrayList<List<String>>();
-         String getStores = "";
-         String prodName = "";
+         StoreIndex.Entry store = null;
+         List<StoreIndex.Entry> stores = new ArrayList<StoreIndex.Entry>();
          String warehouseID = "";
          String numUnits = "";
-         boolean isAdmin = false;
+         boolean isAdmin = session.isAdmin();
 
          //check if logged-in user is a manager or admin
-         int storemanager = esql.executeQuery("SELECT * FROM Users U WHERE U.userID = \'" + userID + "\' AND (U.type = \'manager\' OR U.type = \'admin\');");
-         if (storemanager < 1){
+         if (!session.isManager()){
             System.out.print("\nERROR: Must be logged in as a manager or administrator to use this function. Exiting...\n\n");
             return;
          }
-         if(Integer.parseInt(user.get(0)) == 1){
-            //only the admin will have userID = 1
-            isAdmin = true;
-         }
 
          //managers must choose store from list of stores they manage, admin can choose any store
-         getStores = "SELECT * FROM Store S WHERE S.managerID = \'" + userID + "\';";
-
          if(isAdmin){
             System.out.print("\n========Admin View========\n");
-            getStores = "SELECT * FROM Store;";
          }
          
          //output list of stores that user can request to
-         stores = esql.executeQueryAndReturnResult(getStores);
+         stores = esql.managedStores();
          System.out.print("\n|#|\t|Store name|\t\t\t|Latitude|\t|Longitude|");
          for(int i = 0; i < stores.size(); i++){
             store = stores.get(i);
-            System.out.printf("\n%d\t%s\t%s\t%s", i+1, store.get(1), store.get(2), store.get(3));
+            System.out.printf("\n%d\t%-30s\t%f\t%f", i+1, store.name, store.latitude, store.longitude);
          }
 
          //select store, pass input to stores array index
          System.out.printf("\nPlease select a store (%d - %d): ", 1, stores.size());
          input = in.readLine();
          store = stores.get(Integer.parseInt(input) - 1);
-         storeID = store.get(0);
-         System.out.printf("\nYou selected store: %s\n", store.get(1));
+         storeID = String.valueOf(store.storeID);
+         System.out.printf("\nYou selected store: %s\n", store.name);
 
          //product entry
 
          //list products at store
-         String getProduct = "SELECT * FROM Product WHERE storeID = \'" + storeID + "\';";
-         List<List<String>> products = esql.executeQueryAndReturnResult(getProduct);
-         List<String> product = new ArrayList<String>();
+         List<Rows.Product> products = esql.getCatalog(Integer.parseInt(storeID));
+         Rows.Product product = null;
          System.out.print("\n\n\t========Available Products========\n\n");
          System.out.print("\n|#|\t|Product|\t\t\t|Price|\t|Quantity|");
          for(int j = 0; j < products.size(); j++){
             product = products.get(j);
-            System.out.printf("\n %d\t%s\t$%.2f\t%d", (j+1), product.get(1), Double.parseDouble(product.get(3)), Integer.parseInt(product.get(2)));
+            System.out.printf("\n %d\t%-30s\t$%.2f\t%d", (j+1), product.productName, product.pricePerUnit, product.numberOfUnits);
          }
          System.out.printf("\nWhich product would you like to resupply? (%d - %d): ", 1, products.size());
          input = in.readLine();
          product = products.get(Integer.parseInt(input) - 1);
-         System.out.printf("\nYou selected: %s  $%.2f, %s\n", product.get(1), Double.parseDouble(product.get(3)), product.get(2));
+         System.out.printf("\nYou selected: %s  $%.2f, %s\n", product.productName, product.pricePerUnit, product.numberOfUnits);
 
          System.out.print("\n\tPlease enter desired # of units: ");
          numUnits = in.readLine();
-         System.out.print("\nEnter warehouse ID to confirm request: ");
-         warehouseID = in.readLine();
 
-         //insert new request
-         String supplyRequest = "INSERT INTO ProductSupplyRequests VALUES(NEXTVAL(\'productsupplyrequests_requestNumber_seq\'),\'" + userID + "\',\'" + warehouseID + "\',\'" + store.get(0) + "\',\'" + product.get(1) + "\',\'" + numUnits + "\');";
-         //System.out.println(supplyRequest);
-         esql.executeUpdate(supplyRequest);
+         //propose the nearest warehouses, best first
+         List<WarehouseRouter.Route> routes = esql.getWarehouseRouter().rank(store.storeID);
+         if (routes.isEmpty()){
+            System.out.print("\nERROR: There are no warehouses to request from. Exiting...\n\n");
+            return;
+         }
+         System.out.print("\n|Warehouse ID|\t|Distance|\t|Area|");
+         for(int k = 0; k < routes.size(); k++){
+            WarehouseRouter.Route route = routes.get(k);
+            System.out.printf("\n%d\t\t%.2f\t\t%d%s", route.warehouse.warehouseID, route.distance, route.warehouse.area, k == 0 ? "\t(recommended)" : "");
+         }
+         System.out.printf("\nEnter warehouse ID to confirm request (Enter for %d): ", routes.get(0).warehouse.warehouseID);
+         warehouseID = in.readLine().trim();
+         int chosenWarehouse = warehouseID.length() == 0 ? routes.get(0).warehouse.warehouseID : Integer.parseInt(warehouseID);
 
-         
-         //update product listing's stock
-         String productStockUpdate = "UPDATE Product SET numberOfUnits = \'";
-         int newStockAmount = Integer.parseInt(product.get(2)) + Integer.parseInt(numUnits);
-         productStockUpdate = productStockUpdate + newStockAmount + "\' WHERE storeID = \'" + product.get(0) + "\' AND productName = \'" + product.get(1) + "\';";
-         esql.executeUpdate(productStockUpdate);
-         
-         //print request and update confirmation notices
+         //insert new request and queue it with the warehouse
+         int requestNumber = esql.requestSupply(session, store.storeID, product.productName, Integer.parseInt(numUnits.trim()), chosenWarehouse);
+
+         //print request confirmation notice
          System.out.print("\n\n\t\t\t========Request Confirmation=======\n");
-         String query1 = "SELECT * FROM ProductSupplyRequests GROUP BY 1 ORDER BY 1 DESC LIMIT 1;";
-         esql.executeQueryAndPrintResult(query1);
-         System.out.print("\n\n\t\t\t=====Stock Update Confirmation=====\n");
-         esql.executeQueryAndPrintResult("SELECT * FROM Product WHERE storeID = \'" + product.get(0) + "\' AND productName = \'" + product.get(1) + "\';");
+         esql.executeQueryAndPrintResult("SELECT * FROM ProductSupplyRequests WHERE requestNumber = ?", requestNumber);
+         System.out.printf("\nRequest %d is queued with warehouse %d; the units are added to the store's stock when it is delivered.\n", requestNumber, chosenWarehouse);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void findProduct(Retail esql) {
+      try{
+         Session session = esql.getSession();
+
+         //search every store within 30 miles at once instead of one catalog per store
+         System.out.print("\nEnter a product name or the start of one: ");
+         String term = in.readLine();
+         List<ProductSearch.Hit> hits = esql.searchProducts(session, term);
+         if (hits.isEmpty()){
+            System.out.printf("\nNo store within %.0f miles has a product matching \"%s\" in stock.\n", STORE_RADIUS, term.trim());
+            return;
+         }
+
+         //nearest store first, then cheapest
+         int shown = Math.min(hits.size(), SEARCH_RESULTS_SHOWN);
+         System.out.print("\n|#|\t|Product|\t\t\t|Store name|\t\t\t|Store ID|\t|Distance|\t|Price|\t|Quantity|");
+         for (int i = 0; i < shown; i++){
+            ProductSearch.Hit hit = hits.get(i);
+            System.out.printf("\n %d\t%-30s\t%-30s\t%d\t\t%.2f\t\t$%.2f\t%d", i+1, hit.product.productName, hit.store.name,
+                              hit.store.storeID, hit.distance, hit.product.pricePerUnit, hit.product.numberOfUnits);
+         }
+         if (shown < hits.size()){
+            System.out.printf("\n... and %d more", hits.size() - shown);
+         }
+         System.out.println();
       }catch(Exception e){
          System.err.println(e.getMessage());
       }
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the batch commands to many clients at once over a local socket.
+ * Each client connection speaks the BatchRunner line protocol: it sends one
+ * script line at a time and reads back one JSON result per command.  Every
+ * connection has its own session and runs on its own thread, and all of
+ * them share one Retail instance, so they share the connection pool, the
+ * store index and the catalog cache.
+ *
+ * Connections run on virtual threads when the JVM has them, and on a cached
+ * thread pool otherwise.
+ *
+ */
+public class RetailServer {
+
+   // how many clients may be connected at once; the rest are turned away
+   static final int MAX_CLIENTS = Integer.getInteger("retail.server.maxClients", 1024);
+   // a client that sends nothing for this long is disconnected
+   static final int IDLE_MILLIS = Integer.getInteger("retail.server.idleMs", 300000);
+
+   private final Retail esql;
+   private final int port;
+   private final ExecutorService workers = newWorkerExecutor();
+   private final Semaphore clients = new Semaphore(MAX_CLIENTS);
+   private volatile ServerSocket socket = null;
+
+   /**
+    * @param esql the shared database and caches
+    * @param port the port to listen on, on the loopback interface only
+    */
+   public RetailServer(Retail esql, int port) {
+      this.esql = esql;
+      this.port = port;
+   }
+
+   /**
+    * Creates an executor that starts one virtual thread per task, falling
+    * back to a cached pool of platform threads on JVMs without them.
+    */
+   static ExecutorService newWorkerExecutor() {
+      try {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      } catch (Exception e) {
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   /**
+    * Accepts clients until stop() is called.
+    *
+    * @throws java.io.IOException when the port could not be opened
+    */
+   public void serve() throws IOException {
+      socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+      System.err.println("Serving on " + socket.getLocalSocketAddress() + " (" + esql.getPool().getMaxSize() + " database connections)");
+      try {
+         while (!socket.isClosed()) {
+            Socket client;
+            try {
+               client = socket.accept();
+            } catch (SocketException e) {
+               break; // closed by stop()
+            }
+            if (!clients.tryAcquire()) {
+               refuse(client);
+               continue;
+            }
+            workers.execute(new Client(client));
+         }//end while
+      } finally {
+         stop();
+      }
+   }
+
+   /**
+    * Stops accepting clients and waits briefly for the connected ones.
+    */
+   public void stop() {
+      try {
+         if (socket != null) {
+            socket.close();
+         }
+      } catch (IOException e) {
+         // ignored.
+      }
+      workers.shutdown();
+      try {
+         workers.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void refuse(Socket client) {
+      try {
+         Writer out = new OutputStreamWriter(client.getOutputStream(), "UTF-8");
+         out.write("{\"ok\":false,\"error\":\"Too many clients\"}\n");
+         out.flush();
+      } catch (IOException e) {
+         // ignored.
+      } finally {
+         close(client);
+      }
+   }
+
+   private static void close(Socket client) {
+      try {
+         client.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * Runs one client's commands with that client's own session.
+    */
+   private class Client implements Runnable {
+      private final Socket client;
+
+      Client(Socket client) {
+         this.client = client;
+      }
+
+      public void run() {
+         try {
+            client.setSoTimeout(IDLE_MILLIS);
+            client.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"));
+            BatchRunner runner = new BatchRunner(esql, out);
+            String line;
+            while ((line = in.readLine()) != null && !line.trim().equalsIgnoreCase("quit")) {
+               runner.runLine(line);
+               out.flush();
+            }//end while
+         } catch (SocketTimeoutException e) {
+            // idle client, drop it
+         } catch (IOException e) {
+            // the client went away
+         } finally {
+            close(client);
+            clients.release();
+         }
+      }
+   }//end Client
+
+}//end RetailServer
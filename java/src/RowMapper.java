@@ -0,0 +1,19 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a ResultSet into a typed object.  Mappers read
+ * columns by position with the typed getters, so a query used with a mapper
+ * must select its columns in the order the mapper expects.
+ *
+ */
+public interface RowMapper<T> {
+
+   /**
+    * @param rs a result set positioned on the row to map
+    * @return the mapped row
+    * @throws java.sql.SQLException when a column could not be read
+    */
+   T map(ResultSet rs) throws SQLException;
+
+}//end RowMapper
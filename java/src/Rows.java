@@ -0,0 +1,161 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Typed row records for the queries the menus run, with the RowMapper that
+ * reads each one.  Numbers are read with getInt/getDouble and times with
+ * getTimestamp, so callers never re-parse column strings.  char(n) values
+ * are trimmed of their padding once, when the row is read.
+ *
+ */
+public final class Rows {
+
+   private Rows() {
+   }
+
+   /**
+    * A Product row: SELECT storeID, productName, numberOfUnits, pricePerUnit.
+    */
+   public static class Product {
+      public final int storeID;
+      public final String productName;
+      public final int numberOfUnits;
+      public final double pricePerUnit;
+
+      public Product(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.numberOfUnits = numberOfUnits;
+         this.pricePerUnit = pricePerUnit;
+      }
+   }//end Product
+
+   public static final String PRODUCT_COLUMNS = "storeID, productName, numberOfUnits, pricePerUnit";
+
+   public static final RowMapper<Product> PRODUCT = new RowMapper<Product>() {
+      public Product map(ResultSet rs) throws SQLException {
+         return new Product(rs.getInt(1), trim(rs.getString(2)), rs.getInt(3), rs.getDouble(4));
+      }
+   };
+
+   /**
+    * A customer's order joined with its store's name:
+    * SELECT O.orderNumber, O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime.
+    */
+   public static class RecentOrder {
+      public final int orderNumber;
+      public final int storeID;
+      public final String storeName;
+      public final String productName;
+      public final int unitsOrdered;
+      public final Timestamp orderTime;
+
+      public RecentOrder(int orderNumber, int storeID, String storeName, String productName, int unitsOrdered, Timestamp orderTime) {
+         this.orderNumber = orderNumber;
+         this.storeID = storeID;
+         this.storeName = storeName;
+         this.productName = productName;
+         this.unitsOrdered = unitsOrdered;
+         this.orderTime = orderTime;
+      }
+   }//end RecentOrder
+
+   public static final RowMapper<RecentOrder> RECENT_ORDER = new RowMapper<RecentOrder>() {
+      public RecentOrder map(ResultSet rs) throws SQLException {
+         return new RecentOrder(rs.getInt(1), rs.getInt(2), trim(rs.getString(3)), trim(rs.getString(4)), rs.getInt(5), rs.getTimestamp(6));
+      }
+   };
+
+   /**
+    * A ProductUpdates row: SELECT updateNumber, managerID, storeID, productName, updatedOn.
+    */
+   public static class ProductUpdate {
+      public final int updateNumber;
+      public final int managerID;
+      public final int storeID;
+      public final String productName;
+      public final Timestamp updatedOn;
+
+      public ProductUpdate(int updateNumber, int managerID, int storeID, String productName, Timestamp updatedOn) {
+         this.updateNumber = updateNumber;
+         this.managerID = managerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.updatedOn = updatedOn;
+      }
+   }//end ProductUpdate
+
+   public static final RowMapper<ProductUpdate> PRODUCT_UPDATE = new RowMapper<ProductUpdate>() {
+      public ProductUpdate map(ResultSet rs) throws SQLException {
+         return new ProductUpdate(rs.getInt(1), rs.getInt(2), rs.getInt(3), trim(rs.getString(4)), rs.getTimestamp(5));
+      }
+   };
+
+   /**
+    * A store's key with its running total, as returned by the popularity
+    * reports: SELECT storeID, key, total.
+    */
+   public static class Total {
+      public final int storeID;
+      public final String key;
+      public final long total;
+
+      public Total(int storeID, String key, long total) {
+         this.storeID = storeID;
+         this.key = key;
+         this.total = total;
+      }
+   }//end Total
+
+   public static final RowMapper<Total> TOTAL = new RowMapper<Total>() {
+      public Total map(ResultSet rs) throws SQLException {
+         return new Total(rs.getInt(1), trim(rs.getString(2)), rs.getLong(3));
+      }
+   };
+
+   /**
+    * Reads the first column as an int.
+    */
+   public static final RowMapper<Integer> INT = new RowMapper<Integer>() {
+      public Integer map(ResultSet rs) throws SQLException {
+         return rs.getInt(1);
+      }
+   };
+
+   /**
+    * Reads the first column as text, without char(n) padding.
+    */
+   public static final RowMapper<String> TEXT = new RowMapper<String>() {
+      public String map(ResultSet rs) throws SQLException {
+         return trim(rs.getString(1));
+      }
+   };
+
+   /**
+    * Strips the blank padding char(n) columns come back with.
+    */
+   public static String trim(String value) {
+      if (value == null) {
+         return null;
+      }
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ') {
+         end--;
+      }
+      return end == value.length() ? value : value.substring(0, end);
+   }
+
+   /**
+    * Formats a timestamp to the second, the precision the schema stores.
+    */
+   public static String format(Timestamp ts) {
+      if (ts == null) {
+         return "";
+      }
+      String text = ts.toString();
+      int dot = text.indexOf('.');
+      return dot < 0 ? text : text.substring(0, dot);
+   }
+
+}//end Rows
@@ -0,0 +1,140 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Everything the menus need to know about the logged-in user, resolved once
+ * at login instead of being looked up by name on every screen.  Holders pass
+ * it through Retail.current before use, which re-reads it once a Users or
+ * Store write or a ProximityJob run may have changed it.
+ *
+ */
+public class Session {
+
+   public final int userID;
+   public final String name;
+   public final double latitude;
+   public final double longitude;
+   public final String type;
+   public final Set<Integer> managedStoreIDs;
+   // the user's stores within Retail.STORE_RADIUS, nearest first, as ProximityJob
+   // precomputed them; null when they are being recomputed
+   final int[] nearbyStoreIDs;
+   final double[] nearbyDistances;
+   // Retail.getSessionVersion() when this was read
+   final long version;
+
+   public Session(int userID, String name, double latitude, double longitude, String type, Set<Integer> managedStoreIDs) {
+      this(userID, name, latitude, longitude, type, managedStoreIDs, null, null, 0);
+   }
+
+   Session(int userID, String name, double latitude, double longitude, String type, Set<Integer> managedStoreIDs,
+           int[] nearbyStoreIDs, double[] nearbyDistances, long version) {
+      this.userID = userID;
+      this.name = name;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.type = type;
+      this.managedStoreIDs = Collections.unmodifiableSet(managedStoreIDs);
+      this.nearbyStoreIDs = nearbyStoreIDs;
+      this.nearbyDistances = nearbyDistances;
+      this.version = version;
+   }
+
+   /**
+    * @return true for admins, who may act on every store
+    */
+   public boolean isAdmin() {
+      return "admin".equalsIgnoreCase(type);
+   }
+
+   /**
+    * @return true for managers and admins, who may use the manager menus
+    */
+   public boolean isManager() {
+      return isAdmin() || "manager".equalsIgnoreCase(type);
+   }
+
+   /**
+    * @return true if this user may manage the given store
+    */
+   public boolean canManage(int storeID) {
+      return isAdmin() || managedStoreIDs.contains(storeID);
+   }
+
+   static final String LOG_IN = "SELECT userID, name, latitude, longitude, type FROM Users WHERE name = ? AND password = ?";
+   static final String BY_ID = "SELECT userID, name, latitude, longitude, type FROM Users WHERE userID = ?";
+   static final String MANAGED_STORES = "SELECT storeID FROM Store WHERE managerID = ?";
+   // the user's rows still waiting on a run: the user moved, or a store
+   // queued since is now within the radius or was within it before
+   static final String PROXIMITY_PENDING =
+      "SELECT (SELECT COUNT(*) FROM StaleUserProximity WHERE userID = ?) +" +
+      " (SELECT COUNT(*) FROM StaleStoreProximity X JOIN Store S ON S.storeID = X.storeID" +
+      "   WHERE (S.latitude - ?) * (S.latitude - ?) + (S.longitude - ?) * (S.longitude - ?) <= ?" +
+      "   OR EXISTS (SELECT 1 FROM UserNearbyStores N WHERE N.userID = ? AND N.storeID = X.storeID))";
+   static final String NEARBY_STORES = "SELECT storeID, distance FROM UserNearbyStores WHERE userID = ? ORDER BY distance, storeID";
+
+   private static final RowMapper<Object[]> NEARBY = new RowMapper<Object[]>() {
+      public Object[] map(ResultSet rs) throws SQLException {
+         return new Object[] { rs.getInt(1), rs.getDouble(2) };
+      }
+   };
+
+   // reads SELECT userID, name, latitude, longitude, type; stores are filled in after
+   private static final RowMapper<Session> USER = new RowMapper<Session>() {
+      public Session map(ResultSet rs) throws SQLException {
+         return new Session(rs.getInt(1), Rows.trim(rs.getString(2)), rs.getDouble(3), rs.getDouble(4),
+                            Rows.trim(rs.getString(5)), new TreeSet<Integer>());
+      }
+   };
+
+   /**
+    * Checks a user's credentials and builds their session.
+    *
+    * @return the session, or null if the name and password do not match a user
+    * @throws java.sql.SQLException when the user could not be read
+    */
+   public static Session logIn(Retail esql, String name, String password) throws SQLException {
+      long version = esql.getSessionVersion();
+      return withStores(esql, version, esql.executeQueryAndMap(LOG_IN, USER, name, password));
+   }
+
+   /**
+    * Re-reads a user's session, for example after their Users row or the
+    * stores they manage changed.
+    *
+    * @return the session, or null if the user no longer exists
+    * @throws java.sql.SQLException when the user could not be read
+    */
+   public static Session reload(Retail esql, int userID) throws SQLException {
+      long version = esql.getSessionVersion();
+      return withStores(esql, version, esql.executeQueryAndMap(BY_ID, USER, userID));
+   }
+
+   // version is read before the user's row, so a write that lands during the
+   // reads still counts as newer than the session
+   private static Session withStores(Retail esql, long version, List<Session> users) throws SQLException {
+      if (users.isEmpty()) {
+         return null;
+      }
+      Session user = users.get(0);
+      Set<Integer> managed = new TreeSet<Integer>(esql.executeQueryAndMap(MANAGED_STORES, Rows.INT, user.userID));
+      int[] storeIDs = null;
+      double[] distances = null;
+      if (esql.executeQueryAndMap(PROXIMITY_PENDING, Rows.INT, user.userID, user.latitude, user.latitude,
+            user.longitude, user.longitude, Retail.STORE_RADIUS * Retail.STORE_RADIUS, user.userID).get(0) == 0) {
+         List<Object[]> nearby = esql.executeQueryAndMap(NEARBY_STORES, NEARBY, user.userID);
+         storeIDs = new int[nearby.size()];
+         distances = new double[nearby.size()];
+         for (int i = 0; i < storeIDs.length; i++) {
+            storeIDs[i] = (Integer) nearby.get(i)[0];
+            distances[i] = (Double) nearby.get(i)[1];
+         }
+      }
+      return new Session(user.userID, user.name, user.latitude, user.longitude, user.type, managed, storeIDs, distances, version);
+   }
+
+}//end Session
@@ -0,0 +1,31 @@
+import java.util.List;
+
+/**
+ * Stands in for the warehouses' own systems: a batch is "delivered" after a
+ * fixed lead time plus a little per request, and never lost.  It lets the
+ * supply pipeline run end to end, with deliveries arriving some time after
+ * the requests, without anything outside the database.
+ *
+ */
+public class SimulatedWarehouse implements SupplyPipeline.Warehouse {
+
+   private final long leadMillis;
+   private final long perRequestMillis;
+
+   /**
+    * @param leadMillis how long every batch takes to arrive
+    * @param perRequestMillis how much longer each request in it adds
+    */
+   public SimulatedWarehouse(long leadMillis, long perRequestMillis) {
+      this.leadMillis = Math.max(0, leadMillis);
+      this.perRequestMillis = Math.max(0, perRequestMillis);
+   }
+
+   public void ship(int warehouseID, List<SupplyPipeline.Request> batch) throws InterruptedException {
+      long millis = leadMillis + perRequestMillis * batch.size();
+      if (millis > 0) {
+         Thread.sleep(millis);
+      }
+   }
+
+}//end SimulatedWarehouse
@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory uniform grid over Store coordinates.  Stores are bucketed into
+ * square cells of a fixed size so that a radius query only has to look at
+ * the cells overlapping the search circle instead of every store.
+ *
+ */
+public class StoreIndex {
+
+   /**
+    * One indexed store, holding only the columns the store screens need.
+    */
+   public static class Entry {
+      public final int storeID;
+      public final String name;
+      public final double latitude;
+      public final double longitude;
+      public final int managerID;
+
+      public Entry(int storeID, String name, double latitude, double longitude, int managerID) {
+         this.storeID = storeID;
+         this.name = name;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.managerID = managerID;
+      }
+   }//end Entry
+
+   /**
+    * A store returned by a radius query together with its distance from the
+    * query point.
+    */
+   public static class Hit {
+      public final Entry store;
+      public final double distance;
+
+      public Hit(Entry store, double distance) {
+         this.store = store;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   // orders hits nearest first, ties broken by store ID so listings are stable
+   private static final Comparator<Hit> BY_DISTANCE = new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : (a.store.storeID - b.store.storeID);
+      }
+   };
+
+   private final double cellSize;
+   private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+   private final Map<Integer, Entry> byID = new HashMap<Integer, Entry>();
+
+   /**
+    * Creates an empty index.
+    *
+    * @param cellSize side length of a grid cell, in the same units as the
+    *        coordinates. Picking the usual query radius keeps queries to a
+    *        3x3 block of cells.
+    */
+   public StoreIndex(double cellSize) {
+      if (cellSize <= 0.0) {
+         throw new IllegalArgumentException("cellSize must be positive: " + cellSize);
+      }
+      this.cellSize = cellSize;
+   }
+
+   private long cellOf(double lat, double lon) {
+      return key((int) Math.floor(lat / cellSize), (int) Math.floor(lon / cellSize));
+   }
+
+   private static long key(int cx, int cy) {
+      return (((long) cx) << 32) | (cy & 0xffffffffL);
+   }
+
+   /**
+    * Adds a store, replacing any previous entry with the same store ID (for
+    * example after the store's location was updated).
+    */
+   public synchronized void put(Entry store) {
+      remove(store.storeID);
+      Long cell = cellOf(store.latitude, store.longitude);
+      List<Entry> bucket = cells.get(cell);
+      if (bucket == null) {
+         bucket = new ArrayList<Entry>(4);
+         cells.put(cell, bucket);
+      }
+      bucket.add(store);
+      byID.put(store.storeID, store);
+   }
+
+   /**
+    * Removes a store from the index.
+    *
+    * @return true if the store was indexed
+    */
+   public synchronized boolean remove(int storeID) {
+      Entry old = byID.remove(storeID);
+      if (old == null) {
+         return false;
+      }
+      Long cell = cellOf(old.latitude, old.longitude);
+      List<Entry> bucket = cells.get(cell);
+      bucket.remove(old);
+      if (bucket.isEmpty()) {
+         cells.remove(cell);
+      }
+      return true;
+   }
+
+   public synchronized Entry get(int storeID) {
+      return byID.get(storeID);
+   }
+
+   public synchronized int size() {
+      return byID.size();
+   }
+
+   /**
+    * Returns every indexed store ordered by store ID.
+    */
+   public synchronized List<Entry> all() {
+      List<Entry> result = new ArrayList<Entry>(byID.values());
+      Collections.sort(result, new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            return a.storeID - b.storeID;
+         }
+      });
+      return result;
+   }
+
+   /**
+    * Finds all stores within the given euclidean distance of a point, using
+    * the same distance model as Retail.calculateDistance.
+    *
+    * @return matching stores ordered nearest first
+    */
+   public synchronized List<Hit> within(double lat, double lon, double radius) {
+      List<Hit> hits = new ArrayList<Hit>();
+      int minX = (int) Math.floor((lat - radius) / cellSize);
+      int maxX = (int) Math.floor((lat + radius) / cellSize);
+      int minY = (int) Math.floor((lon - radius) / cellSize);
+      int maxY = (int) Math.floor((lon + radius) / cellSize);
+      double r2 = radius * radius;
+      for (int cx = minX; cx <= maxX; cx++) {
+         for (int cy = minY; cy <= maxY; cy++) {
+            List<Entry> bucket = cells.get(key(cx, cy));
+            if (bucket == null) {
+               continue;
+            }
+            for (int i = 0; i < bucket.size(); i++) {
+               Entry s = bucket.get(i);
+               double dLat = s.latitude - lat;
+               double dLon = s.longitude - lon;
+               double d2 = dLat * dLat + dLon * dLon;
+               if (d2 <= r2) {
+                  hits.add(new Hit(s, Math.sqrt(d2)));
+               }
+            }
+         }
+      }
+      Collections.sort(hits, BY_DISTANCE);
+      return hits;
+   }
+
+}//end StoreIndex
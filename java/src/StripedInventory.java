@@ -0,0 +1,441 @@
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stock of hot products, held in memory so that buyers of the same product
+ * do not queue on its Product row.  A hot product's units are reserved from
+ * Product a chunk at a time and spread over one counter per stripe; an
+ * order takes its units from any stripe that has enough, with a
+ * compare-and-set, and only the Orders insert goes to the database.  When
+ * no stripe has enough, one thread gathers the stripes and reserves another
+ * chunk, and the order fails only if the store is out.
+ *
+ * The reserved units are still the store's stock: a listing read through
+ * visible() counts them, and every flushMillis each hot product's balance is
+ * written to its HotStock row, where other processes count it, together
+ * with the product's orders for ProductPopularity, which is as hot as the
+ * Product row and so is also counted here.  The stripes keep their units
+ * across flushes; they go back to Product only when the product is made
+ * cold, when the process closes, or when another process recalls them by
+ * setting HotStock.recalled, which the next flush honours.  A process
+ * killed without cleanup leaves its units in HotStock.
+ *
+ */
+public class StripedInventory {
+
+   /**
+    * The in-memory stock of one hot product.
+    */
+   static class Ledger {
+      final int storeID;
+      final String productName;
+      final AtomicInteger[] stripes;
+      // orders placed since the last flush, for ProductPopularity
+      final AtomicInteger orders = new AtomicInteger();
+      // held while reserving from or returning to Product
+      final Object refill = new Object();
+      // false once made cold; its ledger is kept for orders still in flight
+      volatile boolean active = true;
+
+      Ledger(int storeID, String productName, int stripes) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.stripes = new AtomicInteger[stripes];
+         for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new AtomicInteger();
+         }
+      }
+
+      int reserved() {
+         int sum = 0;
+         for (int i = 0; i < stripes.length; i++) {
+            sum += stripes[i].get();
+         }
+         return sum;
+      }
+
+      // takes the units from the first stripe, starting at a random one, that has enough
+      boolean tryTake(int units) {
+         int start = ThreadLocalRandom.current().nextInt(stripes.length);
+         for (int i = 0; i < stripes.length; i++) {
+            AtomicInteger stripe = stripes[(start + i) % stripes.length];
+            int left = stripe.get();
+            while (left >= units) {
+               if (stripe.compareAndSet(left, left - units)) {
+                  return true;
+               }
+               left = stripe.get();
+            }
+         }
+         return false;
+      }
+
+      // empties every stripe, returning what they held
+      int drain() {
+         int sum = 0;
+         for (int i = 0; i < stripes.length; i++) {
+            sum += stripes[i].getAndSet(0);
+         }
+         return sum;
+      }
+
+      // spreads units evenly over the stripes
+      void spread(int units) {
+         int each = units / stripes.length;
+         int extra = units % stripes.length;
+         for (int i = 0; i < stripes.length; i++) {
+            stripes[i].addAndGet(each + (i < extra ? 1 : 0));
+         }
+      }
+   }//end Ledger
+
+   // this process, as HotStock.holder
+   static final String HOLDER = holder();
+
+   // takes up to the requested units from Product, records the new balance
+   // in HotStock and returns how many it took
+   static final String RESERVE =
+      "WITH old AS (SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ? FOR NO KEY UPDATE)," +
+      " taken AS (UPDATE Product P SET numberOfUnits = P.numberOfUnits - LEAST(old.numberOfUnits, ?) FROM old" +
+      " WHERE P.storeID = ? AND P.productName = ? RETURNING LEAST(old.numberOfUnits, ?) AS units)," +
+      " held AS (INSERT INTO HotStock (storeID, productName, holder, units) SELECT ?, ?, ?, ? + units FROM taken" +
+      " ON CONFLICT (storeID, productName, holder) DO UPDATE SET units = EXCLUDED.units)" +
+      " SELECT units FROM taken";
+
+   // records the balance and tells whether it was recalled
+   static final String KEEP =
+      "UPDATE HotStock SET units = ? WHERE storeID = ? AND productName = ? AND holder = ? RETURNING recalled";
+
+   // hands the balance back to Product
+   static final String RELEASE =
+      "WITH released AS (DELETE FROM HotStock WHERE storeID = ? AND productName = ? AND holder = ?)" +
+      " UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?";
+
+   // sets the stock, dropping the balance it replaces
+   static final String SET_STOCK =
+      "WITH dropped AS (UPDATE HotStock SET units = 0 WHERE storeID = ? AND productName = ? AND holder = ?) " +
+      Retail.PRODUCT_UPDATE;
+
+   static final String ADD_ORDERS =
+      "INSERT INTO ProductPopularity (storeID, productName, totalOrders) VALUES (?, ?, ?)" +
+      " ON CONFLICT (storeID, productName) DO UPDATE SET totalOrders = ProductPopularity.totalOrders + EXCLUDED.totalOrders";
+
+   private static final RowMapper<Integer> UNITS = new RowMapper<Integer>() {
+      public Integer map(ResultSet rs) throws SQLException {
+         return rs.getInt(1);
+      }
+   };
+
+   private static final RowMapper<Boolean> RECALLED = new RowMapper<Boolean>() {
+      public Boolean map(ResultSet rs) throws SQLException {
+         return rs.getBoolean(1);
+      }
+   };
+
+   private final Retail esql;
+   private final int stripes;
+   private final int chunk;
+   private final ConcurrentMap<String, Ledger> hot = new ConcurrentHashMap<String, Ledger>();
+   private ScheduledExecutorService flusher = null;
+   // the interval schedule() asked for; 0 until then
+   private long flushMillis = 0;
+   private boolean closed = false;
+
+   /**
+    * @param esql the database the stock is reserved from
+    * @param stripes counters per hot product
+    * @param chunk how many units a refill reserves at least
+    */
+   public StripedInventory(Retail esql, int stripes, int chunk) {
+      this.esql = esql;
+      this.stripes = Math.max(1, stripes);
+      this.chunk = Math.max(1, chunk);
+   }
+
+   private static String key(int storeID, String productName) {
+      return storeID + "\u0000" + Rows.trim(productName);
+   }
+
+   private static String holder() {
+      String name = ManagementFactory.getRuntimeMXBean().getName();
+      return name.length() > 64 ? name.substring(0, 64) : name;
+   }
+
+   /**
+    * Makes a product hot: its orders take stock from the stripes from now on.
+    */
+   public void makeHot(int storeID, String productName) {
+      Ledger ledger = hot.putIfAbsent(key(storeID, productName), new Ledger(storeID, Rows.trim(productName), stripes));
+      if (ledger != null) {
+         ledger.active = true;
+      }
+      startFlusher();
+   }
+
+   /**
+    * Makes products hot from a list such as "2:Pepsi,7:Diet Coke".
+    */
+   public void makeHot(String list) {
+      String[] entries = list.split(",");
+      for (int i = 0; i < entries.length; i++) {
+         int colon = entries[i].indexOf(':');
+         if (colon > 0) {
+            makeHot(Integer.parseInt(entries[i].substring(0, colon).trim()), entries[i].substring(colon + 1));
+         }
+      }
+   }
+
+   /**
+    * Returns a product to ordinary row-locked stock, handing back what its
+    * stripes hold.
+    *
+    * @throws java.sql.SQLException when the units could not be handed back;
+    *         the next flush tries again
+    */
+   public void makeCold(int storeID, String productName) throws SQLException {
+      Ledger ledger = hot.get(key(storeID, productName));
+      if (ledger != null) {
+         ledger.active = false;
+         // orders already past isHot finish on the stripes; later flushes hand back what they leave
+         flush(ledger, true);
+      }
+   }
+
+   /**
+    * @return whether the product's orders go through the stripes; only
+    *         then may take, giveBack and ordered be called for it
+    */
+   public boolean isHot(int storeID, String productName) {
+      if (hot.isEmpty()) {
+         return false;
+      }
+      Ledger ledger = hot.get(key(storeID, productName));
+      return ledger != null && ledger.active;
+   }
+
+   /**
+    * Takes units of a hot product, reserving more from Product if the
+    * stripes run short.
+    *
+    * @return false if the store does not have that many units left
+    * @throws java.sql.SQLException when more could not be reserved
+    */
+   public boolean take(int storeID, String productName, int units) throws SQLException {
+      Ledger ledger = hot.get(key(storeID, productName));
+      if (ledger.tryTake(units)) {
+         return true;
+      }
+      synchronized (ledger.refill) {
+         // another thread may have refilled while this one waited
+         if (ledger.tryTake(units)) {
+            return true;
+         }
+         int have = ledger.drain();
+         int want = Math.max(chunk, units - have);
+         int reserved;
+         try {
+            List<Integer> taken = esql.executeQueryAndMap(RESERVE, UNITS,
+               ledger.storeID, ledger.productName, want, ledger.storeID, ledger.productName, want,
+               ledger.storeID, ledger.productName, HOLDER, have);
+            reserved = taken.isEmpty() ? 0 : taken.get(0);
+         } catch (SQLException e) {
+            ledger.spread(have);
+            throw e;
+         }
+         have += reserved;
+         if (have < units) {
+            ledger.spread(have);
+            return false;
+         }
+         ledger.spread(have - units);
+         return true;
+      }
+   }
+
+   /**
+    * Sets a product's stock and price, as Retail.PRODUCT_UPDATE does.  The
+    * units its stripes hold were part of the stock being replaced, so they
+    * are dropped, and no refill can reserve from the old value meanwhile.
+    *
+    * @throws java.sql.SQLException when the update could not be written
+    */
+   public void setStock(int storeID, String productName, int units, double price) throws SQLException {
+      Ledger ledger = hot.isEmpty() ? null : hot.get(key(storeID, productName));
+      if (ledger == null) {
+         esql.executeUpdate(Retail.PRODUCT_UPDATE, units, price, storeID, productName);
+         return;
+      }
+      synchronized (ledger.refill) {
+         int dropped = ledger.drain();
+         try {
+            esql.executeUpdate(SET_STOCK, storeID, productName, HOLDER, units, price, storeID, productName);
+         } catch (SQLException e) {
+            ledger.spread(dropped);
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * Puts back units taken for an order that was not placed.
+    */
+   public void giveBack(int storeID, String productName, int units) {
+      hot.get(key(storeID, productName)).spread(units);
+   }
+
+   /**
+    * Counts an order of a hot product towards ProductPopularity at the next
+    * flush.
+    */
+   public void ordered(int storeID, String productName) {
+      hot.get(key(storeID, productName)).orders.incrementAndGet();
+   }
+
+   /**
+    * @return the product as the store has it: Product plus what the stripes hold
+    */
+   public Rows.Product visible(Rows.Product product) {
+      Ledger ledger = hot.isEmpty() ? null : hot.get(key(product.storeID, product.productName));
+      if (ledger == null) {
+         return product;
+      }
+      return new Rows.Product(product.storeID, product.productName, product.numberOfUnits + ledger.reserved(), product.pricePerUnit);
+   }
+
+   /**
+    * @return the listing with every hot product as the store has it
+    */
+   public List<Rows.Product> visible(List<Rows.Product> products) {
+      if (hot.isEmpty()) {
+         return products;
+      }
+      List<Rows.Product> result = new ArrayList<Rows.Product>(products.size());
+      for (int i = 0; i < products.size(); i++) {
+         result.add(visible(products.get(i)));
+      }
+      return result;
+   }
+
+   /**
+    * Records every hot product's balance in HotStock, hands back the units
+    * of cold and recalled products, and adds the orders counted since the
+    * last flush to ProductPopularity.  A hot product that fails keeps its
+    * units and orders for the next flush.
+    *
+    * @return how many hot products could not be flushed
+    */
+   public int flush() {
+      return flush(false);
+   }
+
+   // release: hand back the units of active products too
+   private int flush(boolean release) {
+      int failed = 0;
+      for (Ledger ledger : hot.values()) {
+         try {
+            flush(ledger, release);
+         } catch (SQLException e) {
+            System.err.println("Unable to flush the stock of " + ledger.productName + " at store " + ledger.storeID + ": " + e.getMessage());
+            failed++;
+         }
+      }
+      return failed;
+   }
+
+   private void flush(Ledger ledger, boolean release) throws SQLException {
+      synchronized (ledger.refill) {
+         if (ledger.active && !release) {
+            List<Boolean> recalled = esql.executeQueryAndMap(KEEP, RECALLED,
+               ledger.reserved(), ledger.storeID, ledger.productName, HOLDER);
+            // the product stays hot; its next order reserves afresh
+            release = !recalled.isEmpty() && recalled.get(0);
+         }
+         int units = release || !ledger.active ? ledger.drain() : 0;
+         if (units > 0 || release) {
+            try {
+               esql.executeUpdate(RELEASE, ledger.storeID, ledger.productName, HOLDER,
+                  units, ledger.storeID, ledger.productName);
+            } catch (SQLException e) {
+               ledger.spread(units);
+               throw e;
+            }
+            esql.getCatalogCache().invalidate(ledger.storeID);
+         }
+      }
+      int orders = ledger.orders.getAndSet(0);
+      if (orders > 0) {
+         try {
+            esql.executeUpdate(ADD_ORDERS, ledger.storeID, ledger.productName, orders);
+         } catch (SQLException e) {
+            ledger.orders.addAndGet(orders);
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * Flushes every flushMillis on a daemon thread, and once more when the
+    * process exits.  The thread and the exit hook start with the first hot
+    * product, so a process that never makes one hot has neither.
+    */
+   public synchronized void schedule(long flushMillis) {
+      this.flushMillis = flushMillis;
+      if (!hot.isEmpty()) {
+         startFlusher();
+      }
+   }
+
+   private synchronized void startFlusher() {
+      if (flusher != null || closed || flushMillis <= 0) {
+         return;
+      }
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "retail-stripes");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      flusher.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            Retail.METRICS.setOperation("flushStripes");
+            flush();
+         }
+      }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+      // a process stopped with ^C still hands its reserved units back
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            close();
+         }
+      });
+   }
+
+   /**
+    * Stops the flusher and flushes one last time, handing every stripe's
+    * units back to Product.  Call it before the connection pool is closed.
+    */
+   public void close() {
+      synchronized (this) {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         if (flusher != null) {
+            flusher.shutdownNow();
+         }
+      }
+      flush(true);
+   }
+
+}//end StripedInventory
@@ -0,0 +1,392 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries supply requests from the manager who makes them to the store's
+ * stock.  A request is written to ProductSupplyRequests at once, with no
+ * deliveredOn, and queued with its warehouse.  A warehouse's queue is
+ * shipped as one batch when it reaches batchSize requests or every batchMillis,
+ * whichever comes first; once the warehouse reports the batch delivered, one
+ * transaction marks its requests delivered and adds their units to Product,
+ * with one statement for the whole batch.
+ *
+ * ProductSupplyRequests is the record of what is still owed: a request is
+ * only marked delivered in the transaction that adds its units, and only if
+ * it was not marked already, so no request is applied twice even when two
+ * processes deliver it.  Requests still queued or in transit when the
+ * pipeline closes are picked up again from the table by the next process
+ * that calls start(), the fulfilment process (--serve).  Any other process
+ * only delivers the requests it submits itself, starting its threads on
+ * the first one, so one that submits nothing never delivers or waits.
+ *
+ */
+public class SupplyPipeline {
+
+   /**
+    * Where a batch goes to be filled.  ship returns once the batch has
+    * arrived at the stores, and throws if it will not.
+    */
+   public interface Warehouse {
+      void ship(int warehouseID, List<Request> batch) throws Exception;
+   }
+
+   /**
+    * One ProductSupplyRequests row that is not delivered yet.
+    */
+   public static class Request {
+      public final int requestNumber;
+      public final int warehouseID;
+      public final int storeID;
+      public final String productName;
+      public final int units;
+
+      public Request(int requestNumber, int warehouseID, int storeID, String productName, int units) {
+         this.requestNumber = requestNumber;
+         this.warehouseID = warehouseID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+      }
+   }//end Request
+
+   static final String UNDELIVERED =
+      "SELECT requestNumber, warehouseID, storeID, productName, unitsRequested FROM ProductSupplyRequests" +
+      " WHERE deliveredOn IS NULL ORDER BY requestNumber";
+
+   static final RowMapper<Request> REQUEST = new RowMapper<Request>() {
+      public Request map(ResultSet rs) throws SQLException {
+         return new Request(rs.getInt(1), rs.getInt(2), rs.getInt(3), Rows.trim(rs.getString(4)), rs.getInt(5));
+      }
+   };
+
+   // how long a batch that failed to ship or to apply waits before it is retried
+   static final long RETRY_MILLIS = 1000;
+
+   private final Retail esql;
+   private final Warehouse warehouse;
+   private final int batchSize;
+   private final long batchMillis;
+   private final int workers;
+   private final long closeMillis;
+   // per warehouse, the requests waiting for the next batch; guarded by queues
+   private final Map<Integer, List<Request>> queues = new HashMap<Integer, List<Request>>();
+   private final Object delivered = new Object();
+   // requests submitted but not yet delivered or given up at close
+   private int pending = 0;
+   private volatile boolean closing = false;
+   private ScheduledExecutorService dispatcher = null;
+   private ExecutorService shippers = null;
+   // whether start() has queued the requests earlier runs left undelivered
+   private boolean resumed = false;
+
+   /**
+    * @param esql the database the requests are applied to
+    * @param warehouse where batches are shipped
+    * @param batchSize how many requests make a full batch
+    * @param batchMillis how long a request waits for its batch to fill
+    * @param workers how many batches may be in transit at once
+    * @param closeMillis how long close waits for the queued requests
+    */
+   public SupplyPipeline(Retail esql, Warehouse warehouse, int batchSize, long batchMillis, int workers, long closeMillis) {
+      this.esql = esql;
+      this.warehouse = warehouse;
+      this.batchSize = Math.max(1, batchSize);
+      this.batchMillis = Math.max(1, batchMillis);
+      this.workers = Math.max(1, workers);
+      this.closeMillis = closeMillis;
+   }
+
+   /**
+    * Starts the dispatcher and queues every request an earlier run left
+    * undelivered.  Only the fulfilment process calls it.  Later calls do
+    * nothing.
+    */
+   public synchronized void start() {
+      if (resumed) {
+         return;
+      }
+      resumed = true;
+      startDispatcher();
+      try {
+         List<Request> left = esql.executeQueryAndMap(UNDELIVERED, REQUEST);
+         for (int i = 0; i < left.size(); i++) {
+            submit(left.get(i));
+         }
+         if (!left.isEmpty()) {
+            System.err.println("Queued " + left.size() + " undelivered supply requests");
+         }
+      } catch (SQLException e) {
+         System.err.println("Warning - Unable to read the undelivered supply requests: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Queues a request that has been written to ProductSupplyRequests,
+    * starting the dispatcher if this is the first.  Once the pipeline is
+    * closing the request is left for the next start.
+    */
+   public void submit(Request request) {
+      startDispatcher();
+      List<Request> full = null;
+      // counted before it is queued, so a flush never sees its delivery first
+      synchronized (delivered) {
+         pending++;
+      }
+      synchronized (queues) {
+         if (closing) {
+            done(1);
+            return;
+         }
+         List<Request> queue = queues.get(request.warehouseID);
+         if (queue == null) {
+            queue = new ArrayList<Request>();
+            queues.put(request.warehouseID, queue);
+         }
+         queue.add(request);
+         if (queue.size() >= batchSize) {
+            full = queue;
+            queues.remove(request.warehouseID);
+         }
+      }
+      if (full != null) {
+         ship(request.warehouseID, full);
+      }
+   }
+
+   /**
+    * Waits until every request submitted so far has been delivered, so a
+    * reader of Product sees their units.
+    *
+    * @return false if that did not happen within timeoutMillis
+    */
+   public boolean flush(long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      dispatchAll();
+      synchronized (delivered) {
+         while (pending > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+               return false;
+            }
+            delivered.wait(left);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * @return how many submitted requests are not delivered yet
+    */
+   public int pending() {
+      synchronized (delivered) {
+         return pending;
+      }
+   }
+
+   /**
+    * Ships what is queued, waits up to closeMillis for the batches in
+    * transit, and stops.  Whatever is not delivered by then stays
+    * undelivered in ProductSupplyRequests.  Call it before the connection
+    * pool is closed.
+    */
+   public void close() {
+      ScheduledExecutorService scheduler;
+      synchronized (this) {
+         scheduler = dispatcher;
+      }
+      if (scheduler == null || closing) {
+         return;
+      }
+      try {
+         flush(closeMillis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      int dropped = 0;
+      synchronized (queues) {
+         closing = true;
+         for (List<Request> queue : queues.values()) {
+            dropped += queue.size();
+         }
+         queues.clear();
+      }
+      done(dropped);
+      scheduler.shutdownNow();
+      shippers.shutdownNow();
+   }
+
+   // starts the shippers and the dispatcher unless they are running
+   private synchronized void startDispatcher() {
+      if (dispatcher != null) {
+         return;
+      }
+      shippers = Executors.newFixedThreadPool(workers, daemon("retail-supply"));
+      dispatcher = Executors.newSingleThreadScheduledExecutor(daemon("retail-supply-dispatch"));
+      dispatcher.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            dispatchAll();
+         }
+      }, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+   }
+
+   // hands every warehouse's queue to a shipper, full or not
+   private void dispatchAll() {
+      Map<Integer, List<Request>> batches;
+      synchronized (queues) {
+         batches = new LinkedHashMap<Integer, List<Request>>(queues);
+         queues.clear();
+      }
+      for (Map.Entry<Integer, List<Request>> batch : batches.entrySet()) {
+         ship(batch.getKey(), batch.getValue());
+      }
+   }
+
+   private void ship(final int warehouseID, final List<Request> batch) {
+      try {
+         shippers.execute(new Runnable() {
+            public void run() {
+               deliver(warehouseID, batch);
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         // closed; the requests are still undelivered in the table
+         done(batch.size());
+      }
+   }
+
+   // ships one batch and applies it, retrying until it is applied or the pipeline closes
+   private void deliver(int warehouseID, List<Request> batch) {
+      Retail.METRICS.setOperation("supplyDelivery");
+      boolean shipped = false;
+      while (true) {
+         try {
+            if (!shipped) {
+               warehouse.ship(warehouseID, batch);
+               shipped = true;
+            }
+            apply(batch);
+            break;
+         } catch (InterruptedException e) {
+            break;
+         } catch (Exception e) {
+            if (closing) {
+               break;
+            }
+            System.err.println("Unable to deliver " + batch.size() + " supply requests from warehouse " + warehouseID
+                               + ", retrying: " + e.getMessage());
+            try {
+               Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException stop) {
+               break;
+            }
+         }
+      }//end while
+      done(batch.size());
+   }
+
+   /**
+    * Marks the batch's requests delivered and adds their units to Product,
+    * in one transaction.  Requests another process has already delivered
+    * are skipped.
+    */
+   void apply(List<Request> batch) throws SQLException {
+      Object[] numbers = new Object[batch.size()];
+      for (int i = 0; i < batch.size(); i++) {
+         numbers[i] = batch.get(i).requestNumber;
+      }
+      ConnectionPool pool = esql.getPool();
+      List<Rows.Product> changed;
+      pool.begin();
+      try {
+         List<Integer> marked = esql.executeQueryAndMap(markSql(batch.size()), Rows.INT, numbers);
+         Map<Integer, Boolean> ours = new HashMap<Integer, Boolean>(marked.size() * 2);
+         for (int i = 0; i < marked.size(); i++) {
+            ours.put(marked.get(i), Boolean.TRUE);
+         }
+         // the units of each product summed, so a product is updated once per batch
+         Map<String, Request> sums = new LinkedHashMap<String, Request>();
+         for (int i = 0; i < batch.size(); i++) {
+            Request r = batch.get(i);
+            if (!ours.containsKey(r.requestNumber)) {
+               continue;
+            }
+            String key = r.storeID + "\u0000" + r.productName;
+            Request sum = sums.get(key);
+            sums.put(key, new Request(0, 0, r.storeID, r.productName, r.units + (sum == null ? 0 : sum.units)));
+         }
+         changed = new ArrayList<Rows.Product>();
+         if (!sums.isEmpty()) {
+            Object[] params = new Object[sums.size() * 3];
+            int p = 0;
+            for (Request sum : sums.values()) {
+               params[p++] = sum.units;
+               params[p++] = sum.storeID;
+               params[p++] = sum.productName;
+            }
+            changed = esql.executeQueryAndMap(incrementSql(sums.size()), Rows.PRODUCT, params);
+         }
+         pool.commit();
+      } catch (SQLException e) {
+         pool.rollback();
+         throw e;
+      } catch (RuntimeException e) {
+         pool.rollback();
+         throw e;
+      }
+      for (int i = 0; i < changed.size(); i++) {
+         esql.getCatalogCache().invalidate(changed.get(i).storeID);
+      }
+   }
+
+   static String markSql(int requests) {
+      StringBuilder sql = new StringBuilder(140 + requests * 3);
+      sql.append("UPDATE ProductSupplyRequests SET deliveredOn = LOCALTIMESTAMP(0)")
+         .append(" WHERE deliveredOn IS NULL AND requestNumber IN (");
+      for (int i = 0; i < requests; i++) {
+         sql.append(i == 0 ? "?" : ", ?");
+      }
+      return sql.append(") RETURNING requestNumber").toString();
+   }
+
+   static String incrementSql(int products) {
+      StringBuilder sql = new StringBuilder(260 + products * 12);
+      sql.append("UPDATE Product P SET numberOfUnits = P.numberOfUnits + D.units FROM (VALUES ");
+      for (int i = 0; i < products; i++) {
+         sql.append(i == 0 ? "(CAST(? AS integer), CAST(? AS integer), CAST(? AS char(30)))" : ", (?, ?, ?)");
+      }
+      sql.append(") AS D(units, storeID, productName) WHERE P.storeID = D.storeID AND P.productName = D.productName")
+         .append(" RETURNING P.storeID, P.productName, P.numberOfUnits, P.pricePerUnit");
+      return sql.toString();
+   }
+
+   private void done(int requests) {
+      synchronized (delivered) {
+         pending -= requests;
+         delivered.notifyAll();
+      }
+   }
+
+   private static ThreadFactory daemon(final String name) {
+      final AtomicInteger count = new AtomicInteger();
+      return new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      };
+   }
+
+}//end SupplyPipeline
@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks the warehouses a store can be resupplied from.  The ranking of
+ * every store is worked out once, when the router is built, and kept as a
+ * table of each store's best warehouses, so a lookup is a map read.
+ *
+ * Warehouses are ranked by Retail.calculateDistance from the store, the
+ * same model the store screens use.  With a non-zero capacity weight a
+ * larger warehouse (by area) counts as nearer: its distance is divided by
+ * 1 + weight * area / largest area.
+ *
+ */
+public class WarehouseRouter {
+
+   /**
+    * One warehouse row.
+    */
+   public static class Warehouse {
+      public final int warehouseID;
+      public final int area;
+      public final double latitude;
+      public final double longitude;
+
+      public Warehouse(int warehouseID, int area, double latitude, double longitude) {
+         this.warehouseID = warehouseID;
+         this.area = area;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+   }//end Warehouse
+
+   /**
+    * A warehouse ranked for one store.
+    */
+   public static class Route {
+      public final Warehouse warehouse;
+      public final double distance;
+      final double score;
+
+      Route(Warehouse warehouse, double distance, double score) {
+         this.warehouse = warehouse;
+         this.distance = distance;
+         this.score = score;
+      }
+   }//end Route
+
+   // best score first, ties broken by warehouse ID so the ranking is stable
+   private static final Comparator<Route> BY_SCORE = new Comparator<Route>() {
+      public int compare(Route a, Route b) {
+         int c = Double.compare(a.score, b.score);
+         return c != 0 ? c : (a.warehouse.warehouseID - b.warehouse.warehouseID);
+      }
+   };
+
+   private final Map<Integer, Warehouse> warehouses = new HashMap<Integer, Warehouse>();
+   private final Map<Integer, Route[]> routes = new HashMap<Integer, Route[]>();
+
+   /**
+    * @param stores the stores to rank warehouses for
+    * @param warehouses every warehouse
+    * @param keep how many warehouses to keep per store
+    * @param capacityWeight how much a warehouse's area counts; 0 ranks by
+    *        distance alone
+    */
+   public WarehouseRouter(List<StoreIndex.Entry> stores, List<Warehouse> warehouses, int keep, double capacityWeight) {
+      int largest = 1;
+      for (int i = 0; i < warehouses.size(); i++) {
+         Warehouse w = warehouses.get(i);
+         this.warehouses.put(w.warehouseID, w);
+         largest = Math.max(largest, w.area);
+      }
+      keep = Math.min(Math.max(1, keep), warehouses.size());
+      Route[] ranked = new Route[warehouses.size()];
+      for (int s = 0; s < stores.size(); s++) {
+         StoreIndex.Entry store = stores.get(s);
+         for (int i = 0; i < ranked.length; i++) {
+            Warehouse w = warehouses.get(i);
+            double distance = Retail.calculateDistance(store.latitude, store.longitude, w.latitude, w.longitude);
+            ranked[i] = new Route(w, distance, distance / (1 + capacityWeight * Math.max(0, w.area) / largest));
+         }
+         Arrays.sort(ranked, BY_SCORE);
+         routes.put(store.storeID, Arrays.copyOf(ranked, keep));
+      }
+   }
+
+   /**
+    * @return the store's best warehouses, best first; empty for an unknown
+    *         store or when there are no warehouses
+    */
+   public List<Route> rank(int storeID) {
+      Route[] best = routes.get(storeID);
+      return best == null ? Collections.<Route>emptyList() : Collections.unmodifiableList(Arrays.asList(best));
+   }
+
+   /**
+    * @return the store's best warehouse, or null if there is none
+    */
+   public Route best(int storeID) {
+      Route[] best = routes.get(storeID);
+      return best == null || best.length == 0 ? null : best[0];
+   }
+
+   /**
+    * @return the warehouse with the given ID, or null
+    */
+   public Warehouse get(int warehouseID) {
+      return warehouses.get(warehouseID);
+   }
+
+   /**
+    * @return every warehouse, by ID
+    */
+   public List<Warehouse> all() {
+      List<Warehouse> result = new ArrayList<Warehouse>(warehouses.values());
+      Collections.sort(result, new Comparator<Warehouse>() {
+         public int compare(Warehouse a, Warehouse b) {
+            return a.warehouseID - b.warehouseID;
+         }
+      });
+      return result;
+   }
+
+}//end WarehouseRouter
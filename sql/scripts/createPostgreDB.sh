@@ -6,4 +6,10 @@ pg_ctl status
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
-psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
+
+# precompute every user's nearby stores, which also empties the queues the
+# load filled
+mkdir -p $DIR/../../java/classes
+javac -d $DIR/../../java/classes -cp $DIR/../../java/lib/pg73jdbc3.jar $DIR/../../java/src/*.java
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER --proximity full
@@ -0,0 +1,44 @@
+#! /bin/bash
+# Recreates the database with a generated dataset of the given scale factor
+# (1 matches the sample data, 100000 gives 50 million orders).  Each table is
+# streamed from the generator straight into COPY, so nothing is staged on
+# disk; indexes are built after the load, which is much faster than
+# maintaining them row by row.
+#
+# usage: loadGeneratedDB.sh <scale factor> [seed] [newest order date] [days of orders]
+SCALE=${1:?usage: loadGeneratedDB.sh <scale factor> [seed] [newest order date] [days of orders]}
+SEED=${2:-166}
+END=${3:-2016-09-10}
+DAYS=${4:-365}
+
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+DB=$USER"_DB"
+PSQL="psql -h localhost -p $PGPORT -q -v ON_ERROR_STOP=1 $DB"
+
+mkdir -p $DIR/../../java/classes
+javac -d $DIR/../../java/classes -cp $DIR/../../java/lib/pg73jdbc3.jar $DIR/../../java/src/*.java || exit 1
+GEN="java -cp $DIR/../../java/classes DataGenerator --scale $SCALE --seed $SEED --end $END --days $DAYS --table"
+
+$PSQL < $DIR/../src/create_tables.sql || exit 1
+
+# one Orders partition per generated month, so COPY routes rows straight to
+# them instead of through the default partition
+$PSQL -c "SELECT ensure_order_partitions(timestamp '$END' - interval '$DAYS days', timestamp '$END')" > /dev/null || exit 1
+
+# parents before children so every foreign key can be checked as rows arrive
+for pair in users:Users stores:Store warehouse:Warehouse products:Product orders:Orders \
+            productUpdates:ProductUpdates \
+            "productSupplyRequests:ProductSupplyRequests(requestNumber,managerID,warehouseID,storeID,productName,unitsRequested)"; do
+   file=${pair%%:*}
+   table=${pair##*:}
+   echo "loading $table..."
+   $GEN $file | $PSQL -c "\copy $table FROM pstdin WITH (FORMAT csv, HEADER true)" || exit 1
+done
+
+$PSQL < $DIR/../src/finish_load.sql > /dev/null || exit 1
+$PSQL < $DIR/../src/create_indexes.sql || exit 1
+$PSQL -c "ANALYZE"
+
+# every loaded row queued itself for ProximityJob; precompute every user's
+# nearby stores in one pass, which also empties the queues
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar Retail $DB $PGPORT $USER --proximity full || exit 1
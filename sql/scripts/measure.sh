@@ -1,4 +1,6 @@
 #!/bin/bash
+# times the hand-written view_queries.sql; java/scripts/indexbench.sh compares
+# the plans of the statements the Java client actually runs
 psql -h localhost -p $PGPORT $USER"_DB" < ../src/create_tables.sql > /dev/null
 sleep 5
 
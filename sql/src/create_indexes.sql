@@ -1,42 +1,69 @@
-CREATE INDEX store_storeID
-ON Store USING btree (storeID);
+-- Indexes for the statements the Java client actually runs.  Primary keys
+-- already cover Users(userID), Store(storeID), Product(storeID, productName)
+-- point and per-store lookups, ProductUpdates(updateNumber), and the
+-- popularity upserts, so nothing here repeats them.  Run
+-- java/scripts/indexbench.sh to compare plans with and without this set.
 
-CREATE INDEX store_managerID
-ON Store USING btree (managerID); 
+-- replaced by the set below, or duplicates of a primary key
+DROP INDEX IF EXISTS store_storeID;
+DROP INDEX IF EXISTS user_userID;
+DROP INDEX IF EXISTS product_storeID;
+DROP INDEX IF EXISTS product_productName;
+DROP INDEX IF EXISTS orders_productsName;
+DROP INDEX IF EXISTS orders_customerID;
+DROP INDEX IF EXISTS orders_orderTime;
+DROP INDEX IF EXISTS productSupplyRequests_productName;
+DROP INDEX IF EXISTS productUpdates_managerID;
+DROP INDEX IF EXISTS productUpdates_productName;
+DROP INDEX IF EXISTS productUpdates_updateNumber;
+DROP INDEX IF EXISTS productUpdates_updatedOn;
 
-CREATE INDEX user_userID
-ON Users USING btree (userID);
+-- log in: WHERE name = ? AND password = ?
+CREATE INDEX IF NOT EXISTS users_name
+ON Users USING btree (name);
 
-CREATE INDEX product_storeID
-ON Product USING btree (storeID);
+-- managed stores at log in, and the manager joins of the popularity and
+-- recent update reports: WHERE managerID = ?
+CREATE INDEX IF NOT EXISTS store_managerID
+ON Store USING btree (managerID);
 
-CREATE INDEX product_productName
-ON Product (storeID);
+-- recent orders, keyset paged newest first per customer
+CREATE INDEX IF NOT EXISTS orders_customerID_orderTime
+ON Orders USING btree (customerID, orderTime DESC, orderNumber DESC);
 
-CREATE INDEX orders_productsName
-ON Orders (productName);
+-- the Orders -> Product foreign key, checked when a product is deleted
+CREATE INDEX IF NOT EXISTS orders_storeID_productName
+ON Orders USING btree (storeID, productName);
 
-CREATE INDEX orders_customerID
-ON Orders USING btree (customerID);
+-- the ProductSupplyRequests -> Users foreign key
+CREATE INDEX IF NOT EXISTS productSupplyRequests_managerID
+ON ProductSupplyRequests USING btree (managerID);
 
-CREATE INDEX orders_orderTime
-ON Orders USING btree (orderTime);
+-- the ProductSupplyRequests -> Product foreign key
+CREATE INDEX IF NOT EXISTS productSupplyRequests_storeID_productName
+ON ProductSupplyRequests USING btree (storeID, productName);
 
+-- undelivered supply requests, requeued when the client starts
+CREATE INDEX IF NOT EXISTS productSupplyRequests_undelivered
+ON ProductSupplyRequests USING btree (requestNumber) WHERE deliveredOn IS NULL;
 
-CREATE INDEX productSupplyRequests_managerID
-ON ProductSupplyRequests (managerID);
+-- the UserNearbyStores -> Store foreign key, and ProximityJob replacing a
+-- moved store's rows
+CREATE INDEX IF NOT EXISTS userNearbyStores_storeID
+ON UserNearbyStores USING btree (storeID);
 
-CREATE INDEX productSupplyRequests_productName
-ON ProductSupplyRequests (managerID);
+-- the popularity reports, read per store with the largest totals first
+CREATE INDEX IF NOT EXISTS productPopularity_storeID_totalOrders
+ON ProductPopularity USING btree (storeID, totalOrders DESC);
 
-CREATE INDEX productUpdates_managerID
-ON productUpdates (managerID);
+CREATE INDEX IF NOT EXISTS customerPopularity_storeID_totalUnits
+ON CustomerPopularity USING btree (storeID, totalUnits DESC);
 
-CREATE INDEX productUpdates_productName
-ON productUpdates (productName);
+-- recent updates across every store (admins), keyset paged newest first
+CREATE INDEX IF NOT EXISTS productUpdates_updatedOn_updateNumber
+ON productUpdates USING btree (updatedOn DESC, updateNumber DESC);
 
-CREATE INDEX productUpdates_updateNumber
-ON productUpdates USING btree (updateNumber);
-
-CREATE INDEX productUpdates_updatedOn
-ON productUpdates USING btree (updatedOn);
\ No newline at end of file
+-- recent updates per managed store, and the ProductUpdates -> Product
+-- foreign key through its storeID prefix
+CREATE INDEX IF NOT EXISTS productUpdates_storeID_updatedOn
+ON productUpdates USING btree (storeID, updatedOn DESC, updateNumber DESC);
@@ -5,6 +5,13 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductPopularity CASCADE;
+DROP TABLE IF EXISTS CustomerPopularity CASCADE;
+DROP TABLE IF EXISTS ReorderPoint CASCADE;
+DROP TABLE IF EXISTS HotStock CASCADE;
+DROP TABLE IF EXISTS UserNearbyStores CASCADE;
+DROP TABLE IF EXISTS StaleUserProximity CASCADE;
+DROP TABLE IF EXISTS StaleStoreProximity CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -48,10 +55,43 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
+
+-- Orders is split into one partition per month, named orders_YYYY_MM, so
+-- reads bounded by orderTime only touch the months they need and old months
+-- can be archived by detaching them (see OrderPartitions.java).  Orders for a
+-- month without a partition land in the default one until it is created.
+CREATE TABLE orders_default PARTITION OF Orders DEFAULT;
+
+-- Creates the monthly partitions covering [first, last] that do not exist
+-- yet, moving any of their rows out of the default partition first.
+-- Returns how many partitions were created.
+CREATE OR REPLACE FUNCTION ensure_order_partitions(first timestamp, last timestamp) RETURNS integer AS $$
+DECLARE
+   month timestamp := date_trunc('month', first);
+   created integer := 0;
+   part text;
+BEGIN
+   -- concurrent callers would race to create the same partition
+   PERFORM pg_advisory_xact_lock(hashtext('ensure_order_partitions'));
+   WHILE month <= last LOOP
+      part := 'orders_' || to_char(month, 'YYYY_MM');
+      IF to_regclass(part) IS NULL THEN
+         EXECUTE format('CREATE TABLE %I (LIKE Orders INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part);
+         EXECUTE format('WITH moved AS (DELETE FROM orders_default WHERE orderTime >= %L AND orderTime < %L RETURNING *)'
+                        ' INSERT INTO %I SELECT * FROM moved', month, month + interval '1 month', part);
+         EXECUTE format('ALTER TABLE Orders ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                        part, month, month + interval '1 month');
+         created := created + 1;
+      END IF;
+      month := month + interval '1 month';
+   END LOOP;
+   RETURN created;
+END;
+$$ LANGUAGE plpgsql;
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -60,6 +100,7 @@ CREATE TABLE ProductSupplyRequests (
                                storeID integer NOT NULL,
                                productName char(30) NOT NULL, 
 							   unitsRequested integer NOT NULL,
+                               deliveredOn timestamp,        --NULL until the units are added to the store's stock
                                PRIMARY KEY(requestNumber),
 							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
                                FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
@@ -76,3 +117,92 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
+
+-- Running totals behind the manager popularity reports, kept up to date by
+-- the order insert path so the reports never have to aggregate Orders.
+CREATE TABLE ProductPopularity (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            totalOrders integer NOT NULL,   -- number of orders placed for the product at the store
+                            PRIMARY KEY(storeID, productName),
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
+
+CREATE TABLE CustomerPopularity (
+                            storeID integer NOT NULL,
+                            customerID integer NOT NULL,
+                            totalUnits integer NOT NULL,    -- units the customer has ordered from the store
+                            PRIMARY KEY(storeID, customerID),
+                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                            ON DELETE CASCADE,
+                            FOREIGN KEY(customerID) REFERENCES Users(userID)
+);
+
+-- per product, the stock (on hand plus on order) at which the replenishment
+-- engine requests more; products not listed use retail.replenish.reorderPoint
+CREATE TABLE ReorderPoint (
+                            productName char(30) NOT NULL,
+                            reorderPoint integer NOT NULL CHECK (reorderPoint >= 0),
+                            PRIMARY KEY(productName)
+);
+
+-- units of hot products that a running process holds in memory (see
+-- StripedInventory.java) and so are not in Product.numberOfUnits; recalled
+-- asks the holder to hand them back to Product at its next flush
+CREATE TABLE HotStock (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            holder varchar(64) NOT NULL,    -- the process, as pid@host
+                            units integer NOT NULL,
+                            recalled boolean NOT NULL DEFAULT false,
+                            PRIMARY KEY(storeID, productName, holder),
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
+
+-- each user's stores within the store screens' radius, precomputed by
+-- ProximityJob.java and read at log in
+CREATE TABLE UserNearbyStores (
+                            userID integer NOT NULL,
+                            storeID integer NOT NULL,
+                            distance double precision NOT NULL,
+                            PRIMARY KEY(userID, storeID),
+                            FOREIGN KEY(userID) REFERENCES Users(userID)
+                            ON DELETE CASCADE,
+                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                            ON DELETE CASCADE
+);
+
+-- users and stores whose UserNearbyStores rows are out of date: new or moved
+-- since the last ProximityJob run, which empties these
+CREATE TABLE StaleUserProximity (
+                            userID integer NOT NULL,
+                            PRIMARY KEY(userID)
+);
+
+CREATE TABLE StaleStoreProximity (
+                            storeID integer NOT NULL,
+                            PRIMARY KEY(storeID)
+);
+
+CREATE OR REPLACE FUNCTION mark_user_proximity_stale() RETURNS trigger AS $$
+BEGIN
+   INSERT INTO StaleUserProximity (userID) VALUES (NEW.userID) ON CONFLICT DO NOTHING;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION mark_store_proximity_stale() RETURNS trigger AS $$
+BEGIN
+   INSERT INTO StaleStoreProximity (storeID) VALUES (NEW.storeID) ON CONFLICT DO NOTHING;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a deleted user or store loses its rows through the foreign keys
+CREATE TRIGGER users_proximity AFTER INSERT OR UPDATE OF latitude, longitude ON Users
+FOR EACH ROW EXECUTE PROCEDURE mark_user_proximity_stale();
+
+CREATE TRIGGER store_proximity AFTER INSERT OR UPDATE OF latitude, longitude ON Store
+FOR EACH ROW EXECUTE PROCEDURE mark_store_proximity_stale();
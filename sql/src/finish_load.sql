@@ -0,0 +1,27 @@
+-- Run after a bulk load (see sql/scripts/loadGeneratedDB.sh): fills the
+-- popularity totals from Orders, marks the loaded supply requests delivered
+-- and moves every sequence past the loaded IDs.
+
+-- partitions for any loaded month the load script did not create up front
+SELECT ensure_order_partitions(MIN(orderTime), MAX(orderTime)) FROM Orders;
+-- and for the orders placed from now on, as OrderPartitions.ensureAhead makes them
+SELECT ensure_order_partitions(CAST(date_trunc('month', now()) - interval '1 month' AS timestamp),
+                               CAST(date_trunc('month', now()) + interval '3 months' AS timestamp));
+
+INSERT INTO ProductPopularity (storeID, productName, totalOrders)
+SELECT storeID, productName, COUNT(*)
+FROM Orders
+GROUP BY storeID, productName;
+
+INSERT INTO CustomerPopularity (storeID, customerID, totalUnits)
+SELECT storeID, customerID, SUM(unitsOrdered)
+FROM Orders
+GROUP BY storeID, customerID;
+
+-- the loaded stock already includes the loaded supply requests
+UPDATE ProductSupplyRequests SET deliveredOn = LOCALTIMESTAMP(0) WHERE deliveredOn IS NULL;
+
+SELECT setval('users_userID_seq', (SELECT MAX(userID) FROM Users));
+SELECT setval('orders_orderNumber_seq', (SELECT MAX(orderNumber) FROM Orders));
+SELECT setval('productsupplyrequests_requestNumber_seq', (SELECT MAX(requestNumber) FROM ProductSupplyRequests));
+SELECT setval('productupdates_updateNumber_seq', (SELECT MAX(updateNumber) FROM ProductUpdates));
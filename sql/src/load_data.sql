@@ -1,7 +1,7 @@
 COPY Users
 FROM 'users.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE users_userID_seq RESTART 101;
+SELECT setval('users_userID_seq', (SELECT MAX(userID) FROM Users));
 
 COPY Store
 FROM 'stores.csv'
@@ -18,15 +18,32 @@ WITH DELIMITER ',' CSV HEADER;
 COPY Orders
 FROM 'orders.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
+-- move the loaded months out of the default partition
+SELECT ensure_order_partitions(MIN(orderTime), MAX(orderTime)) FROM Orders;
+-- and for the orders placed from now on, as OrderPartitions.ensureAhead makes them
+SELECT ensure_order_partitions(CAST(date_trunc('month', now()) - interval '1 month' AS timestamp),
+                               CAST(date_trunc('month', now()) + interval '3 months' AS timestamp));
+SELECT setval('orders_orderNumber_seq', (SELECT MAX(orderNumber) FROM Orders));
 
+INSERT INTO ProductPopularity (storeID, productName, totalOrders)
+SELECT storeID, productName, COUNT(*)
+FROM Orders
+GROUP BY storeID, productName;
 
-COPY ProductSupplyRequests
+INSERT INTO CustomerPopularity (storeID, customerID, totalUnits)
+SELECT storeID, customerID, SUM(unitsOrdered)
+FROM Orders
+GROUP BY storeID, customerID;
+
+
+COPY ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested)
 FROM 'productSupplyRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productsupplyrequests_requestNumber_seq RESTART 11;
+-- the loaded stock already includes the loaded requests
+UPDATE ProductSupplyRequests SET deliveredOn = LOCALTIMESTAMP(0) WHERE deliveredOn IS NULL;
+SELECT setval('productsupplyrequests_requestNumber_seq', (SELECT MAX(requestNumber) FROM ProductSupplyRequests));
 
 COPY ProductUpdates
 FROM 'productUpdates.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;
+SELECT setval('productupdates_updateNumber_seq', (SELECT MAX(updateNumber) FROM ProductUpdates));